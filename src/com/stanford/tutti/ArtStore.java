@@ -0,0 +1,259 @@
+package com.stanford.tutti;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.http.Header;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.loopj.android.http.AsyncHttpClient;
+import com.loopj.android.http.AsyncHttpResponseHandler;
+
+/**
+ * Content-addressed store for album art.
+ *
+ * Each piece of art is identified by the SHA-1 hash of its image
+ * bytes, which phones send along with their music libraries instead
+ * of the art itself. A phone only fetches the art for a hash once a
+ * row showing it is on screen, from the phone that owns the song, at
+ * /art/{hash}; the bytes are stored as-is under that hash, and shared
+ * by every song and album with the same art.
+ */
+public class ArtStore {
+
+	/* URI prefix of the art endpoint served by Server. */
+	public static final String ART_PATH = "/art/";
+
+	private static final String ART_DIR = "art";
+
+	private Globals g;
+	private File dir;
+	private AsyncHttpClient client;
+	private ExecutorService writeExecutor;
+	private Handler mainHandler;
+	private HashSet<String> pending;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param Globals g
+	 */
+	public ArtStore(Globals g) {
+		this.g = g;
+		this.dir = new File(g.getFilesDir(), ART_DIR);
+		this.client = new AsyncHttpClient();
+		this.writeExecutor = Executors.newSingleThreadExecutor();
+		this.mainHandler = new Handler(Looper.getMainLooper());
+		this.pending = new HashSet<String>();
+	}
+
+	/**
+	 * Returns the SHA-1 hash of the given file's contents as
+	 * hex, or null if the file can't be read.
+	 *
+	 * @param String path
+	 * @return String artHash
+	 */
+	public static String hashFile(String path) {
+		if (path == null || path.length() == 0) {
+			return null;
+		}
+		InputStream in = null;
+		try {
+			in = new FileInputStream(path);
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, read);
+			}
+			return toHex(digest.digest());
+		} catch (IOException e) {
+			return null;
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the SHA-1 hash of the given bytes as hex.
+	 *
+	 * @param byte[] bytes
+	 * @return String artHash
+	 */
+	public static String hashBytes(byte[] bytes) {
+		try {
+			return toHex(MessageDigest.getInstance("SHA-1").digest(bytes));
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Returns true if the string could be an art hash,
+	 * so it is safe to use as a file name. Art hashes
+	 * are lowercase hex, as made by hashFile() and
+	 * hashBytes(), so that each art has a single name.
+	 *
+	 * @param String artHash
+	 * @return boolean isArtHash
+	 */
+	public static boolean isArtHash(String artHash) {
+		if (artHash == null || artHash.length() != 40) {
+			return false;
+		}
+		for (int i = 0; i < artHash.length(); i++) {
+			char c = artHash.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the path of the stored art with the
+	 * given hash, or null if it hasn't been fetched.
+	 *
+	 * @param String artHash
+	 * @return String artPath
+	 */
+	public String getPath(String artHash) {
+		if (!isArtHash(artHash)) {
+			return null;
+		}
+		File file = new File(dir, artHash);
+		return file.exists() ? file.getAbsolutePath() : null;
+	}
+
+	/**
+	 * Fetches the art with the given hash from the phone at
+	 * the given address, unless it is already stored or being
+	 * fetched. Once stored, the art is set on every song with
+	 * that hash and the UI is refreshed.
+	 *
+	 * Must be called on the UI thread.
+	 *
+	 * @param String artHash
+	 * @param String ipAddr
+	 * @param int port
+	 */
+	public void fetch(final String artHash, String ipAddr, int port) {
+		if (!isArtHash(artHash) || ipAddr == null || pending.contains(artHash)) {
+			return;
+		}
+		if (getPath(artHash) != null) {
+			return;
+		}
+		pending.add(artHash);
+
+		String url = "http://" + ipAddr + ":" + port + ART_PATH + artHash;
+		client.get(url, null, new AsyncHttpResponseHandler() {
+			@Override
+			public void onSuccess(int statusCode, Header[] headers, final byte[] responseBody) {
+				writeExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						String path = store(artHash, responseBody);
+						if (path != null) {
+							g.db.setAlbumArtByArtHash(artHash, path);
+						}
+						mainHandler.post(new Runnable() {
+							@Override
+							public void run() {
+								finishFetch(artHash);
+							}
+						});
+					}
+				});
+			}
+
+			@Override
+			public void onFailure(int statusCode, Header[] headers, byte[] responseBody, Throwable error) {
+				finishFetch(artHash);
+			}
+		});
+	}
+
+	/**
+	 * Ends a fetch, refreshing the UI once the
+	 * last of a burst of fetches is done.
+	 */
+	private void finishFetch(String artHash) {
+		pending.remove(artHash);
+		if (pending.isEmpty()) {
+			g.sendUIMessage(0);
+		}
+	}
+
+	/**
+	 * Writes fetched art to the store if its bytes
+	 * match its hash, and returns its path.
+	 *
+	 * @param String artHash
+	 * @param byte[] bytes
+	 * @return String artPath, or null
+	 */
+	private String store(String artHash, byte[] bytes) {
+		if (bytes == null || !artHash.equals(hashBytes(bytes))) {
+			System.out.println("Discarding album art that doesn't match its hash: " + artHash);
+			return null;
+		}
+		dir.mkdirs();
+		File file = new File(dir, artHash);
+		File temp = new File(dir, artHash + ".tmp");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(temp);
+			out.write(bytes);
+			out.close();
+			out = null;
+			if (!temp.renameTo(file)) {
+				temp.delete();
+				return null;
+			}
+			return file.getAbsolutePath();
+		} catch (IOException e) {
+			e.printStackTrace();
+			temp.delete();
+			return null;
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+			hex.append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+}
@@ -23,6 +23,7 @@ public class BrowseArtistsFragment extends Fragment {
 	private String columns[]; 
 	private int views[]; 
 	private BrowseMusicAdapter adapter; 
+	private SearchTask searchTask; 
 	
 	public ListView listView; 
 		
@@ -71,6 +72,8 @@ public class BrowseArtistsFragment extends Fragment {
 	 * Refreshes the list of artists being displayed.
 	 */
 	public void refreshArtistList() {
+		cancelSearch(); 
+		
 		Cursor newCursor = g.db.getAllArtists(); 
 	    Cursor oldCursor = adapter.swapCursor(newCursor);
 	    oldCursor.close(); 
@@ -78,15 +81,32 @@ public class BrowseArtistsFragment extends Fragment {
 	
 	/**
 	 * Searches the list of artists for a specific artist given a query string
-	 * and updates the UI to display artists whose names contain the provided
-	 * query.
+	 * and updates the UI to display artists whose names have words starting with the
+	 * words of the provided query.
 	 * 
 	 * @param query String used to search for artist by name
 	 */
-	public void searchArtistList(String query) {
-		Cursor newCursor = g.db.searchArtists(query); 
-	    Cursor oldCursor = adapter.swapCursor(newCursor);
-	    oldCursor.close(); 
+	public void searchArtistList(final String query) {
+		cancelSearch(); 
+		
+		searchTask = new SearchTask(adapter) {
+			@Override
+			protected Cursor search() {
+				return g.db.searchArtists(query); 
+			}
+		}; 
+		searchTask.execute(); 
+	}
+	
+	/**
+	 * Cancels the search in progress, if any, 
+	 * so that its results are never displayed. 
+	 */
+	private void cancelSearch() {
+		if (searchTask != null) {
+			searchTask.cancel(false); 
+			searchTask = null; 
+		}
 	}
 	
 	
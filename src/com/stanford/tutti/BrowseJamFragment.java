@@ -1,7 +1,6 @@
 package com.stanford.tutti; 
 
 import org.apache.http.Header;
-import org.json.JSONObject;
 
 import com.loopj.android.http.AsyncHttpResponseHandler;
 
@@ -57,22 +56,17 @@ public class BrowseJamFragment extends Fragment implements OnPreparedListener {
 			if (from != to)
 			{
 				String timestamp = ""; 
-				JSONObject jsonJam = new JSONObject(); 
 				g.jamLock.lock(); 
 				try {
 					timestamp = g.jam.getSongIdByIndex(from); 
 					g.jam.changeSongIndexInJam(timestamp, to); 
 					refreshJamList(); 
-					
-					if (g.jam.checkMaster()) {
-						jsonJam = g.jam.toJSON(); 							
-					}
 				} finally {
 					g.jamLock.unlock(); 
 				}
 				
 				if (g.jam.checkMaster()) {
-					g.jam.broadcastJamUpdate(jsonJam); 
+					g.jam.broadcastJamUpdate(); 
 				} else {
 					g.jam.requestMoveSong(timestamp, to);
 				}
@@ -89,7 +83,6 @@ public class BrowseJamFragment extends Fragment implements OnPreparedListener {
 		@Override
 		public void remove(int index) {
 			String songJamId = ""; 
-			JSONObject jsonJam = new JSONObject(); 
 			g.jamLock.lock(); 
 			try {
 				songJamId = g.jam.getSongIdByIndex(index); 
@@ -102,14 +95,13 @@ public class BrowseJamFragment extends Fragment implements OnPreparedListener {
     			}
     			*/
     			g.sendUIMessage(0); 
-				jsonJam = g.jam.toJSON(); 
 			} finally {
 				g.jamLock.unlock(); 
 			}
 			
 			
 			if (g.jam.checkMaster()) {
-				g.jam.broadcastJamUpdate(jsonJam); 
+				g.jam.broadcastJamUpdate(); 
 			} else {
 				g.jam.requestRemoveSong(songJamId); 
 			}
@@ -342,7 +334,6 @@ public class BrowseJamFragment extends Fragment implements OnPreparedListener {
 					});
 				}
 				else { // master
-					JSONObject jsonJam;
 					g.jamLock.lock(); 
 					try {
 						g.jam.setCurrentSong(songTimestampId);
@@ -350,11 +341,10 @@ public class BrowseJamFragment extends Fragment implements OnPreparedListener {
 						
 						g.sendUIMessage(7); 
 						
-						jsonJam = g.jam.toJSON(); 
 					} finally {
 						g.jamLock.unlock(); 
 					}
-					g.jam.broadcastJamUpdate(jsonJam); 
+					g.jam.broadcastJamUpdate(); 
 				}
 			}
 		});
@@ -427,7 +417,6 @@ public class BrowseJamFragment extends Fragment implements OnPreparedListener {
 				final int index = position; 
 
 				String songJamId = ""; 
-				JSONObject jsonJam = new JSONObject(); 
 				g.jamLock.lock(); 
 				try {
 					if (g.jam.checkMaster()) {
@@ -439,7 +428,6 @@ public class BrowseJamFragment extends Fragment implements OnPreparedListener {
 								"Now playing: " + title, Toast.LENGTH_SHORT)
 								.show();
 						
-						jsonJam = g.jam.toJSON();
 					} else {
 						songJamId = g.jam.getSongIdByIndex(index); 
 					}
@@ -448,7 +436,7 @@ public class BrowseJamFragment extends Fragment implements OnPreparedListener {
 				}
 				
 				if (g.jam.checkMaster()) {
-					g.jam.broadcastJamUpdate(jsonJam); 
+					g.jam.broadcastJamUpdate(); 
 				} else {
 					g.jam.requestSetSong(songJamId, title);
 				}
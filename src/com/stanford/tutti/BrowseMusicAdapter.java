@@ -1,11 +1,8 @@
 package com.stanford.tutti;
 
-import org.json.JSONObject;
-
 import android.content.Context;
 import android.database.Cursor;
 import android.graphics.Color;
-import android.net.Uri;
 import android.support.v4.widget.SimpleCursorAdapter;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -68,17 +65,13 @@ public class BrowseMusicAdapter extends SimpleCursorAdapter {
     		return; 
 
         ImageView artView = (ImageView) view.findViewById(R.id.browserArt);
-        String artPath = cursor.getString(cursor.getColumnIndex("art")); 
- 
-        if (artPath != null && !artPath.equals("")) {
-        	artView.setImageURI(Uri.parse(artPath)); 
-        } else {
-            artView.setImageResource(noArtImgID);
-        }
-        
         String title = cursor.getString(cursor.getColumnIndex("title")); 
+        boolean albumRow = title.equals("DISPLAY_ALBUM"); 
+        
+        // Decoded off the UI thread; a recycled row drops the art it was loading
+        g.thumbnails.load(artView, getArtPath(cursor), albumRow, noArtImgID); 
         
-        if (title.equals("DISPLAY_ALBUM")) {
+        if (albumRow) {
             String artist = cursor.getString(cursor.getColumnIndex("artist")); 
             if (artist.equals("<unknown>")) {
             	artist = "Unknown Artist"; 
@@ -116,6 +109,33 @@ public class BrowseMusicAdapter extends SimpleCursorAdapter {
         }
     }
     
+    /**
+     * Returns the path to the album art for a row. Remote art that 
+     * hasn't been fetched yet is requested by its hash from the 
+     * phone that owns the song, now that the row is on screen. 
+     * 
+     * @param cursor A cursor representing a song.
+     * @return The album art path, or null if it isn't available yet.
+     */
+    private String getArtPath(Cursor cursor) {
+        String artPath = cursor.getString(cursor.getColumnIndex("art")); 
+        if (artPath != null && !artPath.equals("")) {
+        	return artPath; 
+        }
+        
+        int artHashIndex = cursor.getColumnIndex("artHash"); 
+        if (artHashIndex == -1 || cursor.isNull(artHashIndex)) {
+        	return null; 
+        }
+        String artHash = cursor.getString(artHashIndex); 
+        artPath = g.artStore.getPath(artHash); 
+        if (artPath == null) {
+        	g.artStore.fetch(artHash, cursor.getString(cursor.getColumnIndex("_ip")), 
+        			cursor.getInt(cursor.getColumnIndex("port"))); 
+        }
+        return artPath; 
+    }
+    
     /**
      * Sets the top margin for a view.
      * 
@@ -234,19 +254,17 @@ public class BrowseMusicAdapter extends SimpleCursorAdapter {
     	artView.setOnClickListener(new View.OnClickListener() {
     		@Override
     		public void onClick(View view) {
-    			JSONObject jsonJam = new JSONObject(); 
     			g.jamLock.lock(); 
     			try {
     				g.jam.shuffle(); 
         			g.sendUIMessage(0); 
-    				jsonJam = g.jam.toJSON(); 
     			} finally {
     				g.jamLock.unlock(); 
     			}
     			
     			
     			if (g.jam.checkMaster()) {
-    				g.jam.broadcastJamUpdate(jsonJam); 
+    				g.jam.broadcastJamUpdate(); 
     			} else {
     				//g.jam.requestShuffleJam(); 
     			}
@@ -1,7 +1,5 @@
 package com.stanford.tutti; 
 
-import org.json.JSONObject;
-
 import android.database.Cursor;
 import android.os.Bundle;
 
@@ -31,6 +29,8 @@ public class BrowseSongsFragment extends Fragment {
 	public ListView listView; 
 	public BrowseMusicAdapter adapter; 
 	
+	private SearchTask searchTask; 
+	
 
 	/**
 	 * (non-Javadoc)
@@ -72,6 +72,8 @@ public class BrowseSongsFragment extends Fragment {
 	 * Refreshes the list of songs displayed.
 	 */
 	public void refreshSongList() {
+		cancelSearch(); 
+		
 		Cursor cursor; 
 		
 		if (!g.currentArtistView.equals("")) {
@@ -87,19 +89,36 @@ public class BrowseSongsFragment extends Fragment {
 	}
 	
 	/**
-	 * Searches the songs for a song with a name that includes the query string.
+	 * Searches the songs for songs whose title, album or artist have
+	 * words starting with the words of the query string.
 	 * 
 	 * @param query The substring to query for
 	 */
-	public void searchSongList(String query) {
-		if (g.currentArtistView.equals("")) {
-			Cursor newCursor = g.db.searchSongs(query); 
-		    Cursor oldCursor = adapter.swapCursor(newCursor);
-		    oldCursor.close(); 
-		} else {
-			Cursor newCursor = g.db.searchSongsByArtist(query, g.currentArtistView); 
-		    Cursor oldCursor = adapter.swapCursor(newCursor);
-		    oldCursor.close(); 
+	public void searchSongList(final String query) {
+		cancelSearch(); 
+		
+		final String artist = g.currentArtistView; 
+		searchTask = new SearchTask(adapter) {
+			@Override
+			protected Cursor search() {
+				if (artist.equals("")) {
+					return g.db.searchSongs(query); 
+				} else {
+					return g.db.searchSongsByArtist(query, artist); 
+				}
+			}
+		}; 
+		searchTask.execute(); 
+	}
+	
+	/**
+	 * Cancels the search in progress, if any, 
+	 * so that its results are never displayed. 
+	 */
+	private void cancelSearch() {
+		if (searchTask != null) {
+			searchTask.cancel(false); 
+			searchTask = null; 
 		}
 	}
 
@@ -143,7 +162,6 @@ public class BrowseSongsFragment extends Fragment {
 				song.setAddedBy(g.getUsername());
 				
 				String songJamId = ""; 
-				JSONObject jsonJam = new JSONObject(); 
 				g.jamLock.lock(); 
 				try {
 					songJamId = 
@@ -152,7 +170,6 @@ public class BrowseSongsFragment extends Fragment {
 					g.sendUIMessage(0);
 					
 					if (g.jam.checkMaster()) {
-						jsonJam = g.jam.toJSON(); 
 												
 						Toast.makeText(g,
 								song.getArtist()
@@ -169,7 +186,7 @@ public class BrowseSongsFragment extends Fragment {
 				}
 				
 				if (g.jam.checkMaster()) {
-					g.jam.broadcastJamUpdate(jsonJam); 
+					g.jam.broadcastJamUpdate(); 
 				} else {
 					g.jam.requestAddSong(Integer.toString(song.hashCode()), song.getTitle(), g.getUsername(), songJamId); 
 				}
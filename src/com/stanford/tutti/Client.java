@@ -1,8 +1,21 @@
 package com.stanford.tutti; 
 
-import java.io.UnsupportedEncodingException;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
-import org.apache.http.entity.StringEntity;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.message.BasicHeader;
 import org.json.JSONObject;
 
 import com.loopj.android.http.*;
@@ -12,15 +25,42 @@ import com.loopj.android.http.*;
  * Object that encapsulates the information for a remote phone: 
  * ip address, username, port, and activity boolean. 
  * 
+ * Updates pushed to the phone go through a small outbound queue 
+ * with one request in flight at a time, so a slow phone only 
+ * delays its own updates. A queued update is replaced by a newer 
+ * one with the same key, and its body is only built when it is 
+ * sent, so it always carries the latest state. 
+ * 
  */
 public class Client {
 	
+	/* POST bodies at least this many bytes long are sent gzip-compressed. */
+	private static final int GZIP_MIN_SIZE = 1024; 
+	
+	/* Most distinct updates waiting to be sent; the oldest is dropped beyond this. */
+	private static final int OUTBOUND_QUEUE_SIZE = 16; 
+	
+	/* Bounds on the timeout for queued updates, which is scaled from the round-trip time. */
+	private static final int OUTBOUND_MIN_TIMEOUT_MS = 2000; 
+	private static final int OUTBOUND_MAX_TIMEOUT_MS = 5000; 
+	
 	private AsyncHttpClient client; 
+	// Created on the first queued update, as most Clients never send one
+	private AsyncHttpClient outboundClient; 
 	private Globals g; 
 	private String username; 
 	private String ipAddress; 
 	private int port; 
 	private boolean isActive;
+	private volatile boolean acceptsBinary; 
+	
+	private LinkedHashMap<String, OutboundRequest> outboundQueue; 
+	private boolean outboundInFlight; 
+	private long smoothedRtt; 
+	private long lastRtt; 
+	private long outboundSent; 
+	private long outboundSuperseded; 
+	private long outboundDropped; 
 	
 	public AsyncHttpResponseHandler loadRemoteLibraryResponse; 
 	
@@ -42,8 +82,242 @@ public class Client {
 		this.ipAddress = ipAddress;
 		this.port = port;
 		this.isActive = false;
+		this.acceptsBinary = false; 
+		this.outboundQueue = new LinkedHashMap<String, OutboundRequest>(); 
+		this.outboundInFlight = false; 
+		this.smoothedRtt = -1; 
+		this.lastRtt = -1; 
 	} 
 	
+	/**
+	 * An update waiting in a Client's outbound queue, 
+	 * POSTed to the given path once it reaches the front. 
+	 */
+	public static abstract class OutboundRequest {
+		private String path; 
+		
+		/**
+		 * Constructor. 
+		 * 
+		 * @param String path
+		 */
+		public OutboundRequest(String path) {
+			this.path = path; 
+		}
+		
+		/**
+		 * Builds the request body just before it is sent. 
+		 * Returns null if there is nothing left to send. 
+		 * 
+		 * @returns HttpEntity entity
+		 * @throws IOException
+		 */
+		protected abstract HttpEntity createEntity() throws IOException; 
+		
+		/**
+		 * Called once the phone has accepted the update. 
+		 */
+		protected void onSuccess() {
+		}
+		
+		/**
+		 * Called if the update failed, timed out, or 
+		 * was dropped from a full queue. 
+		 */
+		protected void onFailure() {
+		}
+	}
+	
+	/**
+	 * Queues an update for the Client. An update already 
+	 * waiting with the same key is superseded and discarded. 
+	 * If the queue is full, the oldest waiting update is dropped. 
+	 * 
+	 * @param String key
+	 * @param OutboundRequest request
+	 */
+	public void enqueue(String key, OutboundRequest request) {
+		OutboundRequest dropped = null; 
+		synchronized (outboundQueue) {
+			if (outboundQueue.remove(key) != null) {
+				outboundSuperseded++; 
+			} else if (outboundQueue.size() >= OUTBOUND_QUEUE_SIZE) {
+				Iterator<OutboundRequest> oldest = outboundQueue.values().iterator(); 
+				dropped = oldest.next(); 
+				oldest.remove(); 
+				outboundDropped++; 
+			}
+			outboundQueue.put(key, request); 
+		}
+		
+		if (dropped != null) {
+			System.out.println("Client " + username + ": outbound queue full, dropped oldest update"); 
+			dropped.onFailure(); 
+		}
+		sendNextOutbound(); 
+	}
+	
+	/**
+	 * Sends the update at the front of the outbound 
+	 * queue, unless a request is already in flight. 
+	 */
+	private void sendNextOutbound() {
+		OutboundRequest request; 
+		synchronized (outboundQueue) {
+			if (outboundInFlight || outboundQueue.isEmpty()) {
+				return; 
+			}
+			Iterator<OutboundRequest> first = outboundQueue.values().iterator(); 
+			request = first.next(); 
+			first.remove(); 
+			outboundInFlight = true; 
+			if (outboundClient == null) {
+				// Queued updates get their own client, so their timeout and 
+				// retry policy don't change those of pings and library uploads
+				outboundClient = new AsyncHttpClient(); 
+				// Never retried here: the sender of a failed update 
+				// queues it again, and a newer one supersedes it
+				outboundClient.setMaxRetriesAndTimeout(0, 0); 
+			}
+		}
+		
+		HttpEntity entity = null; 
+		try {
+			entity = request.createEntity(); 
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (entity == null) {
+			finishOutbound(); 
+			return; 
+		}
+		
+		final OutboundRequest sent = request; 
+		final long start = System.currentTimeMillis(); 
+		outboundClient.setTimeout(getOutboundTimeout()); 
+		outboundClient.post(g.getBaseContext(), getUrl(request.path, ""), entity, "application/json", new AsyncHttpResponseHandler() {
+			@Override
+			public void onSuccess(int statusCode, Header[] headers, byte[] responseBody) {
+				recordRtt(System.currentTimeMillis() - start); 
+				sent.onSuccess(); 
+				finishOutbound(); 
+			}
+			
+			@Override
+			public void onFailure(int statusCode, Header[] headers, byte[] responseBody, Throwable error) {
+				sent.onFailure(); 
+				finishOutbound(); 
+			}
+		}); 
+	}
+	
+	/**
+	 * Marks the in-flight update as done and sends the next one. 
+	 */
+	private void finishOutbound() {
+		synchronized (outboundQueue) {
+			outboundInFlight = false; 
+			outboundSent++; 
+		}
+		sendNextOutbound(); 
+	}
+	
+	/**
+	 * Folds a round-trip time sample into the smoothed 
+	 * round-trip time, weighting the new sample by 1/8. 
+	 * 
+	 * @param long rtt
+	 */
+	private synchronized void recordRtt(long rtt) {
+		lastRtt = rtt; 
+		if (smoothedRtt < 0) {
+			smoothedRtt = rtt; 
+		} else {
+			smoothedRtt = (7 * smoothedRtt + rtt) / 8; 
+		}
+	}
+	
+	/**
+	 * Returns the timeout for queued updates: four 
+	 * round-trip times, within fixed bounds. Also used 
+	 * as the backoff before a failed update is queued again. 
+	 * 
+	 * @returns int timeoutMs
+	 */
+	public synchronized int getOutboundTimeout() {
+		if (smoothedRtt < 0) {
+			return OUTBOUND_MAX_TIMEOUT_MS; 
+		}
+		return (int) Math.max(OUTBOUND_MIN_TIMEOUT_MS, Math.min(OUTBOUND_MAX_TIMEOUT_MS, 4 * smoothedRtt)); 
+	}
+	
+	/**
+	 * Returns the smoothed round-trip time of updates 
+	 * sent to the Client, or -1 if none has completed. 
+	 * 
+	 * @returns long rttMs
+	 */
+	public synchronized long getSmoothedRtt() {
+		return smoothedRtt; 
+	}
+	
+	/**
+	 * Returns the round-trip time of the last update 
+	 * sent to the Client, or -1 if none has completed. 
+	 * 
+	 * @returns long rttMs
+	 */
+	public synchronized long getLastRtt() {
+		return lastRtt; 
+	}
+	
+	/**
+	 * Returns the number of updates waiting to be sent. 
+	 * 
+	 * @returns int queueLength
+	 */
+	public int getOutboundQueueLength() {
+		synchronized (outboundQueue) {
+			return outboundQueue.size(); 
+		}
+	}
+	
+	/**
+	 * Returns the number of queued updates that were 
+	 * sent (or found to have nothing to send). 
+	 * 
+	 * @returns long sent
+	 */
+	public long getOutboundSent() {
+		synchronized (outboundQueue) {
+			return outboundSent; 
+		}
+	}
+	
+	/**
+	 * Returns the number of queued updates that were 
+	 * replaced by a newer update with the same key. 
+	 * 
+	 * @returns long superseded
+	 */
+	public long getOutboundSuperseded() {
+		synchronized (outboundQueue) {
+			return outboundSuperseded; 
+		}
+	}
+	
+	/**
+	 * Returns the number of queued updates that were 
+	 * dropped because the queue was full. 
+	 * 
+	 * @returns long dropped
+	 */
+	public long getOutboundDropped() {
+		synchronized (outboundQueue) {
+			return outboundDropped; 
+		}
+	}
+	
 	/**
 	 * Sends a request to join a jam at the Client on the specified port. 
 	 * Request includes the local username, for purposes of displaying to the remote client. 
@@ -81,12 +355,17 @@ public class Client {
 	
 	/**
 	 * Sends a request for the Client's music library metadata. 
+	 * The binary wire format is preferred; phones that don't 
+	 * know it ignore the Accept header and answer with JSON. 
 	 * 
 	 * @param AsyncHttpResponseHandler responseHandler
 	 */
 	public void requestRemoteLibrary(AsyncHttpResponseHandler responseHandler) {
 		String url = getUrl("/getLocalLibrary/", ""); 
-		client.get(url, null, responseHandler); 
+		Header[] headers = new Header[] {
+			new BasicHeader("Accept", WireCodec.VERSIONED_CONTENT_TYPE + ", application/json")
+		}; 
+		client.get(g.getBaseContext(), url, headers, null, responseHandler); 
 	}
 	
 	/**
@@ -101,15 +380,19 @@ public class Client {
 
 	/**
 	 * Sends a request to the Client to add a song 
-	 * to its local version of the jam. 
+	 * to its local version of the jam, at the given 
+	 * position key and with the given version stamp. 
 	 * 
 	 * @param String songHash
 	 * @param String addedBy
 	 * @param String jamSongId
+	 * @param String position
+	 * @param String stamp
 	 * @param AsyncHttpResponseHandler responseHandler
 	 */
-	public void requestAddSong(String songHash, String addedBy, String jamSongId, AsyncHttpResponseHandler responseHandler) {
-		String url = getUrl("/jam/add/", "?songId=" + songHash + "&jamSongId=" + jamSongId + "&addedBy=" + addedBy); 
+	public void requestAddSong(String songHash, String addedBy, String jamSongId, String position, String stamp, AsyncHttpResponseHandler responseHandler) {
+		String url = getUrl("/jam/add/", "?songId=" + songHash + "&jamSongId=" + jamSongId + "&addedBy=" + addedBy 
+				+ "&position=" + position + "&stamp=" + stamp); 
 		client.get(url, null, responseHandler); 
 	}
 	
@@ -128,13 +411,18 @@ public class Client {
 	/**
 	 * Sends a request to the Client to move the given song
 	 * to a new index in its local version of the jam. 
+	 * The index is kept for phones that don't understand 
+	 * position keys. 
 	 * 
 	 * @param String jamSongId
 	 * @param int to
+	 * @param String position
+	 * @param String stamp
 	 * @param AsyncHttpResponseHandler responseHandler
 	 */
-	public void requestMoveSong(String jamSongId, int to, AsyncHttpResponseHandler responseHandler) {
-		String url = getUrl("/jam/move/", "?jamSongId=" + jamSongId + "&to=" + to); 
+	public void requestMoveSong(String jamSongId, int to, String position, String stamp, AsyncHttpResponseHandler responseHandler) {
+		String url = getUrl("/jam/move/", "?jamSongId=" + jamSongId + "&to=" + to 
+				+ "&position=" + position + "&stamp=" + stamp); 
 		client.get(url, null, responseHandler); 
 	}
 	
@@ -151,35 +439,35 @@ public class Client {
 	}
 	
 	/**
-	 * Sends a request to the Client to get
-	 * its local version of the jam. 
+	 * Sends a request to the Client to get the jam 
+	 * operations after the given sequence number, 
+	 * or a snapshot of its jam if they are no longer logged. 
 	 * 
-	 * @param String jamSongId
-	 * @param int to
+	 * @param long since
 	 * @param AsyncHttpResponseHandler responseHandler
 	 */
-	public void refreshJam(AsyncHttpResponseHandler responseHandler) {
-		String url = getUrl("/getJam/", ""); 
+	public void refreshJam(long since, AsyncHttpResponseHandler responseHandler) {
+		String url = getUrl("/getJam/", "?since=" + since); 
 		client.get(url, null, responseHandler); 
 	}
 	
 	/**
 	 * Sends a post request to the Client containing
-	 * new music metadata. 
+	 * new music metadata, already serialized and gzip-compressed 
+	 * to a file, as JSON or in the binary wire format. 
+	 * The file is streamed, and reread on a retry. 
 	 * 
-	 * @param JSONObject jsonLibrary
+	 * @param File compressedLibrary
+	 * @param boolean binary
 	 * @param AsyncHttpResponseHandler responseHandler
 	 */
-	public void updateLibrary(JSONObject jsonLibrary, AsyncHttpResponseHandler responseHandler) {
+	public void updateLibrary(File compressedLibrary, boolean binary, AsyncHttpResponseHandler responseHandler) {
 		String url = getUrl("/updateLibrary", "");
-		try {
-			StringEntity entity = new StringEntity(jsonLibrary.toString());
-			client.setMaxRetriesAndTimeout(3, 5000);
-			client.post(g.getBaseContext(), url, entity, "application/json", responseHandler);
-		}
-		catch (UnsupportedEncodingException e) {
-			e.printStackTrace();
-		}
+		String contentType = binary ? WireCodec.CONTENT_TYPE : "application/json"; 
+		FileEntity entity = new FileEntity(compressedLibrary, contentType); 
+		entity.setContentEncoding("gzip"); 
+		client.setMaxRetriesAndTimeout(3, 5000);
+		client.post(g.getBaseContext(), url, entity, contentType, responseHandler);
 	}
 	
 	/**
@@ -192,32 +480,69 @@ public class Client {
 	public void updateAlbumArt(JSONObject jsonAlbumArt, AsyncHttpResponseHandler responseHandler) {
 		String url = getUrl("/updateAlbumArt", ""); 
 		try {
-			StringEntity entity = new StringEntity(jsonAlbumArt.toString());
+			HttpEntity entity = jsonEntity(jsonAlbumArt);
 			client.setMaxRetriesAndTimeout(3, 5000);
 			client.post(g.getBaseContext(), url, entity, "application/json", responseHandler);
 		}
-		catch (UnsupportedEncodingException e) {
+		catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 	
 	/**
-	 * Sends a post request to the Client containing
-	 * an updated version of the jam. 
+	 * Queues a post request to the Client containing
+	 * an update to the jam, built by the given source 
+	 * when it is sent. Supersedes any jam update 
+	 * still waiting in the queue. 
 	 * 
-	 * @param JSONObject jsonJam
-	 * @param AsyncHttpResponseHandler responseHandler
+	 * @param final JamUpdateSource source
 	 */
-	public void updateJam(JSONObject jsonJam, AsyncHttpResponseHandler responseHandler) {
-		String url = getUrl("/updateJam", ""); 
-		try {
-			StringEntity entity = new StringEntity(jsonJam.toString());
-			client.setMaxRetriesAndTimeout(3, 5000);
-			client.post(g.getBaseContext(), url, entity, "application/json", responseHandler);
-		}
-		catch (UnsupportedEncodingException e) {
-			e.printStackTrace();
-		}
+	public void updateJam(final JamUpdateSource source) {
+		enqueue("/updateJam", new OutboundRequest("/updateJam") {
+			@Override
+			protected HttpEntity createEntity() throws IOException {
+				JSONObject jsonJam = source.createJamUpdate(); 
+				if (jsonJam == null) {
+					return null; 
+				}
+				return jsonEntity(jsonJam); 
+			}
+			
+			@Override
+			protected void onSuccess() {
+				source.onJamUpdateSent(); 
+			}
+			
+			@Override
+			protected void onFailure() {
+				source.onJamUpdateFailed(); 
+			}
+		}); 
+	}
+	
+	/**
+	 * Builds the jam updates for updateJam. 
+	 */
+	public interface JamUpdateSource {
+		/**
+		 * Returns the jam update to send now, 
+		 * or null if the Client is up to date. 
+		 * 
+		 * @returns JSONObject jsonJam
+		 */
+		JSONObject createJamUpdate(); 
+		
+		/**
+		 * Called once the Client has accepted 
+		 * the last update returned. 
+		 */
+		void onJamUpdateSent(); 
+		
+		/**
+		 * Called if the last update returned failed, 
+		 * timed out, or was dropped from a full queue. 
+		 */
+		void onJamUpdateFailed(); 
 	}
 	
 	/**
@@ -278,6 +603,27 @@ public class Client {
 		this.isActive = true;
 	}
 	
+	/**
+	 * Records whether this Client has answered 
+	 * in the binary wire format, at a version 
+	 * that can read the messages this phone writes. 
+	 * 
+	 * @param boolean acceptsBinary
+	 */
+	public void setAcceptsBinary(boolean acceptsBinary) {
+		this.acceptsBinary = acceptsBinary; 
+	}
+	
+	/**
+	 * Returns true if this Client can read 
+	 * the binary wire format. 
+	 * 
+	 * @returns boolean acceptsBinary
+	 */
+	public boolean acceptsBinary() {
+		return acceptsBinary; 
+	}
+	
 	/**
 	 * Sends a message to the client telling it to remove clientToRemove from the jam.
 	 * 
@@ -316,6 +662,62 @@ public class Client {
 		client.get(url, responseHandler);
 	}
 	
+	/**
+	 * Returns a POST entity holding the given JSON as UTF-8. 
+	 * Large bodies are gzip-compressed and marked with 
+	 * Content-Encoding: gzip, which the Server inflates. 
+	 * 
+	 * @param JSONObject json
+	 * @returns HttpEntity entity
+	 * @throws IOException
+	 */
+	private HttpEntity jsonEntity(JSONObject json) throws IOException {
+		byte[] body = json.toString().getBytes("UTF-8"); 
+		if (body.length < GZIP_MIN_SIZE) {
+			return new ByteArrayEntity(body); 
+		}
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4); 
+		GZIPOutputStream gzip = new GZIPOutputStream(compressed); 
+		gzip.write(body); 
+		gzip.close(); 
+		ByteArrayEntity entity = new ByteArrayEntity(compressed.toByteArray()); 
+		entity.setContentEncoding("gzip"); 
+		return entity; 
+	}
+	
+	/**
+	 * Opens a response body for reading. Bodies that are 
+	 * still gzip-compressed (recognized by the gzip magic 
+	 * number) are inflated on the fly. 
+	 * 
+	 * @param byte[] responseBody
+	 * @returns InputStream body
+	 * @throws IOException
+	 */
+	public static InputStream openResponseBody(byte[] responseBody) throws IOException {
+		return openResponseStream(new ByteArrayInputStream(responseBody)); 
+	}
+	
+	/**
+	 * Wraps a streamed response body, inflating it on 
+	 * the fly if it is still gzip-compressed. 
+	 * 
+	 * @param InputStream in
+	 * @returns InputStream body
+	 * @throws IOException
+	 */
+	public static InputStream openResponseStream(InputStream in) throws IOException {
+		InputStream is = in.markSupported() ? in : new BufferedInputStream(in); 
+		is.mark(2); 
+		int first = is.read(); 
+		int second = is.read(); 
+		is.reset(); 
+		if (first == 0x1f && second == 0x8b) {
+			return new GZIPInputStream(is); 
+		}
+		return is; 
+	}
+	
 	/**
 	 * Concatenates and returns a request URL for the client. 
 	 * 
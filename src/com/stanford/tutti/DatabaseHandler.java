@@ -2,8 +2,12 @@ package com.stanford.tutti;
 
 import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Random;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -12,12 +16,17 @@ import org.json.JSONObject;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.util.Base64;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
 
 /**
  * Singleton object that handles all interactions with the local database. 
@@ -25,15 +34,42 @@ import android.util.Base64;
 public class DatabaseHandler extends SQLiteOpenHelper {
 
 	// Database Version
-	private static final int DATABASE_VERSION = 23;
+	private static final int DATABASE_VERSION = 31;
+
+	// Oldest database version that can be migrated instead of recreated
+	private static final int FIRST_MIGRATABLE_VERSION = 23; 
+
+	// Songs inserted per transaction when loading a remote library
+	private static final int LOAD_BATCH_SIZE = 250;
+
+	// Bound arguments per query, under SQLite's default limit of 999
+	private static final int MAX_BOUND_ARGS = 500;
+
+	// Prepared statements kept per connection for rawQuery() SQL, the most SQLite allows
+	private static final int SQL_CACHE_SIZE = 100;
 
 	// Database Name
 	private static final String DATABASE_NAME = "library";
 
 	// Table names
-	private static final String TABLE_SONGS = "songs";
+	private static final String TABLE_ARTISTS = "artists";
+	private static final String TABLE_ALBUMS = "albums";
+	private static final String TABLE_PEERS = "peers";
+	private static final String TABLE_TRACKS = "tracks";
 	private static final String TABLE_JAM = "jam"; 
 	private static final String TABLE_LOG = "log";
+	private static final String TABLE_SONGS_SEARCH = "songs_search";
+	private static final String TABLE_DUPLICATE_MEDIA = "duplicate_media";
+	
+	// View names. The songs view has the columns of the songs table before 
+	// version 29: its track rows, plus one album header row per album
+	private static final String TABLE_SONGS = "songs";
+	private static final String VIEW_TRACK_ROWS = "track_rows";
+	private static final String VIEW_ALBUM_ROWS = "album_rows";
+	
+	// Title and track number of album header rows in the songs view
+	private static final String ALBUM_ROW_TITLE = "DISPLAY_ALBUM";
+	private static final int ALBUM_ROW_TRACK_NUM = -1;
 
 	// Song table columns names
 	private static final String KEY_ID = "_id";
@@ -47,9 +83,17 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 	private static final String KEY_IP = "_ip";
 	private static final String KEY_PORT = "port";
 	private static final String KEY_TRACK_NUM = "trackNum"; 
+	private static final String KEY_ART_HASH = "artHash"; 
+	private static final String KEY_MEDIA_ID = "mediaId"; 
+	private static final String KEY_NAME = "name"; 
+	private static final String KEY_ARTIST_ID = "artist_id"; 
+	private static final String KEY_ALBUM_ID = "album_id"; 
+	private static final String KEY_PEER_ID = "peer_id"; 
+	private static final String KEY_TRACK_ID = "track_id"; 
+	private static final String KEY_DATE_MODIFIED = "dateModified"; 
 
 	// Jam table-exclusive column names
-	private static final String KEY_JAM_INDEX = "jamIndex"; 
+	private static final String KEY_JAM_POSITION = "jamPosition"; 
 	private static final String KEY_ADDED_BY = "addedBy"; 
 	private static final String KEY_TIMESTAMP = "timestamp"; 
 	
@@ -71,13 +115,17 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 	private static final int COL_IP = 8;
 	private static final int COL_PORT = 9;
 	
-	// Song table exclusive indices
+	// Songs view exclusive indices
 	private static final int COL_TRACK_NUM = 10; 
-
-	// Jam table-exclusive column indices
-	private static final int COL_JAM_INDEX = 10; 
-	private static final int COL_ADDED_BY = 11; 
-	private static final int COL_TIMESTAMP = 12; 
+	private static final int COL_ART_HASH = 11; 
+	private static final int COL_MEDIA_ID = 12; 
+	private static final int COL_DATE_MODIFIED = 13; 
+
+	// Jam table column indices
+	private static final int COL_TRACK_ID = 1; 
+	private static final int COL_JAM_POSITION = 2; 
+	private static final int COL_ADDED_BY = 3; 
+	private static final int COL_TIMESTAMP = 4; 
 	
 	// Log table exclusive column indices
 	private static final int COL_START_TIME = 1;
@@ -86,11 +134,14 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 	private static final int COL_NUM_USERS = 4;
 
 
-	private static final String[] SONG_COLUMNS = {KEY_ID, KEY_TITLE, KEY_ARTIST, KEY_ALBUM, KEY_PATH, KEY_LOCAL, KEY_ART, KEY_HASH, KEY_IP, KEY_PORT, KEY_TRACK_NUM};
-	private static final String[] JAM_COLUMNS = {KEY_ID, KEY_TITLE, KEY_ARTIST, KEY_ALBUM, KEY_PATH, KEY_LOCAL, KEY_ART, KEY_HASH, KEY_IP, KEY_PORT, KEY_JAM_INDEX, KEY_ADDED_BY, KEY_TIMESTAMP};
+	private static final String[] SONG_COLUMNS = {KEY_ID, KEY_TITLE, KEY_ARTIST, KEY_ALBUM, KEY_PATH, KEY_LOCAL, KEY_ART, KEY_HASH, KEY_IP, KEY_PORT, KEY_TRACK_NUM, KEY_ART_HASH, KEY_MEDIA_ID, KEY_DATE_MODIFIED};
+	private static final String[] JAM_COLUMNS = {KEY_ID, KEY_TRACK_ID, KEY_JAM_POSITION, KEY_ADDED_BY, KEY_TIMESTAMP};
 	private static final String[] LOG_COLUMNS = {KEY_ID, KEY_START_TIME, KEY_LATEST_TIME, KEY_NUM_SONGS, KEY_NUM_USERS};
 	
 	private Globals g;
+	
+	/* Precompiled statements for the hot queries, keyed by SQL. See getStatement(). */
+	private final HashMap<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>(); 
 
 	
 	/**
@@ -103,61 +154,298 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 		super(context, DATABASE_NAME, null, DATABASE_VERSION);
 		this.g = (Globals) context.getApplicationContext(); 
 	}
+	
+	/**
+	 * Raises the number of prepared statements each connection 
+	 * keeps, so that every query in this class with constant 
+	 * SQL and bound arguments is prepared once and reused. 
+	 * 
+	 * @param SQLiteDatabase db
+	 */
+	@Override
+	public void onOpen(SQLiteDatabase db) {
+		super.onOpen(db); 
+		db.setMaxSqlCacheSize(SQL_CACHE_SIZE); 
+	}
+	
+	/**
+	 * Returns the precompiled statement for the given SQL, 
+	 * compiling it the first time it is asked for. 
+	 * 
+	 * Statements are shared by every thread, so callers must 
+	 * bind and execute one while holding its lock. Values are 
+	 * always bound as arguments, never written into the SQL. 
+	 * 
+	 * @param String sql, with ? for each argument
+	 * @returns SQLiteStatement statement
+	 */
+	private SQLiteStatement getStatement(String sql) {
+		synchronized (statements) {
+			SQLiteStatement statement = statements.get(sql); 
+			if (statement == null) {
+				statement = this.getWritableDatabase().compileStatement(sql); 
+				statements.put(sql, statement); 
+			}
+			return statement; 
+		}
+	}
+	
+	/**
+	 * Releases the precompiled statements and closes the database. 
+	 */
+	@Override
+	public synchronized void close() {
+		synchronized (statements) {
+			for (SQLiteStatement statement : statements.values()) {
+				statement.close(); 
+			}
+			statements.clear(); 
+		}
+		super.close(); 
+	}
 
 	/**
-	 * Initializes three database tables: 
-	 * songs, jam, and log. 
+	 * Initializes the database tables: artists, albums, 
+	 * peers and tracks for the music library, jam, and log, 
+	 * and the songs view over the library. 
 	 * 
 	 * @param SQLiteDatabase db
 	 */
 	@Override
 	public void onCreate(SQLiteDatabase db) {
-		String CREATE_SONGS_TABLE = "CREATE TABLE " + TABLE_SONGS + "("
+		createLibraryTables(db); 
+		createJamTable(db); 
+		
+		String CREATE_LOG_TABLE = "CREATE TABLE IF NOT EXISTS " + TABLE_LOG + "("
+				+ KEY_ID + " INTEGER PRIMARY KEY," 
+				+ KEY_START_TIME + " INTEGER,"
+				+ KEY_LATEST_TIME + " INTEGER," 
+				+ KEY_NUM_SONGS + " INTEGER DEFAULT 0,"
+				+ KEY_NUM_USERS + " INTEGER)";
+		db.execSQL(CREATE_LOG_TABLE);
+		
+		createDuplicateMediaTable(db); 
+		createViews(db); 
+		createIndexes(db); 
+		createSearchIndex(db); 
+	}
+	
+	/**
+	 * Creates the music library tables. Each artist, album 
+	 * and phone is stored once, and each track refers to its 
+	 * album and to the phone it is played from by integer key. 
+	 * Album art belongs to the album. 
+	 * 
+	 * @param SQLiteDatabase db
+	 */
+	private void createLibraryTables(SQLiteDatabase db) {
+		String CREATE_ARTISTS_TABLE = "CREATE TABLE " + TABLE_ARTISTS + "("
+				+ KEY_ID + " INTEGER PRIMARY KEY," 
+				+ KEY_NAME + " TEXT UNIQUE)";
+		db.execSQL(CREATE_ARTISTS_TABLE);
+		
+		String CREATE_PEERS_TABLE = "CREATE TABLE " + TABLE_PEERS + "("
 				+ KEY_ID + " INTEGER PRIMARY KEY," 
+				+ KEY_IP + " TEXT UNIQUE,"
+				+ KEY_PORT + " INTEGER)";
+		db.execSQL(CREATE_PEERS_TABLE);
+		
+		String CREATE_ALBUMS_TABLE = "CREATE TABLE " + TABLE_ALBUMS + "("
+				+ KEY_ID + " INTEGER PRIMARY KEY," 
+				+ KEY_ARTIST_ID + " INTEGER REFERENCES " + TABLE_ARTISTS + "(" + KEY_ID + "),"
+				+ KEY_TITLE + " TEXT,"
+				+ KEY_ART + " TEXT,"
+				+ KEY_ART_HASH + " TEXT,"
+				+ KEY_PEER_ID + " INTEGER REFERENCES " + TABLE_PEERS + "(" + KEY_ID + "),"
+				+ " UNIQUE (" 
+				+ KEY_ARTIST_ID + ", " 
+				+ KEY_TITLE + "))";
+		db.execSQL(CREATE_ALBUMS_TABLE);
+		
+		String CREATE_TRACKS_TABLE = "CREATE TABLE " + TABLE_TRACKS + "("
+				+ KEY_ID + " INTEGER PRIMARY KEY," 
+				+ KEY_ALBUM_ID + " INTEGER REFERENCES " + TABLE_ALBUMS + "(" + KEY_ID + "),"
+				+ KEY_PEER_ID + " INTEGER REFERENCES " + TABLE_PEERS + "(" + KEY_ID + "),"
 				+ KEY_TITLE + " TEXT,"
-				+ KEY_ARTIST + " TEXT,"
-				+ KEY_ALBUM + " TEXT,"
 				+ KEY_PATH + " TEXT,"
 				+ KEY_LOCAL + " INTEGER," 
-				+ KEY_ART + " TEXT,"
 				+ KEY_HASH + " TEXT," 
-				+ KEY_IP + " TEXT,"
-				+ KEY_PORT + " INTEGER,"
 				+ KEY_TRACK_NUM + " INTEGER,"
+				+ KEY_MEDIA_ID + " INTEGER,"
+				+ KEY_DATE_MODIFIED + " INTEGER,"
 				+ " UNIQUE (" 
-				+ KEY_TITLE + ", " 
-				+ KEY_ARTIST + ", "
-				+ KEY_ALBUM + ")"
+				+ KEY_ALBUM_ID + ", " 
+				+ KEY_TITLE + ")"
 				+ " ON CONFLICT IGNORE)";
-		db.execSQL(CREATE_SONGS_TABLE);
-
+		db.execSQL(CREATE_TRACKS_TABLE);
+	}
+	
+	/**
+	 * Creates the table of music store songs that were not 
+	 * added as tracks, because a track of the same album and 
+	 * title was already in the library. Their IDs and 
+	 * modification times are kept so that rescans know them. 
+	 * 
+	 * @param SQLiteDatabase db
+	 */
+	private void createDuplicateMediaTable(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_DUPLICATE_MEDIA + "("
+				+ KEY_MEDIA_ID + " INTEGER PRIMARY KEY,"
+				+ KEY_DATE_MODIFIED + " INTEGER)");
+	}
+	
+	/**
+	 * Creates the jam table. Songs in the jam are ordered by 
+	 * their position keys (see PositionKey), so that moving or 
+	 * removing a song only writes its own row, and each row 
+	 * refers to its track in the library instead of copying it. 
+	 * Writing a row for a timestamp ID already in the table 
+	 * replaces it. 
+	 * 
+	 * @param SQLiteDatabase db
+	 */
+	private void createJamTable(SQLiteDatabase db) {
 		String CREATE_JAM_TABLE = "CREATE TABLE " + TABLE_JAM + "("
 				+ KEY_ID + " INTEGER PRIMARY KEY," 
-				+ KEY_TITLE + " TEXT,"
-				+ KEY_ARTIST + " TEXT,"
-				+ KEY_ALBUM + " TEXT,"
-				+ KEY_PATH + " TEXT,"
-				+ KEY_LOCAL + " INTEGER," 
-				+ KEY_ART + " TEXT,"
-				+ KEY_HASH + " TEXT," 
-				+ KEY_IP + " TEXT,"
-				+ KEY_PORT + " INTEGER,"
-				+ KEY_JAM_INDEX + " INTEGER,"
+				+ KEY_TRACK_ID + " INTEGER REFERENCES " + TABLE_TRACKS + "(" + KEY_ID + "),"
+				+ KEY_JAM_POSITION + " TEXT,"
 				+ KEY_ADDED_BY + " TEXT," 
-				+ KEY_TIMESTAMP + " TEXT)";
+				+ KEY_TIMESTAMP + " TEXT,"
+				+ " UNIQUE (" + KEY_TIMESTAMP + ")"
+				+ " ON CONFLICT REPLACE)";
 		db.execSQL(CREATE_JAM_TABLE); 
+	}
+	
+	/**
+	 * Creates the views that the browse and search cursors 
+	 * read from. The track rows view joins each track to its 
+	 * album, artist and phone; the album rows view makes one 
+	 * DISPLAY_ALBUM header row per album, with track number -1 
+	 * so it sorts ahead of the album's tracks; and the songs 
+	 * view is both, with the columns (and column indices) of 
+	 * the songs table it replaces. 
+	 * 
+	 * @param SQLiteDatabase db
+	 */
+	private void createViews(SQLiteDatabase db) {
+		db.execSQL("CREATE VIEW " + VIEW_TRACK_ROWS + " AS SELECT " 
+				+ "t." + KEY_ID + " AS " + KEY_ID + ", " 
+				+ "t." + KEY_TITLE + " AS " + KEY_TITLE + ", " 
+				+ "ar." + KEY_NAME + " AS " + KEY_ARTIST + ", " 
+				+ "al." + KEY_TITLE + " AS " + KEY_ALBUM + ", " 
+				+ "t." + KEY_PATH + " AS " + KEY_PATH + ", " 
+				+ "t." + KEY_LOCAL + " AS " + KEY_LOCAL + ", " 
+				+ "al." + KEY_ART + " AS " + KEY_ART + ", " 
+				+ "t." + KEY_HASH + " AS " + KEY_HASH + ", " 
+				+ "p." + KEY_IP + " AS " + KEY_IP + ", " 
+				+ "p." + KEY_PORT + " AS " + KEY_PORT + ", " 
+				+ "t." + KEY_TRACK_NUM + " AS " + KEY_TRACK_NUM + ", " 
+				+ "al." + KEY_ART_HASH + " AS " + KEY_ART_HASH + ", " 
+				+ "t." + KEY_MEDIA_ID + " AS " + KEY_MEDIA_ID + ", " 
+				+ "t." + KEY_DATE_MODIFIED + " AS " + KEY_DATE_MODIFIED 
+				+ " FROM " + TABLE_TRACKS + " t" 
+				+ " JOIN " + TABLE_ALBUMS + " al ON al." + KEY_ID + " = t." + KEY_ALBUM_ID 
+				+ " JOIN " + TABLE_ARTISTS + " ar ON ar." + KEY_ID + " = al." + KEY_ARTIST_ID 
+				+ " JOIN " + TABLE_PEERS + " p ON p." + KEY_ID + " = t." + KEY_PEER_ID); 
 		
-		String CREATE_LOG_TABLE = "CREATE TABLE IF NOT EXISTS " + TABLE_LOG + "("
-				+ KEY_ID + " INTEGER PRIMARY KEY," 
-				+ KEY_START_TIME + " INTEGER,"
-				+ KEY_LATEST_TIME + " INTEGER," 
-				+ KEY_NUM_SONGS + " INTEGER DEFAULT 0,"
-				+ KEY_NUM_USERS + " INTEGER)";
-		db.execSQL(CREATE_LOG_TABLE);
+		db.execSQL("CREATE VIEW " + VIEW_ALBUM_ROWS + " AS SELECT " 
+				+ "-al." + KEY_ID + " AS " + KEY_ID + ", " 
+				+ "'" + ALBUM_ROW_TITLE + "' AS " + KEY_TITLE + ", " 
+				+ "ar." + KEY_NAME + " AS " + KEY_ARTIST + ", " 
+				+ "al." + KEY_TITLE + " AS " + KEY_ALBUM + ", " 
+				+ "'' AS " + KEY_PATH + ", " 
+				+ "EXISTS (SELECT 1 FROM " + TABLE_TRACKS + " t WHERE t." + KEY_ALBUM_ID + " = al." + KEY_ID 
+						+ " AND t." + KEY_LOCAL + " = 1) AS " + KEY_LOCAL + ", " 
+				+ "al." + KEY_ART + " AS " + KEY_ART + ", " 
+				+ "NULL AS " + KEY_HASH + ", " 
+				+ "p." + KEY_IP + " AS " + KEY_IP + ", " 
+				+ "p." + KEY_PORT + " AS " + KEY_PORT + ", " 
+				+ ALBUM_ROW_TRACK_NUM + " AS " + KEY_TRACK_NUM + ", " 
+				+ "al." + KEY_ART_HASH + " AS " + KEY_ART_HASH + ", " 
+				+ "NULL AS " + KEY_MEDIA_ID + ", " 
+				+ "NULL AS " + KEY_DATE_MODIFIED 
+				+ " FROM " + TABLE_ALBUMS + " al" 
+				+ " JOIN " + TABLE_ARTISTS + " ar ON ar." + KEY_ID + " = al." + KEY_ARTIST_ID 
+				+ " LEFT JOIN " + TABLE_PEERS + " p ON p." + KEY_ID + " = al." + KEY_PEER_ID); 
+		
+		db.execSQL("CREATE VIEW " + TABLE_SONGS + " AS SELECT * FROM " + VIEW_TRACK_ROWS 
+				+ " UNION ALL SELECT * FROM " + VIEW_ALBUM_ROWS); 
+	}
+	
+	/**
+	 * Creates the secondary indexes behind the hot lookups: 
+	 * tracks by hash, by title, by album (in track order), by 
+	 * phone and by music store ID; albums by title and by art 
+	 * hash; jam rows by position and by track. Artists, albums, 
+	 * phones and tracks are also indexed by their unique keys. 
+	 * EXPLAIN QUERY PLAN of each lookup in this class should 
+	 * show a SEARCH, not a SCAN, of its table. 
+	 * 
+	 * @param SQLiteDatabase db
+	 */
+	private void createIndexes(SQLiteDatabase db) {
+		db.execSQL("CREATE INDEX IF NOT EXISTS tracks_hash ON " + TABLE_TRACKS 
+				+ "(" + KEY_HASH + ")"); 
+		db.execSQL("CREATE INDEX IF NOT EXISTS tracks_title ON " + TABLE_TRACKS 
+				+ "(" + KEY_TITLE + ")"); 
+		db.execSQL("CREATE INDEX IF NOT EXISTS tracks_album ON " + TABLE_TRACKS 
+				+ "(" + KEY_ALBUM_ID + ", " + KEY_TRACK_NUM + ")"); 
+		db.execSQL("CREATE INDEX IF NOT EXISTS tracks_peer ON " + TABLE_TRACKS 
+				+ "(" + KEY_PEER_ID + ")"); 
+		db.execSQL("CREATE INDEX IF NOT EXISTS tracks_media_id ON " + TABLE_TRACKS 
+				+ "(" + KEY_MEDIA_ID + ")"); 
+		db.execSQL("CREATE INDEX IF NOT EXISTS albums_title ON " + TABLE_ALBUMS 
+				+ "(" + KEY_TITLE + ")"); 
+		db.execSQL("CREATE INDEX IF NOT EXISTS albums_art_hash ON " + TABLE_ALBUMS 
+				+ "(" + KEY_ART_HASH + ")"); 
+		
+		db.execSQL("CREATE INDEX IF NOT EXISTS jam_position ON " + TABLE_JAM 
+				+ "(" + KEY_JAM_POSITION + ")"); 
+		db.execSQL("CREATE INDEX IF NOT EXISTS jam_track ON " + TABLE_JAM 
+				+ "(" + KEY_TRACK_ID + ")"); 
+	}
+
+	/**
+	 * Creates the FTS4 full-text index over track titles, 
+	 * artists and albums, keyed by track ID. Triggers on the 
+	 * tracks table keep it in step with every insert, delete 
+	 * and update of a track's title or album, looking up the 
+	 * artist and album names by key. Fills the index from any 
+	 * tracks already present. 
+	 * 
+	 * @param SQLiteDatabase db
+	 */
+	private void createSearchIndex(SQLiteDatabase db) {
+		db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + TABLE_SONGS_SEARCH 
+				+ " USING fts4(" + KEY_TITLE + ", " + KEY_ARTIST + ", " + KEY_ALBUM + ")"); 
+		
+		String insertTokens = "INSERT INTO " + TABLE_SONGS_SEARCH 
+				+ "(docid, " + KEY_TITLE + ", " + KEY_ARTIST + ", " + KEY_ALBUM + ") " 
+				+ "SELECT new." + KEY_ID + ", new." + KEY_TITLE + ", ar." + KEY_NAME + ", al." + KEY_TITLE 
+				+ " FROM " + TABLE_ALBUMS + " al JOIN " + TABLE_ARTISTS + " ar ON ar." + KEY_ID + " = al." + KEY_ARTIST_ID 
+				+ " WHERE al." + KEY_ID + " = new." + KEY_ALBUM_ID + "; "; 
+		String deleteTokens = "DELETE FROM " + TABLE_SONGS_SEARCH 
+				+ " WHERE docid = old." + KEY_ID + "; "; 
+		
+		db.execSQL("CREATE TRIGGER IF NOT EXISTS songs_search_ai AFTER INSERT ON " + TABLE_TRACKS 
+				+ " BEGIN " + insertTokens + "END"); 
+		db.execSQL("CREATE TRIGGER IF NOT EXISTS songs_search_bd BEFORE DELETE ON " + TABLE_TRACKS 
+				+ " BEGIN " + deleteTokens + "END"); 
+		db.execSQL("CREATE TRIGGER IF NOT EXISTS songs_search_au AFTER UPDATE OF " + KEY_TITLE + ", " + KEY_ALBUM_ID 
+				+ " ON " + TABLE_TRACKS + " BEGIN " + deleteTokens + insertTokens + "END"); 
+		
+		db.execSQL("INSERT INTO " + TABLE_SONGS_SEARCH 
+				+ "(docid, " + KEY_TITLE + ", " + KEY_ARTIST + ", " + KEY_ALBUM + ") " 
+				+ "SELECT " + KEY_ID + ", " + KEY_TITLE + ", " + KEY_ARTIST + ", " + KEY_ALBUM 
+				+ " FROM " + VIEW_TRACK_ROWS); 
 	}
 
 	/**
-	 * Upgrades the database to a newer version. 
+	 * Upgrades the database to a newer version by applying each 
+	 * migration after the old version, in order, so that cached 
+	 * libraries, art paths and log rows survive the upgrade. 
+	 * Databases older than the first migration, or whose migration 
+	 * fails, are dropped and created again. 
 	 * 
 	 * @param SQLiteDatabase db
 	 * @param int oldVersion
@@ -165,15 +453,303 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 	 */
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		// Drop older tables if existed
+		if (oldVersion >= FIRST_MIGRATABLE_VERSION) {
+			try {
+				for (Migration migration : migrations) {
+					if (migration.version > oldVersion && migration.version <= newVersion) {
+						migration.apply(db); 
+					}
+				}
+				return; 
+			} catch (SQLException e) {
+				e.printStackTrace(); 
+			}
+		}
+		
+		// Drop older views and tables if existed
+		Cursor views = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'view'", null); 
+		try {
+			while (views.moveToNext()) {
+				db.execSQL("DROP VIEW IF EXISTS " + views.getString(0)); 
+			}
+		} finally {
+			views.close(); 
+		}
 		db.execSQL("DROP TABLE IF EXISTS " + TABLE_SONGS);
+		// Left behind by a version 29 migration that failed part way
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_SONGS + "_v28");
 		db.execSQL("DROP TABLE IF EXISTS " + TABLE_JAM);
 		db.execSQL("DROP TABLE IF EXISTS " + TABLE_LOG);
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_SONGS_SEARCH);
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_TRACKS);
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_ALBUMS);
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_ARTISTS);
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_PEERS);
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_DUPLICATE_MEDIA);
 		
 		// Create tables again
 		onCreate(db);
 	}
 	
+	/**
+	 * One step of a schema upgrade, which brings a database 
+	 * at the previous version to the given version. 
+	 * 
+	 * Each step runs its own SQL for that version rather than 
+	 * calling onCreate() helpers, which always build the latest 
+	 * schema; only the latest step may share them, until the 
+	 * schema next changes. Add a step here whenever 
+	 * DATABASE_VERSION changes. 
+	 */
+	private static abstract class Migration {
+		final int version; 
+		
+		Migration(int version) {
+			this.version = version; 
+		}
+		
+		abstract void apply(SQLiteDatabase db); 
+	}
+	
+	/* Schema migrations, in ascending version order. */
+	private final Migration[] migrations = {
+		new Migration(24) {
+			@Override
+			void apply(SQLiteDatabase db) {
+				db.execSQL("CREATE INDEX IF NOT EXISTS songs_hash ON " + TABLE_SONGS 
+						+ "(" + KEY_HASH + ")"); 
+				db.execSQL("CREATE INDEX IF NOT EXISTS songs_artist_album ON " + TABLE_SONGS 
+						+ "(" + KEY_ARTIST + ", " + KEY_ALBUM + ", " + KEY_TRACK_NUM + ")"); 
+				db.execSQL("CREATE INDEX IF NOT EXISTS songs_album ON " + TABLE_SONGS 
+						+ "(" + KEY_ALBUM + ")"); 
+				db.execSQL("CREATE INDEX IF NOT EXISTS songs_ip ON " + TABLE_SONGS 
+						+ "(" + KEY_IP + ")"); 
+				db.execSQL("CREATE INDEX IF NOT EXISTS jam_hash ON " + TABLE_JAM 
+						+ "(" + KEY_HASH + ")"); 
+				db.execSQL("CREATE INDEX IF NOT EXISTS jam_ip ON " + TABLE_JAM 
+						+ "(" + KEY_IP + ")"); 
+			}
+		}, 
+		new Migration(25) {
+			@Override
+			void apply(SQLiteDatabase db) {
+				// Superseded by version 29, which indexes the tracks table instead
+			}
+		}, 
+		new Migration(26) {
+			@Override
+			void apply(SQLiteDatabase db) {
+				// Superseded by version 29, which rebuilds the jam table empty
+			}
+		}, 
+		new Migration(27) {
+			@Override
+			void apply(SQLiteDatabase db) {
+				db.execSQL("ALTER TABLE " + TABLE_SONGS + " ADD COLUMN " + KEY_ART_HASH + " TEXT"); 
+				db.execSQL("CREATE INDEX IF NOT EXISTS songs_art_hash ON " + TABLE_SONGS 
+						+ "(" + KEY_ART_HASH + ")"); 
+			}
+		}, 
+		new Migration(28) {
+			@Override
+			void apply(SQLiteDatabase db) {
+				db.execSQL("ALTER TABLE " + TABLE_SONGS + " ADD COLUMN " + KEY_MEDIA_ID + " INTEGER"); 
+				db.execSQL("ALTER TABLE " + TABLE_SONGS + " ADD COLUMN " + KEY_DATE_MODIFIED + " INTEGER"); 
+				db.execSQL("CREATE INDEX IF NOT EXISTS songs_media_id ON " + TABLE_SONGS 
+						+ "(" + KEY_MEDIA_ID + ")"); 
+			}
+		}, 
+		new Migration(29) {
+			@Override
+			void apply(SQLiteDatabase db) {
+				String oldSongs = TABLE_SONGS + "_v28"; 
+				db.execSQL("DROP TRIGGER IF EXISTS songs_search_ai"); 
+				db.execSQL("DROP TRIGGER IF EXISTS songs_search_bd"); 
+				db.execSQL("DROP TRIGGER IF EXISTS songs_search_bu"); 
+				db.execSQL("DROP TRIGGER IF EXISTS songs_search_au"); 
+				db.execSQL("DROP TABLE IF EXISTS " + TABLE_SONGS_SEARCH); 
+				db.execSQL("ALTER TABLE " + TABLE_SONGS + " RENAME TO " + oldSongs); 
+				
+				// The version 29 library tables
+				String CREATE_ARTISTS_TABLE = "CREATE TABLE " + TABLE_ARTISTS + "("
+						+ KEY_ID + " INTEGER PRIMARY KEY," 
+						+ KEY_NAME + " TEXT UNIQUE)";
+				db.execSQL(CREATE_ARTISTS_TABLE);
+				
+				String CREATE_PEERS_TABLE = "CREATE TABLE " + TABLE_PEERS + "("
+						+ KEY_ID + " INTEGER PRIMARY KEY," 
+						+ KEY_IP + " TEXT UNIQUE,"
+						+ KEY_PORT + " INTEGER)";
+				db.execSQL(CREATE_PEERS_TABLE);
+				
+				String CREATE_ALBUMS_TABLE = "CREATE TABLE " + TABLE_ALBUMS + "("
+						+ KEY_ID + " INTEGER PRIMARY KEY," 
+						+ KEY_ARTIST_ID + " INTEGER REFERENCES " + TABLE_ARTISTS + "(" + KEY_ID + "),"
+						+ KEY_TITLE + " TEXT,"
+						+ KEY_ART + " TEXT,"
+						+ KEY_ART_HASH + " TEXT,"
+						+ KEY_PEER_ID + " INTEGER REFERENCES " + TABLE_PEERS + "(" + KEY_ID + "),"
+						+ " UNIQUE (" 
+						+ KEY_ARTIST_ID + ", " 
+						+ KEY_TITLE + "))";
+				db.execSQL(CREATE_ALBUMS_TABLE);
+				
+				String CREATE_TRACKS_TABLE = "CREATE TABLE " + TABLE_TRACKS + "("
+						+ KEY_ID + " INTEGER PRIMARY KEY," 
+						+ KEY_ALBUM_ID + " INTEGER REFERENCES " + TABLE_ALBUMS + "(" + KEY_ID + "),"
+						+ KEY_PEER_ID + " INTEGER REFERENCES " + TABLE_PEERS + "(" + KEY_ID + "),"
+						+ KEY_TITLE + " TEXT,"
+						+ KEY_PATH + " TEXT,"
+						+ KEY_LOCAL + " INTEGER," 
+						+ KEY_HASH + " TEXT," 
+						+ KEY_TRACK_NUM + " INTEGER,"
+						+ KEY_MEDIA_ID + " INTEGER,"
+						+ KEY_DATE_MODIFIED + " INTEGER,"
+						+ " UNIQUE (" 
+						+ KEY_ALBUM_ID + ", " 
+						+ KEY_TITLE + ")"
+						+ " ON CONFLICT IGNORE)";
+				db.execSQL(CREATE_TRACKS_TABLE);
+				
+				// Split the songs into artists, phones, albums and tracks
+				db.execSQL("INSERT INTO " + TABLE_ARTISTS + " (" + KEY_NAME + ") " 
+						+ "SELECT DISTINCT " + KEY_ARTIST + " FROM " + oldSongs); 
+				db.execSQL("INSERT INTO " + TABLE_PEERS + " (" + KEY_IP + ", " + KEY_PORT + ") " 
+						+ "SELECT " + KEY_IP + ", MAX(" + KEY_PORT + ") FROM " + oldSongs 
+						+ " GROUP BY " + KEY_IP); 
+				String joinArtistAndPeer = " FROM " + oldSongs + " s" 
+						+ " JOIN " + TABLE_ARTISTS + " ar ON ar." + KEY_NAME + " IS s." + KEY_ARTIST 
+						+ " JOIN " + TABLE_PEERS + " p ON p." + KEY_IP + " IS s." + KEY_IP; 
+				db.execSQL("INSERT INTO " + TABLE_ALBUMS + " (" + KEY_ARTIST_ID + ", " + KEY_TITLE + ", " 
+						+ KEY_ART + ", " + KEY_ART_HASH + ", " + KEY_PEER_ID + ") " 
+						+ "SELECT ar." + KEY_ID + ", s." + KEY_ALBUM + ", MAX(s." + KEY_ART + "), " 
+						+ "MAX(s." + KEY_ART_HASH + "), MIN(p." + KEY_ID + ")" + joinArtistAndPeer 
+						+ " GROUP BY ar." + KEY_ID + ", s." + KEY_ALBUM); 
+				db.execSQL("INSERT INTO " + TABLE_TRACKS + " (" + KEY_ALBUM_ID + ", " + KEY_PEER_ID + ", " 
+						+ KEY_TITLE + ", " + KEY_PATH + ", " + KEY_LOCAL + ", " + KEY_HASH + ", " 
+						+ KEY_TRACK_NUM + ", " + KEY_MEDIA_ID + ", " + KEY_DATE_MODIFIED + ") " 
+						+ "SELECT al." + KEY_ID + ", p." + KEY_ID + ", s." + KEY_TITLE + ", s." + KEY_PATH + ", " 
+						+ "s." + KEY_LOCAL + ", s." + KEY_HASH + ", s." + KEY_TRACK_NUM + ", " 
+						+ "s." + KEY_MEDIA_ID + ", s." + KEY_DATE_MODIFIED + joinArtistAndPeer 
+						+ " JOIN " + TABLE_ALBUMS + " al ON al." + KEY_ARTIST_ID + " = ar." + KEY_ID 
+						+ " AND al." + KEY_TITLE + " IS s." + KEY_ALBUM 
+						+ " WHERE NOT (s." + KEY_TITLE + " = '" + ALBUM_ROW_TITLE + "' AND s." 
+						+ KEY_TRACK_NUM + " = " + ALBUM_ROW_TRACK_NUM + ")" 
+						+ " ORDER BY s." + KEY_ID); 
+				db.execSQL("DROP TABLE " + oldSongs); 
+				
+				// The jam table only mirrors the in-memory jam, so it is rebuilt empty
+				db.execSQL("DROP TABLE IF EXISTS " + TABLE_JAM); 
+				
+				String CREATE_JAM_TABLE = "CREATE TABLE " + TABLE_JAM + "("
+						+ KEY_ID + " INTEGER PRIMARY KEY," 
+						+ KEY_TRACK_ID + " INTEGER REFERENCES " + TABLE_TRACKS + "(" + KEY_ID + "),"
+						+ KEY_JAM_POSITION + " TEXT,"
+						+ KEY_ADDED_BY + " TEXT," 
+						+ KEY_TIMESTAMP + " TEXT,"
+						+ " UNIQUE (" + KEY_TIMESTAMP + ")"
+						+ " ON CONFLICT REPLACE)";
+				db.execSQL(CREATE_JAM_TABLE); 
+				
+				db.execSQL("CREATE VIEW " + VIEW_TRACK_ROWS + " AS SELECT " 
+						+ "t." + KEY_ID + " AS " + KEY_ID + ", " 
+						+ "t." + KEY_TITLE + " AS " + KEY_TITLE + ", " 
+						+ "ar." + KEY_NAME + " AS " + KEY_ARTIST + ", " 
+						+ "al." + KEY_TITLE + " AS " + KEY_ALBUM + ", " 
+						+ "t." + KEY_PATH + " AS " + KEY_PATH + ", " 
+						+ "t." + KEY_LOCAL + " AS " + KEY_LOCAL + ", " 
+						+ "al." + KEY_ART + " AS " + KEY_ART + ", " 
+						+ "t." + KEY_HASH + " AS " + KEY_HASH + ", " 
+						+ "p." + KEY_IP + " AS " + KEY_IP + ", " 
+						+ "p." + KEY_PORT + " AS " + KEY_PORT + ", " 
+						+ "t." + KEY_TRACK_NUM + " AS " + KEY_TRACK_NUM + ", " 
+						+ "al." + KEY_ART_HASH + " AS " + KEY_ART_HASH + ", " 
+						+ "t." + KEY_MEDIA_ID + " AS " + KEY_MEDIA_ID + ", " 
+						+ "t." + KEY_DATE_MODIFIED + " AS " + KEY_DATE_MODIFIED 
+						+ " FROM " + TABLE_TRACKS + " t" 
+						+ " JOIN " + TABLE_ALBUMS + " al ON al." + KEY_ID + " = t." + KEY_ALBUM_ID 
+						+ " JOIN " + TABLE_ARTISTS + " ar ON ar." + KEY_ID + " = al." + KEY_ARTIST_ID 
+						+ " JOIN " + TABLE_PEERS + " p ON p." + KEY_ID + " = t." + KEY_PEER_ID); 
+				
+				db.execSQL("CREATE VIEW " + VIEW_ALBUM_ROWS + " AS SELECT " 
+						+ "-al." + KEY_ID + " AS " + KEY_ID + ", " 
+						+ "'" + ALBUM_ROW_TITLE + "' AS " + KEY_TITLE + ", " 
+						+ "ar." + KEY_NAME + " AS " + KEY_ARTIST + ", " 
+						+ "al." + KEY_TITLE + " AS " + KEY_ALBUM + ", " 
+						+ "'' AS " + KEY_PATH + ", " 
+						+ "EXISTS (SELECT 1 FROM " + TABLE_TRACKS + " t WHERE t." + KEY_ALBUM_ID + " = al." + KEY_ID 
+								+ " AND t." + KEY_LOCAL + " = 1) AS " + KEY_LOCAL + ", " 
+						+ "al." + KEY_ART + " AS " + KEY_ART + ", " 
+						+ "NULL AS " + KEY_HASH + ", " 
+						+ "p." + KEY_IP + " AS " + KEY_IP + ", " 
+						+ "p." + KEY_PORT + " AS " + KEY_PORT + ", " 
+						+ ALBUM_ROW_TRACK_NUM + " AS " + KEY_TRACK_NUM + ", " 
+						+ "al." + KEY_ART_HASH + " AS " + KEY_ART_HASH + ", " 
+						+ "NULL AS " + KEY_MEDIA_ID + ", " 
+						+ "NULL AS " + KEY_DATE_MODIFIED 
+						+ " FROM " + TABLE_ALBUMS + " al" 
+						+ " JOIN " + TABLE_ARTISTS + " ar ON ar." + KEY_ID + " = al." + KEY_ARTIST_ID 
+						+ " LEFT JOIN " + TABLE_PEERS + " p ON p." + KEY_ID + " = al." + KEY_PEER_ID); 
+				
+				db.execSQL("CREATE VIEW " + TABLE_SONGS + " AS SELECT * FROM " + VIEW_TRACK_ROWS 
+						+ " UNION ALL SELECT * FROM " + VIEW_ALBUM_ROWS); 
+				
+				db.execSQL("CREATE INDEX IF NOT EXISTS tracks_hash ON " + TABLE_TRACKS 
+						+ "(" + KEY_HASH + ")"); 
+				db.execSQL("CREATE INDEX IF NOT EXISTS tracks_album ON " + TABLE_TRACKS 
+						+ "(" + KEY_ALBUM_ID + ", " + KEY_TRACK_NUM + ")"); 
+				db.execSQL("CREATE INDEX IF NOT EXISTS tracks_peer ON " + TABLE_TRACKS 
+						+ "(" + KEY_PEER_ID + ")"); 
+				db.execSQL("CREATE INDEX IF NOT EXISTS tracks_media_id ON " + TABLE_TRACKS 
+						+ "(" + KEY_MEDIA_ID + ")"); 
+				db.execSQL("CREATE INDEX IF NOT EXISTS albums_title ON " + TABLE_ALBUMS 
+						+ "(" + KEY_TITLE + ")"); 
+				db.execSQL("CREATE INDEX IF NOT EXISTS albums_art_hash ON " + TABLE_ALBUMS 
+						+ "(" + KEY_ART_HASH + ")"); 
+				db.execSQL("CREATE INDEX IF NOT EXISTS jam_position ON " + TABLE_JAM 
+						+ "(" + KEY_JAM_POSITION + ")"); 
+				db.execSQL("CREATE INDEX IF NOT EXISTS jam_track ON " + TABLE_JAM 
+						+ "(" + KEY_TRACK_ID + ")"); 
+				
+				db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + TABLE_SONGS_SEARCH 
+						+ " USING fts4(" + KEY_TITLE + ", " + KEY_ARTIST + ", " + KEY_ALBUM + ")"); 
+				
+				String insertTokens = "INSERT INTO " + TABLE_SONGS_SEARCH 
+						+ "(docid, " + KEY_TITLE + ", " + KEY_ARTIST + ", " + KEY_ALBUM + ") " 
+						+ "SELECT new." + KEY_ID + ", new." + KEY_TITLE + ", ar." + KEY_NAME + ", al." + KEY_TITLE 
+						+ " FROM " + TABLE_ALBUMS + " al JOIN " + TABLE_ARTISTS + " ar ON ar." + KEY_ID + " = al." + KEY_ARTIST_ID 
+						+ " WHERE al." + KEY_ID + " = new." + KEY_ALBUM_ID + "; "; 
+				String deleteTokens = "DELETE FROM " + TABLE_SONGS_SEARCH 
+						+ " WHERE docid = old." + KEY_ID + "; "; 
+				
+				db.execSQL("CREATE TRIGGER IF NOT EXISTS songs_search_ai AFTER INSERT ON " + TABLE_TRACKS 
+						+ " BEGIN " + insertTokens + "END"); 
+				db.execSQL("CREATE TRIGGER IF NOT EXISTS songs_search_bd BEFORE DELETE ON " + TABLE_TRACKS 
+						+ " BEGIN " + deleteTokens + "END"); 
+				db.execSQL("CREATE TRIGGER IF NOT EXISTS songs_search_au AFTER UPDATE OF " + KEY_TITLE + ", " + KEY_ALBUM_ID 
+						+ " ON " + TABLE_TRACKS + " BEGIN " + deleteTokens + insertTokens + "END"); 
+				
+				db.execSQL("INSERT INTO " + TABLE_SONGS_SEARCH 
+						+ "(docid, " + KEY_TITLE + ", " + KEY_ARTIST + ", " + KEY_ALBUM + ") " 
+						+ "SELECT " + KEY_ID + ", " + KEY_TITLE + ", " + KEY_ARTIST + ", " + KEY_ALBUM 
+						+ " FROM " + VIEW_TRACK_ROWS); 
+			}
+		}, 
+		new Migration(30) {
+			@Override
+			void apply(SQLiteDatabase db) {
+				db.execSQL("CREATE INDEX IF NOT EXISTS tracks_title ON " + TABLE_TRACKS 
+						+ "(" + KEY_TITLE + ")"); 
+			}
+		}, 
+		new Migration(31) {
+			@Override
+			void apply(SQLiteDatabase db) {
+				createDuplicateMediaTable(db); 
+			}
+		}
+	}; 
+	
 	/**
 	 * Drops the given table from the database. 
 	 * 
@@ -185,93 +761,385 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 	}
 	
 	/**
-	 * Adds a new song to the music library,
-	 * stored in the songs table. 
+	 * Adds a new song to the music library, 
+	 * along with its artist, album and phone. 
 	 * 
 	 * @param Song song
 	 */
 	public void addSongToLibrary(Song song){
-		// 1. get reference to writable DB
-		SQLiteDatabase db = this.getWritableDatabase();
-
-		// 2. create ContentValues to add key "column"/value
-		// key/value -> keys = column names/ values = column values
-		ContentValues values = new ContentValues();
-		values.put(KEY_TITLE, song.getTitle()); 
-		values.put(KEY_ARTIST, song.getArtist());
-		values.put(KEY_ALBUM, song.getAlbum());
-		values.put(KEY_PATH, song.getPath());
-		values.put(KEY_ART, song.getAlbumArt());
-		values.put(KEY_HASH, Integer.toString(song.hashCode())); 
-		values.put(KEY_IP, song.getIpAddr());
-		values.put(KEY_PORT, song.getPort());
-		values.put(KEY_TRACK_NUM, song.getTrackNum()); 
-
-		int local = 0; 
-		if (song.isLocal()) {
-			local = 1; 
+		SongInserter inserter = beginSongInsert(LOAD_BATCH_SIZE); 
+		try {
+			inserter.add(song); 
+			inserter.finish(); 
+		} finally {
+			inserter.close(); 
 		}
-		values.put(KEY_LOCAL, local);
+	}
 
-		// 3. insert
-		db.insert(TABLE_SONGS, null, values); 
+	/**
+	 * Starts a bulk load of songs into the music library. 
+	 * 
+	 * Songs added through the returned SongInserter share 
+	 * precompiled statements and are committed in 
+	 * transactions of batchSize rows, instead of one autocommit 
+	 * (and one fsync) per row. The UI is refreshed after every 
+	 * commit so readers see the library fill in. 
+	 * 
+	 * @param int batchSize
+	 * @returns SongInserter inserter, to be finished with finish()
+	 */
+	public SongInserter beginSongInsert(int batchSize) {
+		return new SongInserter(this.getWritableDatabase(), batchSize); 
+	}
+	
+	/**
+	 * Bulk loader for the music library. Looks up or adds each 
+	 * song's artist, album and phone, remembering their keys for 
+	 * the rest of the load, then adds the song as a track. 
+	 * Created by beginSongInsert(); not thread-safe. 
+	 */
+	public class SongInserter {
+		private final SQLiteDatabase db; 
+		private final SQLiteStatement findArtist; 
+		private final SQLiteStatement insertArtist; 
+		private final SQLiteStatement findPeer; 
+		private final SQLiteStatement insertPeer; 
+		private final SQLiteStatement updatePeerPort; 
+		private final SQLiteStatement findAlbum; 
+		private final SQLiteStatement insertAlbum; 
+		private final SQLiteStatement fillAlbumArt; 
+		private final SQLiteStatement insert; 
+		private final SQLiteStatement insertDuplicate; 
+		private final HashMap<String, Long> artistIds = new HashMap<String, Long>(); 
+		private final HashMap<String, Long> peerIds = new HashMap<String, Long>(); 
+		private final HashMap<String, Long> albumIds = new HashMap<String, Long>(); 
+		private final int batchSize; 
+		private int batched = 0; 
+		private int inserted = 0; 
+		
+		private SongInserter(SQLiteDatabase db, int batchSize) {
+			this.db = db; 
+			this.batchSize = batchSize; 
+			this.findArtist = db.compileStatement("SELECT " + KEY_ID + " FROM " + TABLE_ARTISTS 
+					+ " WHERE " + KEY_NAME + " IS ?"); 
+			this.insertArtist = db.compileStatement("INSERT INTO " + TABLE_ARTISTS 
+					+ " (" + KEY_NAME + ") VALUES (?)"); 
+			this.findPeer = db.compileStatement("SELECT " + KEY_ID + " FROM " + TABLE_PEERS 
+					+ " WHERE " + KEY_IP + " IS ?"); 
+			this.insertPeer = db.compileStatement("INSERT INTO " + TABLE_PEERS 
+					+ " (" + KEY_IP + ", " + KEY_PORT + ") VALUES (?, ?)"); 
+			this.updatePeerPort = db.compileStatement("UPDATE " + TABLE_PEERS 
+					+ " SET " + KEY_PORT + " = ? WHERE " + KEY_ID + " = ?"); 
+			this.findAlbum = db.compileStatement("SELECT " + KEY_ID + " FROM " + TABLE_ALBUMS 
+					+ " WHERE " + KEY_ARTIST_ID + " = ? AND " + KEY_TITLE + " IS ?"); 
+			this.insertAlbum = db.compileStatement("INSERT INTO " + TABLE_ALBUMS + " (" 
+					+ KEY_ARTIST_ID + ", " + KEY_TITLE + ", " + KEY_ART + ", " 
+					+ KEY_ART_HASH + ", " + KEY_PEER_ID + ") VALUES (?, ?, ?, ?, ?)"); 
+			this.fillAlbumArt = db.compileStatement("UPDATE " + TABLE_ALBUMS + " SET " 
+					+ KEY_ART + " = CASE WHEN " + KEY_ART + " IS NULL OR " + KEY_ART + " = '' THEN ? ELSE " + KEY_ART + " END, " 
+					+ KEY_ART_HASH + " = COALESCE(" + KEY_ART_HASH + ", ?) WHERE " + KEY_ID + " = ?"); 
+			this.insert = db.compileStatement("INSERT INTO " + TABLE_TRACKS + " (" 
+					+ KEY_ALBUM_ID + ", " + KEY_PEER_ID + ", " + KEY_TITLE + ", " 
+					+ KEY_PATH + ", " + KEY_LOCAL + ", " + KEY_HASH + ", " 
+					+ KEY_TRACK_NUM + ", " + KEY_MEDIA_ID + ", " 
+					+ KEY_DATE_MODIFIED + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)"); 
+			this.insertDuplicate = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_DUPLICATE_MEDIA 
+					+ " (" + KEY_MEDIA_ID + ", " + KEY_DATE_MODIFIED + ") VALUES (?, ?)"); 
+			db.beginTransaction(); 
+		}
+		
+		/**
+		 * Inserts the song, committing the current batch when full. 
+		 * 
+		 * @param Song song
+		 */
+		public void add(Song song) {
+			add(song, -1, -1); 
+		}
+		
+		/**
+		 * Inserts a local song read from the music store, along with 
+		 * its music store ID and modification time, so that later 
+		 * rescans can tell whether it has changed. 
+		 * 
+		 * An album header row (a DISPLAY_ALBUM song with track 
+		 * number -1) from an older phone's library only adds its 
+		 * album, as the songs view makes the header rows itself. 
+		 * A music store song that duplicates a track already in 
+		 * the album is recorded in the duplicate media table. 
+		 * 
+		 * @param Song song
+		 * @param long mediaId, or -1 if not from the music store
+		 * @param long dateModified, or -1 if not from the music store
+		 */
+		public void add(Song song, long mediaId, long dateModified) {
+			long peerId = getPeerId(song.getIpAddr(), song.getPort()); 
+			long albumId = getAlbumId(getArtistId(song.getArtist()), song.getAlbum(), 
+					song.getAlbumArt(), song.getArtHash(), peerId); 
+			if (ALBUM_ROW_TITLE.equals(song.getTitle()) && song.getTrackNum() == ALBUM_ROW_TRACK_NUM) {
+				return; 
+			}
+			
+			insert.clearBindings(); 
+			insert.bindLong(1, albumId); 
+			insert.bindLong(2, peerId); 
+			bindString(insert, 3, song.getTitle()); 
+			bindString(insert, 4, song.getPath()); 
+			insert.bindLong(5, song.isLocal() ? 1 : 0); 
+			bindString(insert, 6, Integer.toString(song.hashCode())); 
+			insert.bindLong(7, song.getTrackNum()); 
+			if (mediaId >= 0) {
+				insert.bindLong(8, mediaId); 
+				insert.bindLong(9, dateModified); 
+			}
+			if (insert.executeInsert() >= 0) {
+				inserted++; 
+			} else if (mediaId >= 0) {
+				// Ignored by UNIQUE (album_id, title)
+				insertDuplicate.bindLong(1, mediaId); 
+				insertDuplicate.bindLong(2, dateModified); 
+				insertDuplicate.executeInsert(); 
+			}
+			
+			if (++batched >= batchSize) {
+				batched = 0; 
+				db.setTransactionSuccessful(); 
+				db.endTransaction(); 
+				g.sendUIMessage(0); 
+				db.beginTransaction(); 
+			}
+		}
+		
+		private long getArtistId(String name) {
+			Long id = artistIds.get(name); 
+			if (id == null) {
+				bindString(findArtist, 1, name); 
+				id = queryId(findArtist); 
+				if (id < 0) {
+					bindString(insertArtist, 1, name); 
+					id = insertArtist.executeInsert(); 
+				}
+				artistIds.put(name, id); 
+			}
+			return id; 
+		}
+		
+		/**
+		 * Returns the key of the phone with the given address, 
+		 * updating its port the first time it is seen in this load. 
+		 */
+		private long getPeerId(String ipAddr, int port) {
+			Long id = peerIds.get(ipAddr); 
+			if (id == null) {
+				bindString(findPeer, 1, ipAddr); 
+				id = queryId(findPeer); 
+				if (id < 0) {
+					bindString(insertPeer, 1, ipAddr); 
+					insertPeer.bindLong(2, port); 
+					id = insertPeer.executeInsert(); 
+				} else {
+					updatePeerPort.bindLong(1, port); 
+					updatePeerPort.bindLong(2, id); 
+					updatePeerPort.executeUpdateDelete(); 
+				}
+				peerIds.put(ipAddr, id); 
+			}
+			return id; 
+		}
+		
+		/**
+		 * Returns the key of the artist's album with the given title. 
+		 * The first time the album is seen in this load, its art is 
+		 * set from the song if the album doesn't have any yet. 
+		 */
+		private long getAlbumId(long artistId, String title, String art, String artHash, long peerId) {
+			String key = artistId + "\u0000" + title; 
+			Long id = albumIds.get(key); 
+			if (id == null) {
+				findAlbum.bindLong(1, artistId); 
+				bindString(findAlbum, 2, title); 
+				id = queryId(findAlbum); 
+				if (id < 0) {
+					insertAlbum.bindLong(1, artistId); 
+					bindString(insertAlbum, 2, title); 
+					bindString(insertAlbum, 3, art); 
+					bindString(insertAlbum, 4, artHash); 
+					insertAlbum.bindLong(5, peerId); 
+					id = insertAlbum.executeInsert(); 
+				} else if ((art != null && !art.equals("")) || artHash != null) {
+					bindString(fillAlbumArt, 1, art); 
+					bindString(fillAlbumArt, 2, artHash); 
+					fillAlbumArt.bindLong(3, id); 
+					fillAlbumArt.executeUpdateDelete(); 
+				}
+				albumIds.put(key, id); 
+			}
+			return id; 
+		}
+		
+		/**
+		 * Commits the last batch and releases the statements. 
+		 * 
+		 * @returns int number of songs inserted
+		 */
+		public int finish() {
+			try {
+				db.setTransactionSuccessful(); 
+			} finally {
+				close(); 
+			}
+			g.sendUIMessage(0); 
+			return inserted; 
+		}
+		
+		/**
+		 * Ends the bulk load. Unless finish() was called, 
+		 * the songs of the last uncommitted batch are discarded. 
+		 */
+		public void close() {
+			if (db.inTransaction()) {
+				db.endTransaction(); 
+			}
+			findArtist.close(); 
+			insertArtist.close(); 
+			findPeer.close(); 
+			insertPeer.close(); 
+			updatePeerPort.close(); 
+			findAlbum.close(); 
+			insertAlbum.close(); 
+			fillAlbumArt.close(); 
+			insert.close(); 
+			insertDuplicate.close(); 
+		}
+	}
+	
+	/**
+	 * Binds a string to a statement, or null if it is null. 
+	 */
+	private static void bindString(SQLiteStatement statement, int index, String value) {
+		if (value == null) {
+			statement.bindNull(index); 
+		} else {
+			statement.bindString(index, value); 
+		}
+	}
+	
+	/**
+	 * Runs a statement selecting a single key, 
+	 * and returns it, or -1 if there is no row. 
+	 */
+	private static long queryId(SQLiteStatement statement) {
+		try {
+			return statement.simpleQueryForLong(); 
+		} catch (SQLiteDoneException e) {
+			return -1; 
+		}
 	}
 
 	/**
-	 * Adds a new song to the Jam at the given 
-	 * index with the given timestamp as an ID. 
+	 * Replaces the contents of the jam table with the given 
+	 * songs in a single transaction. 
 	 * 
-	 * @param Song song
-	 * @param int index
-	 * @param String timestamp
+	 * @param List<Song> songs
 	 */
-	public void addSongToJam(Song song, int index, String timestamp) {
-		// 1. get reference to writable DB
+	public void saveJam(List<Song> songs) {
 		SQLiteDatabase db = this.getWritableDatabase();
-
-
-		// 2. create ContentValues to add key "column"/value
-		// key/value -> keys = column names/ values = column values
-		ContentValues values = new ContentValues();
-		values.put(KEY_TITLE, song.getTitle()); 
-		values.put(KEY_ARTIST, song.getArtist());
-		values.put(KEY_ALBUM, song.getAlbum());
-		values.put(KEY_PATH, song.getPath());
-		values.put(KEY_ART, song.getAlbumArt());
-		values.put(KEY_HASH, Integer.toString(song.hashCode())); 
-		values.put(KEY_IP, song.getIpAddr());
-		values.put(KEY_PORT, song.getPort());
-		values.put(KEY_JAM_INDEX, index); 
-		values.put(KEY_ADDED_BY, song.getAddedBy());		
-		values.put(KEY_TIMESTAMP, timestamp); 
-		
-		int local = 0; 
-		if (song.isLocal()) {
-			local = 1; 
+		db.beginTransaction(); 
+		try {
+			db.delete(TABLE_JAM, null, null);
+			for (Song song : songs) {
+				addSongToJam(song); 
+			}
+			db.setTransactionSuccessful(); 
+		} finally {
+			db.endTransaction(); 
+		}
+	}
+	
+	/**
+	 * Writes the rows of the given songs to the jam table, 
+	 * replacing any earlier rows with the same timestamp IDs, 
+	 * and deletes the rows with the given removed timestamp IDs, 
+	 * in a single transaction. 
+	 * 
+	 * @param List<Song> written
+	 * @param List<String> removedJamIds
+	 */
+	public void updateJam(List<Song> written, List<String> removedJamIds) {
+		if (written.isEmpty() && removedJamIds.isEmpty()) {
+			return; 
 		}
-		values.put(KEY_LOCAL, local);
+		SQLiteDatabase db = this.getWritableDatabase();
+		db.beginTransaction(); 
+		try {
+			SQLiteStatement delete = getStatement(DELETE_JAM_SONG); 
+			synchronized (delete) {
+				for (String jamId : removedJamIds) {
+					bindString(delete, 1, jamId); 
+					delete.executeUpdateDelete(); 
+				}
+			}
+			for (Song song : written) {
+				addSongToJam(song); 
+			}
+			db.setTransactionSuccessful(); 
+		} finally {
+			db.endTransaction(); 
+		}
+	}
 
-		// 3. insert
-		db.insert(TABLE_JAM, null, values); 
+	/**
+	 * Adds a song to the jam table at its position 
+	 * key, with its timestamp ID, referring to the 
+	 * track in the library with the song's hash. 
+	 * Must be called inside a transaction. 
+	 * 
+	 * @param Song song
+	 */
+	private void addSongToJam(Song song) {
+		SQLiteStatement insert = getStatement(INSERT_JAM_SONG); 
+		synchronized (insert) {
+			bindString(insert, 1, Integer.toString(song.hashCode())); 
+			bindString(insert, 2, song.getJamPosition()); 
+			bindString(insert, 3, song.getAddedBy()); 
+			bindString(insert, 4, song.getJamID()); 
+			insert.executeInsert(); 
+		}
 	}
+	
+	private static final String INSERT_JAM_SONG = "INSERT INTO " + TABLE_JAM + " (" 
+			+ KEY_TRACK_ID + ", " + KEY_JAM_POSITION + ", " + KEY_ADDED_BY + ", " + KEY_TIMESTAMP 
+			+ ") VALUES ((SELECT " + KEY_ID + " FROM " + TABLE_TRACKS + " WHERE " + KEY_HASH + " = ? LIMIT 1), ?, ?, ?)"; 
+	
+	private static final String DELETE_JAM_SONG = "DELETE FROM " + TABLE_JAM + " WHERE " + KEY_TIMESTAMP + " = ?"; 
 
 	/**
-	 * Returns a cursor grouped by artists from the songs table. 
+	 * Returns a cursor with one track row per artist, 
+	 * in artist order. 
 	 * 
 	 * @returns Cursor artistsCursor
 	 */
 	public Cursor getAllArtists() {
-		String query = "SELECT * FROM " + TABLE_SONGS + " "
-				+ "GROUP BY " + KEY_ARTIST; 
-
 		SQLiteDatabase db = this.getWritableDatabase();
-		Cursor cursor = db.rawQuery(query, null);
+		Cursor cursor = db.rawQuery(ALL_ARTISTS, null);
 
 		return cursor; 
 	}
 
+	// One track ID for each artist, found through the album keys instead of grouping by name
+	private static final String ARTIST_TRACK_IDS = "SELECT (SELECT MAX(t." + KEY_ID + ") FROM " 
+			+ TABLE_ALBUMS + " al JOIN " + TABLE_TRACKS + " t ON t." + KEY_ALBUM_ID + " = al." + KEY_ID 
+			+ " WHERE al." + KEY_ARTIST_ID + " = ar." + KEY_ID + ") FROM " + TABLE_ARTISTS + " ar"; 
+	
+	/* The library and search queries below are package-private for DatabaseQueryPlanTest. */
+	
+	static final String ALL_ARTISTS = "SELECT * FROM " + VIEW_TRACK_ROWS 
+			+ " WHERE " + KEY_ID + " IN (" + ARTIST_TRACK_IDS + ") "
+			+ "ORDER BY " + KEY_ARTIST; 
+
 	/**
-	 * Returns a cursor containing all songs from the songs table. 
+	 * Returns a cursor containing all songs from the songs view, 
+	 * with a header row ahead of each album. 
 	 * 
 	 * @returns Cursor songsCursor
 	 */
@@ -294,15 +1162,14 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 	 * @returns Cursor songsByArtistCursor
 	 */
 	public Cursor getSongsByArtist(String artist) {
-		String escapedArtist = artist.replace("'", "''");
-		String query = "SELECT * FROM " + TABLE_SONGS + " WHERE " + KEY_ARTIST + " = '" + escapedArtist + "' ORDER BY " + KEY_ALBUM + " ASC, " + KEY_TRACK_NUM + " ASC";
-
 		SQLiteDatabase db = this.getWritableDatabase();
-		Cursor cursor = db.rawQuery(query, null);
+		Cursor cursor = db.rawQuery(SONGS_BY_ARTIST, new String[] {artist});
 
 		return cursor; 
 	}
 	
+	static final String SONGS_BY_ARTIST = "SELECT * FROM " + TABLE_SONGS + " WHERE " + KEY_ARTIST + " = ? ORDER BY " + KEY_ALBUM + " ASC, " + KEY_TRACK_NUM + " ASC";
+	
 	/**
 	 * Gets a Song object from the database by 
 	 * the song's unique hash code. 
@@ -311,10 +1178,8 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 	 * @returns Song matchingSong, or null if song not found
 	 */
 	public Song getSongByHash(String hash) {
-		String query = "SELECT * FROM " + TABLE_SONGS + " WHERE " + KEY_HASH + " = '" + hash + "'";
-
 		SQLiteDatabase db = this.getWritableDatabase();
-		Cursor cursor = db.rawQuery(query, null);
+		Cursor cursor = db.rawQuery(SONG_BY_HASH, new String[] {hash});
 
 		if (cursor.moveToFirst()) {
 			Song song = rowToSong(cursor); 
@@ -326,6 +1191,9 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 		}
 	}
 	
+	static final String SONG_BY_HASH = "SELECT * FROM " + VIEW_TRACK_ROWS 
+			+ " WHERE " + KEY_HASH + " = ? LIMIT 1"; 
+	
 	/**
 	 * Returns a string path to the album art 
 	 * for the song with the given hash code. 
@@ -334,28 +1202,65 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 	 * @returns String albumArtPath
 	 */
 	public String getAlbumArtByHash(String hash) {
-		String query = "SELECT * FROM " + TABLE_SONGS + " WHERE " + KEY_HASH + " = '" + hash + "'";
+		SQLiteStatement query = getStatement(ART_BY_HASH); 
+		synchronized (query) {
+			bindString(query, 1, hash); 
+			try {
+				return query.simpleQueryForString(); 
+			} catch (SQLiteDoneException e) {
+				return ""; 
+			}
+		}
+	}
+	
+	static final String ART_BY_HASH = "SELECT " + KEY_ART + " FROM " + VIEW_TRACK_ROWS 
+			+ " WHERE " + KEY_HASH + " = ? LIMIT 1"; 
 
+	/**
+	 * Returns the album art paths of the songs with the given 
+	 * hashes, keyed by hash, looked up in as few queries as 
+	 * SQLite's limit on bound arguments allows. 
+	 * 
+	 * @param Collection<String> hashes
+	 * @returns HashMap<String, String> artPaths
+	 */
+	public HashMap<String, String> getAlbumArtByHashes(Collection<String> hashes) {
+		HashMap<String, String> artPaths = new HashMap<String, String>(); 
 		SQLiteDatabase db = this.getWritableDatabase();
-		Cursor cursor = db.rawQuery(query, null);
-
-		if (cursor.moveToFirst()) {
-			String artPath = cursor.getString(COL_ART); 
-			cursor.close(); 
-			return artPath;  
-		} else {
-			cursor.close(); 
-			return ""; 
+		ArrayList<String> batch = new ArrayList<String>(); 
+		Iterator<String> iterator = hashes.iterator(); 
+		while (iterator.hasNext()) {
+			batch.add(iterator.next()); 
+			if (batch.size() < MAX_BOUND_ARGS && iterator.hasNext()) {
+				continue; 
+			}
+			
+			StringBuilder placeholders = new StringBuilder(); 
+			for (int i = 0; i < batch.size(); i++) {
+				placeholders.append(i == 0 ? "?" : ",?"); 
+			}
+			Cursor cursor = db.rawQuery("SELECT " + KEY_HASH + ", " + KEY_ART + " FROM " + VIEW_TRACK_ROWS 
+					+ " WHERE " + KEY_HASH + " IN (" + placeholders + ")", 
+					batch.toArray(new String[batch.size()])); 
+			try {
+				while (cursor.moveToNext()) {
+					artPaths.put(cursor.getString(0), cursor.getString(1)); 
+				}
+			} finally {
+				cursor.close(); 
+			}
+			batch.clear(); 
 		}
+		return artPaths; 
 	}
 
 	/**
-	 * Returns a cursor grouped by albums from the songs table.  
+	 * Returns a cursor with the header row of each album.  
 	 * 
 	 * @returns Cursor albumsCursor
 	 */
 	public Cursor getAllAlbums() {
-		String query = "SELECT * FROM " + TABLE_SONGS + " GROUP BY " + KEY_ALBUM; 
+		String query = "SELECT * FROM " + VIEW_ALBUM_ROWS + " ORDER BY " + KEY_ALBUM; 
 
 		SQLiteDatabase db = this.getWritableDatabase();
 		Cursor cursor = db.rawQuery(query, null);
@@ -364,20 +1269,20 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 	}
 
 	/**
-	 * Returns a cursor grouped by albums by the given artist. 
+	 * Returns a cursor with the header row 
+	 * of each album by the given artist. 
 	 * 
 	 * @param String artist
 	 * @returns Cursor albumsByArtistCursor
 	 */
 	public Cursor getAlbumsByArtist(String artist) {
-		String escapedArtist = artist.replace("'",  "''");
-		String query = "SELECT * FROM " + TABLE_SONGS + " WHERE " + KEY_ARTIST + " = '" + escapedArtist + "' GROUP BY " + KEY_ALBUM; 
-
 		SQLiteDatabase db = this.getWritableDatabase();
-		Cursor cursor = db.rawQuery(query, null);
+		Cursor cursor = db.rawQuery(ALBUMS_BY_ARTIST, new String[] {artist});
 
 		return cursor; 
 	}
+	
+	static final String ALBUMS_BY_ARTIST = "SELECT * FROM " + VIEW_ALBUM_ROWS + " WHERE " + KEY_ARTIST + " = ? ORDER BY " + KEY_ALBUM; 
 
 	/**
 	 * Returns a cursor containing all the songs
@@ -388,29 +1293,24 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 	 * @returns Cursor songsCursor
 	 */
 	public Cursor getSongsByArtistAndAlbum(String artist, String album) {
-		String escapedArtist = artist.replace("'", "''"); 
-		String escapedAlbum = album.replace("'", "''");
-		String query = "SELECT * FROM " + TABLE_SONGS + " WHERE " + KEY_ARTIST + " = '" + escapedArtist + "' AND " + KEY_ALBUM + " = '" + escapedAlbum + "'"; 
-
 		SQLiteDatabase db = this.getWritableDatabase();
-		Cursor cursor = db.rawQuery(query, null);
+		Cursor cursor = db.rawQuery(SONGS_BY_ARTIST_AND_ALBUM, new String[] {artist, album});
 
 		return cursor; 
 	}
+	
+	static final String SONGS_BY_ARTIST_AND_ALBUM = "SELECT * FROM " + VIEW_TRACK_ROWS + " WHERE " + KEY_ARTIST + " = ? AND " + KEY_ALBUM + " = ? ORDER BY " + KEY_TRACK_NUM + " ASC"; 
 
 	/**
 	 * Returns a Song object with the given title from 
-	 * the songs table, or null if none exists. 
+	 * the library, or null if none exists. 
 	 * 
 	 * @param String title
 	 * @returns Song song, or null if none exists
 	 */
 	public Song getSongByTitle(String title) {
-		String escapedTitle = title.replace("'",  "''");
-		String query = "SELECT * FROM " + TABLE_SONGS + " WHERE " + KEY_TITLE + " = '" + escapedTitle + "'"; 
-
 		SQLiteDatabase db = this.getWritableDatabase();
-		Cursor cursor = db.rawQuery(query, null);
+		Cursor cursor = db.rawQuery(SONG_BY_TITLE, new String[] {title});
 
 		if (cursor.moveToFirst()) {
 			Song song = rowToSong(cursor); 
@@ -421,325 +1321,243 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 			return null; 
 		}
 	}
-
-	/**
-	 * Returns a cursor containing all the songs in the jam table, 
-	 * ordered by index. 
-	 * 
-	 * @returns Cursor jamCursor
-	 */
-	public Cursor getSongsInJam() {
-		String query = "SELECT * FROM " + TABLE_JAM + " ORDER BY " + KEY_JAM_INDEX + " ASC";
-
-		SQLiteDatabase db = this.getWritableDatabase();
-		Cursor cursor = db.rawQuery(query, null);
-
-		return cursor; 
-	}
-
-	/**
-	 * Returns a Song object from the jam at the given index, 
-	 * or null if none exists. 
-	 * 
-	 * @param int index
-	 * @returns Song song, or null if no song exists with the given index
-	 */
-	public Song getSongInJamByIndex(int index) {
-		String query = "SELECT * FROM " + TABLE_JAM + " WHERE " + KEY_JAM_INDEX + " = " + index;
-
-		SQLiteDatabase db = this.getWritableDatabase();
-		Cursor cursor = db.rawQuery(query, null);
-
-		if (cursor.moveToFirst()) { 
-			Song song = rowToSong(cursor); 
-			cursor.close(); 
-			return song; 
-		} else {
-			cursor.close(); 
-			return null; 
-		}
-	}
 	
-	/**
-	 * Returns a cursor pointing to the song in the jam table
-	 * with the given timestamp id, or null if none exists. 
-	 * 
-	 * @param String jamSongID
-	 * @returns Cursor songCursor, or null if none exists
-	 */
-	public Cursor getSongInJamByID(String jamSongID) {
-		String query = "SELECT * FROM " + TABLE_JAM + " WHERE " + KEY_TIMESTAMP + " = '" + jamSongID + "'";
+	static final String SONG_BY_TITLE = "SELECT * FROM " + VIEW_TRACK_ROWS 
+			+ " WHERE " + KEY_TITLE + " = ? LIMIT 1"; 
 
-		SQLiteDatabase db = this.getWritableDatabase();
-		Cursor cursor = db.rawQuery(query, null);
-		
-		if (cursor.moveToFirst()) {
-			return cursor; 
-		} else {
-			cursor.close(); 
-			return null; 
-		}
-	}
-	
 	/**
-	 * Returns the index of the song in the jam with the 
-	 * given timestamp ID, or null if none exists. 
+	 * Sets the album art of all albums in the library
+	 * and all songs in the jam with the given album title.  
 	 * 
-	 * @param String jamSongID
-	 * @returns int index, or -1 if non exists
+	 * @param String albumTitle
+	 * @param String albumArtPath
 	 */
-	public int getIndexInJamByID(String jamSongID) {
-		String query = "SELECT * FROM " + TABLE_JAM + " WHERE " + KEY_TIMESTAMP + " = '" + jamSongID + "'";
-
-		SQLiteDatabase db = this.getWritableDatabase();
-		Cursor cursor = db.rawQuery(query, null);
-		
-		if (cursor.moveToFirst()) {
-			int index = cursor.getInt(COL_JAM_INDEX); 
-			cursor.close(); 
-			return index; 
-		} else {
-			cursor.close(); 
-			return -1; 
+	public void setAlbumArt(String albumTitle, String path) {
+		SQLiteStatement update = getStatement(SET_ART_BY_TITLE); 
+		synchronized (update) {
+			bindString(update, 1, path); 
+			bindString(update, 2, albumTitle); 
+			update.executeUpdateDelete(); 
 		}
+		g.jam.setAlbumArt(albumTitle, path); 
 	}
 	
-	/**
-	 * Returns the timestamp ID of the song in the Jam at the 
-	 * given index, or the empty string if none exists. 
-	 * 
-	 * @param int index
-	 * @returns String jamSongID, or empty string if none exists
-	 */
-	public String getJamSongIDByIndex(int index) {
-		String query = "SELECT * FROM " + TABLE_JAM + " WHERE " + KEY_JAM_INDEX + " = " + index;
-
-		SQLiteDatabase db = this.getWritableDatabase();
-		
-		Cursor cursor = db.rawQuery(query, null);
-		
-		if (cursor.moveToFirst()) { 
-			String timestamp = cursor.getString(cursor.getColumnIndex(KEY_TIMESTAMP)); 
-			cursor.close(); 
-			return timestamp;
-		} else {
-			cursor.close(); 
-			return ""; 
-		}
-	}
+	private static final String SET_ART_BY_TITLE = "UPDATE " + TABLE_ALBUMS 
+			+ " SET " + KEY_ART + " = ? WHERE " + KEY_TITLE + " = ?"; 
 
 	/**
-	 * Changes the index of the song in the jam 
-	 * with the given timestamp ID. 
+	 * Returns a path to stored album art with the given 
+	 * art hash, for serving it to other phones, or null 
+	 * if no album with that art has it yet. 
 	 * 
-	 * @param String jamSongID
-	 * @param int to
-	 * @returns int index that the song was moved from
+	 * @param String artHash
+	 * @returns String albumArtPath
 	 */
-	public int changeSongIndexInJam(String jamSongId, int to) {
-		SQLiteDatabase db = this.getWritableDatabase();
-
-		int from = getIndexInJamByID(jamSongId); 
-		
-		// Overwrite the song that is moving with a temp placeholder index
-		ContentValues args = new ContentValues();
-		args.put(KEY_JAM_INDEX, -2);
-		
-		db.update(TABLE_JAM, args, KEY_TIMESTAMP + " = '" + jamSongId + "'", null);
-
-		
-		// Increment/decrement the indices of all the songs 
-		// in-between the to and from songs as necessary
-		String restructureQuery = ""; 
-		if (from < to) {
-			restructureQuery = "UPDATE " + TABLE_JAM + " SET " + KEY_JAM_INDEX + " = " + KEY_JAM_INDEX + "-1 WHERE " + KEY_JAM_INDEX + " <= ? AND " + KEY_JAM_INDEX + " > ?";
-		} else if (from > to) {
-			restructureQuery = "UPDATE " + TABLE_JAM + " SET " + KEY_JAM_INDEX + " = " + KEY_JAM_INDEX + "+1 WHERE " + KEY_JAM_INDEX + " >= ? AND " + KEY_JAM_INDEX + " < ?";
+	public String getArtPathByArtHash(String artHash) {
+		SQLiteStatement query = getStatement(ART_PATH_BY_ART_HASH); 
+		synchronized (query) {
+			bindString(query, 1, artHash); 
+			try {
+				return query.simpleQueryForString(); 
+			} catch (SQLiteDoneException e) {
+				return null; 
+			}
 		}
-		String[] updateArgs = new String[] {"" + to, "" + from}; 
-		db.execSQL(restructureQuery, updateArgs);
-
-		// Move the original "from" song to its final "to" index
-		args = new ContentValues();
-		args.put(KEY_JAM_INDEX, to);
-		db.update(TABLE_JAM, args, KEY_TIMESTAMP + " = '" + jamSongId + "'", null);
-		
-		return from; 
 	}
+	
+	static final String ART_PATH_BY_ART_HASH = "SELECT " + KEY_ART + " FROM " + VIEW_ALBUM_ROWS 
+			+ " WHERE " + KEY_ART_HASH + " = ? AND " + KEY_ART + " != '' " 
+			+ "ORDER BY " + KEY_LOCAL + " DESC LIMIT 1"; 
 
 	/**
-	 * Shuffle all the songs in the jam after the currently-playing
-	 * index, by randomly rearranging their indices in the jam table. 
+	 * Returns true if any album from the phone with the given 
+	 * ip address came with an art hash, so that its album art 
+	 * can be fetched by hash instead of all at once. 
 	 * 
-	 * @param int currentIndex
-	 * @param int lastIndex
+	 * @param String ipAddr
+	 * @returns boolean hasArtHashes
 	 */
-	public void shuffleJam(int currentIndex, int lastIndex) {
-		ArrayList<String> ids = new ArrayList<String>(); 
-		for (int i = currentIndex + 1; i <= lastIndex; i++) {
-			ids.add(getJamSongIDByIndex(i)); 
+	public boolean hasArtHashes(String ipAddr) {
+		SQLiteStatement query = getStatement(HAS_ART_HASHES); 
+		synchronized (query) {
+			bindString(query, 1, ipAddr); 
+			return query.simpleQueryForLong() != 0; 
 		}
-
-		SQLiteDatabase db = this.getWritableDatabase();
-		ContentValues args; 
-		Random generator = new Random(); 
-		
-		for (int i = currentIndex + 1; i <= lastIndex; i++) {
-			args = new ContentValues();
-			int rand = generator.nextInt(ids.size());
-			String jamSongID = ids.remove(rand); 
-			args.put(KEY_TIMESTAMP, jamSongID);
-			db.update(TABLE_JAM, args, KEY_JAM_INDEX + " = " + i + "", null);
-		}
-
 	}
 	
-	/**
-	 * Checks if the jam contains a given song. 
-	 * 
-	 * @param Song song
-	 * @returns True if the song exists in the Jam, or False otherwise
-	 */
-	public boolean jamContainsSong(Song song) {
-		String query = "SELECT * FROM " + TABLE_JAM + " WHERE " + KEY_HASH + " = " + song.hashCode(); 
-		SQLiteDatabase db = this.getWritableDatabase();
-		Cursor cursor = db.rawQuery(query, null);
-
-		if (cursor.getCount() > 0) {
-			return true; 
-		} else {
-			return false; 
-		}
-	}
-
-	/**
-	 * Removes the song with the given jamSongID from the jam. 
-	 * 
-	 * @param String jamSongID
-	 * @returns int index of the removed song
-	 */
-	public int removeSongFromJam(String jamSongID) {
-		SQLiteDatabase db = this.getWritableDatabase();
-		
-		Cursor cursor = getSongInJamByID(jamSongID); 
-		int removedIndex = cursor.getInt(cursor.getColumnIndex(KEY_JAM_INDEX)); 
-		cursor.close(); 
-		
-		db.delete(TABLE_JAM, KEY_TIMESTAMP + " = '" + jamSongID + "'", null);
-
-		String restructureQuery = "UPDATE " + TABLE_JAM + " SET " + KEY_JAM_INDEX + " = " + KEY_JAM_INDEX + "-1 WHERE " + KEY_JAM_INDEX + " > ?";
-		String[] updateArgs = new String[] {"" + removedIndex}; 
-		db.execSQL(restructureQuery, updateArgs);
-		
-		return removedIndex; 
-	}
-
-	/**
-	 * Resets the jam table. 
-	 * 
-	 */
-	public void clearJam() {
-		SQLiteDatabase db = this.getWritableDatabase();
-		db.delete(TABLE_JAM, null, null);
-	}
+	private static final String HAS_ART_HASHES = "SELECT EXISTS (SELECT 1 FROM " + TABLE_ALBUMS + " al JOIN " 
+			+ TABLE_PEERS + " p ON p." + KEY_ID + " = al." + KEY_PEER_ID + " WHERE p." + KEY_IP + " = ? AND al." 
+			+ KEY_ART_HASH + " IS NOT NULL)"; 
 
 	/**
-	 * Sets the album art field for all rows in the songs table
-	 * with the given album title.  
+	 * Sets the album art of all albums in the library 
+	 * and all songs in the jam with the given art hash. 
 	 * 
-	 * @param String albumTitle
+	 * @param String artHash
 	 * @param String albumArtPath
 	 */
-	public void setAlbumArt(String albumTitle, String path) {
-		String escapedAlbumTitle = albumTitle.replace("'",  "''");
-		ContentValues args = new ContentValues();
-		args.put(KEY_ART, path);
-		SQLiteDatabase db = this.getWritableDatabase();
-		db.update(TABLE_SONGS, args, KEY_ALBUM + " = '" + escapedAlbumTitle + "'", null);
-		db.update(TABLE_JAM, args, KEY_ALBUM + " = '" + escapedAlbumTitle + "'", null);
+	public void setAlbumArtByArtHash(String artHash, String path) {
+		SQLiteStatement update = getStatement(SET_ART_BY_ART_HASH); 
+		synchronized (update) {
+			bindString(update, 1, path); 
+			bindString(update, 2, artHash); 
+			update.executeUpdateDelete(); 
+		}
+		g.jam.setAlbumArtByArtHash(artHash, path); 
 	}
+	
+	private static final String SET_ART_BY_ART_HASH = "UPDATE " + TABLE_ALBUMS 
+			+ " SET " + KEY_ART + " = ? WHERE " + KEY_ART_HASH + " = ?"; 
 
 	/**
-	 * Searches the songs table for artists
-	 * containing the character constraint.  
+	 * Searches the library for artists
+	 * with a word starting with each word 
+	 * of the character constraint. 
+	 * Artists whose name starts with the 
+	 * constraint are listed first. 
 	 * 
 	 * @param CharSequence constraint
-	 */
-	public Cursor searchArtists(CharSequence constraint) {
-		String query; 
-		if (constraint == null || constraint.length() == 0) {
-			query = "SELECT * FROM " + TABLE_SONGS 
-					+ " GROUP BY " + KEY_ARTIST; 
-		} else {
-			query = "SELECT * FROM " + TABLE_SONGS 
-					+ " WHERE " + KEY_ARTIST + " LIKE '%" + constraint.toString() + "%' "
-					+ "GROUP BY " + KEY_ARTIST; 
-		}
-
+	 */
+	public Cursor searchArtists(CharSequence constraint) {
+		String match = toMatchExpression(constraint, KEY_ARTIST); 
+		
 		SQLiteDatabase db = this.getWritableDatabase();
-		Cursor cursor = db.rawQuery(query, null);
-
-		return cursor; 
+		if (match == null) {
+			return getAllArtists(); 
+		}
+		
+		return db.rawQuery(SEARCH_ARTISTS, new String[] {match, toPrefixPattern(constraint)}); 
 	}
 
 	/**
-	 * Searches the songs table for songs
-	 * containing the character constraint.  
+	 * Searches the library for songs
+	 * whose title, album or artist have a word 
+	 * starting with each word of the character 
+	 * constraint. Songs whose title starts with 
+	 * the constraint are listed first, then 
+	 * those whose artist or album does. 
 	 * 
 	 * @param CharSequence constraint
 	 */
 	public Cursor searchSongs(CharSequence constraint) {
-		String query; 
-		if (constraint == null || constraint.length() == 0) {
-			query = "SELECT * FROM " + TABLE_SONGS
+		String match = toMatchExpression(constraint, null); 
+		
+		SQLiteDatabase db = this.getWritableDatabase();
+		if (match == null) {
+			return db.rawQuery("SELECT * FROM " + TABLE_SONGS
 					+ " ORDER BY " + KEY_ARTIST + " ASC, " 
 					+ KEY_ALBUM + " ASC, " 
-					+ KEY_TRACK_NUM + " ASC"; ;  
-		} else {
-			query = "SELECT * FROM " + TABLE_SONGS + " "
-					+ "WHERE " + KEY_TITLE + " LIKE '%" + constraint.toString() + "%' "
-					+ "OR " + KEY_ALBUM + " LIKE '%" + constraint.toString() + "%' "
-					+ "OR " + KEY_ARTIST + " LIKE '%" + constraint.toString() + "%' "
-					+ "ORDER BY " + KEY_ARTIST + " ASC, " 
-					+ KEY_ALBUM + " ASC, " 
-					+ KEY_TRACK_NUM + " ASC"; 
+					+ KEY_TRACK_NUM + " ASC", null); 
 		}
-
-		SQLiteDatabase db = this.getWritableDatabase();
-		Cursor cursor = db.rawQuery(query, null);
-
-		return cursor; 
+		
+		String prefix = toPrefixPattern(constraint); 
+		return db.rawQuery(SEARCH_SONGS, new String[] {match, prefix, prefix, prefix}); 
 	}
 
 	/**
-	 * Searches the songs table for songs by the 
-	 * given artist containing the character constraint. 
+	 * Searches the library for songs by the 
+	 * given artist whose title or album have a word 
+	 * starting with each word of the character constraint. 
 	 * 
 	 * @param CharSequence constraint
+	 * @param String artist
 	 */
 	public Cursor searchSongsByArtist(CharSequence constraint, String artist) {
-		String escapedArtist = artist.replace("'", "''"); 
-		String query; 
-		if (constraint == null || constraint.length() == 0) {
-			query = "SELECT * FROM " + TABLE_SONGS 
-					+ " WHERE " + KEY_ARTIST + " = '" + escapedArtist + "' "
-					+ "ORDER BY " + KEY_ARTIST + " ASC, " 
-					+ KEY_ALBUM + " ASC, " 
-					+ KEY_TRACK_NUM + " ASC"; 
-		} else {
-			query = "SELECT * FROM " + TABLE_SONGS 
-					+ " WHERE (" + KEY_TITLE + " LIKE '%" + constraint.toString() + "%' "
-					+ "OR " + KEY_ALBUM + " LIKE '%" + constraint.toString() + "%') "
-					+ "AND " + KEY_ARTIST + " = '" + escapedArtist + "' "
+		String match = toMatchExpression(constraint, null); 
+		
+		SQLiteDatabase db = this.getWritableDatabase();
+		if (match == null) {
+			return db.rawQuery("SELECT * FROM " + TABLE_SONGS 
+					+ " WHERE " + KEY_ARTIST + " = ? "
 					+ "ORDER BY " + KEY_ARTIST + " ASC, " 
 					+ KEY_ALBUM + " ASC, " 
-					+ KEY_TRACK_NUM + " ASC"; 
+					+ KEY_TRACK_NUM + " ASC", new String[] {artist}); 
 		}
-
-		SQLiteDatabase db = this.getWritableDatabase();
-		Cursor cursor = db.rawQuery(query, null);
-
-		return cursor; 
+		
+		// Matching on title and album only, as the artist is already fixed
+		String prefix = toPrefixPattern(constraint); 
+		return db.rawQuery(SEARCH_SONGS_BY_ARTIST, new String[] {toMatchExpression(constraint, KEY_TITLE), 
+				toMatchExpression(constraint, KEY_ALBUM), artist, prefix, prefix, prefix}); 
+	}
+	
+	// Song ids matching a full-text query bound to the first argument
+	private static final String SEARCH_MATCHES = "SELECT docid FROM " + TABLE_SONGS_SEARCH 
+			+ " WHERE " + TABLE_SONGS_SEARCH + " MATCH ?"; 
+	
+	// Title prefix matches first, then artist, then album, then the rest
+	private static final String SEARCH_RANK = "CASE "
+			+ "WHEN " + KEY_TITLE + " LIKE ? THEN 0 "
+			+ "WHEN " + KEY_ARTIST + " LIKE ? THEN 1 "
+			+ "WHEN " + KEY_ALBUM + " LIKE ? THEN 2 "
+			+ "ELSE 3 END"; 
+	
+	static final String SEARCH_ARTISTS = "SELECT * FROM " + VIEW_TRACK_ROWS 
+			+ " WHERE " + KEY_ID + " IN (" + SEARCH_MATCHES + ") "
+			+ "GROUP BY " + KEY_ARTIST + " "
+			+ "ORDER BY " + KEY_ARTIST + " LIKE ? DESC, " 
+			+ KEY_ARTIST + " ASC"; 
+	
+	static final String SEARCH_SONGS = "SELECT * FROM " + VIEW_TRACK_ROWS 
+			+ " WHERE " + KEY_ID + " IN (" + SEARCH_MATCHES + ") "
+			+ "ORDER BY " + SEARCH_RANK + ", "
+			+ KEY_ARTIST + " ASC, " 
+			+ KEY_ALBUM + " ASC, " 
+			+ KEY_TRACK_NUM + " ASC"; 
+	
+	static final String SEARCH_SONGS_BY_ARTIST = "SELECT * FROM " + VIEW_TRACK_ROWS 
+			+ " WHERE (" + KEY_ID + " IN (" + SEARCH_MATCHES + ") "
+			+ "OR " + KEY_ID + " IN (" + SEARCH_MATCHES + ")) "
+			+ "AND " + KEY_ARTIST + " = ? "
+			+ "ORDER BY " + SEARCH_RANK + ", "
+			+ KEY_ALBUM + " ASC, " 
+			+ KEY_TRACK_NUM + " ASC"; 
+	
+	/**
+	 * Converts a search box constraint to an FTS 
+	 * query requiring a word starting with each of 
+	 * its words, optionally in a single column. 
+	 * Returns null if the constraint has no words. 
+	 * 
+	 * @param CharSequence constraint
+	 * @param String column (null for any column)
+	 * @returns String match
+	 */
+	private static String toMatchExpression(CharSequence constraint, String column) {
+		if (constraint == null) {
+			return null; 
+		}
+		
+		// The simple tokenizer splits on anything that is not a letter or digit, 
+		// so doing the same here also strips the FTS query syntax characters
+		StringBuilder match = new StringBuilder(); 
+		for (String word : constraint.toString().split("[^\\p{L}\\p{N}]+")) {
+			if (word.length() == 0) {
+				continue; 
+			}
+			if (match.length() > 0) {
+				match.append(' '); 
+			}
+			if (column != null) {
+				match.append(column).append(':'); 
+			}
+			match.append(word).append('*'); 
+		}
+		
+		if (match.length() == 0) {
+			return null; 
+		}
+		return match.toString(); 
+	}
+	
+	/**
+	 * Converts a search box constraint to a 
+	 * LIKE pattern matching values that start with it. 
+	 * 
+	 * @param CharSequence constraint
+	 * @returns String pattern
+	 */
+	private static String toPrefixPattern(CharSequence constraint) {
+		return constraint.toString().trim().replace("%", "").replace("_", "") + "%"; 
 	}
 
 	/**
@@ -760,6 +1578,9 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 		song.setPort(cursor.getInt(COL_PORT));
 		song.setAlbumArt(cursor.getString(COL_ART));
 		
+		if (cursor.getColumnIndex(KEY_ART_HASH) != -1) {
+			song.setArtHash(cursor.getString(cursor.getColumnIndex(KEY_ART_HASH))); 
+		}
 		if (cursor.getColumnIndex(KEY_TIMESTAMP) != -1) {
 			song.setJamID(cursor.getString(cursor.getColumnIndex(KEY_TIMESTAMP)));
 		}
@@ -771,137 +1592,105 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 	}
 
 	/**
-	 * Converts the songs table to a JSONObject. 
-	 * 
-	 * @returns JSONObject songLibrary
-	 */
-	public JSONObject getLibraryAsJSON() {
-		JSONObject json = new JSONObject(); 
-
-		//synchronized (this) {
-	
-			JSONArray artistArray = getArtistsAsJSON(); 
-	
-			try {
-				json.put("artists", artistArray); 
-			} catch (JSONException e) {
-				e.printStackTrace(); 
-			}
-		//}
-		return json; 
-
-	}
-
-	/**
-	 * Converts the artists from the songs table
-	 * to a JSONObject. 
-	 * Helper method for getLibraryAsJSON(). 
+	 * Writes the songs view as a JSON array of artists, 
+	 * each holding its albums and their songs, straight 
+	 * from a single cursor pass ordered by artist, album and 
+	 * track number. Only one row is held in memory at a time, 
+	 * so the cost doesn't grow with the size of the library. 
 	 * 
-	 * @returns JSONArray artistsArray
+	 * @param JsonWriter writer
+	 * @throws IOException
 	 */
-	private JSONArray getArtistsAsJSON() {
-		JSONArray artistArray = new JSONArray(); 
-		Cursor artistCursor = getAllArtists(); 
-
-		if (artistCursor.moveToFirst()) {
-			do {
-				String artistName = artistCursor.getString(COL_ARTIST); 	        	
-				JSONObject artist = new JSONObject(); 
-
-				JSONArray albumArray = getAlbumsAsJSON(artistName); 
-
-				try {
-					artist.put("name", artistName); 
-					artist.put("albums", albumArray); 
-					artistArray.put(artist); 
-				} catch (JSONException e) {
-					e.printStackTrace();
+	public void writeLibraryAsJSON(JsonWriter writer) throws IOException {
+		Cursor cursor = getAllSongs(); 
+		try {
+			writer.beginArray(); 
+			boolean inArtist = false; 
+			String currentArtist = null; 
+			String currentAlbum = null; 
+			while (cursor.moveToNext()) {
+				String artistName = cursor.getString(COL_ARTIST); 
+				String albumTitle = cursor.getString(COL_ALBUM); 
+				boolean newArtist = !inArtist || !sameValue(artistName, currentArtist); 
+				
+				if (newArtist) {
+					if (inArtist) {
+						writer.endArray().endObject(); 	// songs, album
+						writer.endArray().endObject(); 	// albums, artist
+					}
+					writer.beginObject(); 
+					writer.name("name").value(artistName); 
+					writer.name("albums").beginArray(); 
+					inArtist = true; 
+					currentArtist = artistName; 
+				} else if (!sameValue(albumTitle, currentAlbum)) {
+					writer.endArray().endObject(); 		// songs, album
 				}
-
-			} while (artistCursor.moveToNext());
+				
+				if (newArtist || !sameValue(albumTitle, currentAlbum)) {
+					writer.beginObject(); 
+					writer.name("title").value(albumTitle); 
+					writer.name("songs").beginArray(); 
+					currentAlbum = albumTitle; 
+				}
+				
+				writer.beginObject(); 
+				writer.name("title").value(cursor.getString(COL_TITLE)); 
+				writer.name("path").value(cursor.getString(COL_PATH)); 
+				writer.name("ip").value(cursor.getString(COL_IP)); 
+				writer.name("port").value(cursor.getInt(COL_PORT)); 
+				writer.name("num").value(cursor.getInt(COL_TRACK_NUM)); 
+				writer.name("artHash").value(cursor.getString(COL_ART_HASH)); 
+				writer.endObject(); 
+			}
+			if (inArtist) {
+				writer.endArray().endObject(); 
+				writer.endArray().endObject(); 
+			}
+			writer.endArray(); 
+		} finally {
+			cursor.close(); 
 		}
-
-		artistCursor.close(); 
-
-		return artistArray; 
 	}
-
+	
 	/**
-	 * Converts the albums from the songs table
-	 * by the given artist to a JSONObject. 
-	 * Helper method for getLibraryAsJSON(). 
+	 * Writes the songs view to a binary wire format message: 
+	 * the number of songs, then each song's title, artist, album, 
+	 * path, ip, port, track number and art hash. Artists, albums, 
+	 * IP addresses and art hashes repeat from row to row, so the 
+	 * message's string table sends each of them only once. 
 	 * 
-	 * @param String artistName
-	 * @returns JSONArray albumsArray
+	 * @param WireCodec.Writer writer
+	 * @throws IOException
 	 */
-	private JSONArray getAlbumsAsJSON(String artistName) {
-		JSONArray albumArray = new JSONArray(); 
-		Cursor albumCursor = getAlbumsByArtist(artistName); 
-
-		if (albumCursor.moveToFirst()) {
-			do {
-				String albumTitle = albumCursor.getString(COL_ALBUM); 
-				JSONObject album = new JSONObject(); 
-
-				JSONArray songArray = getSongsAsJSON(artistName, albumTitle); 
-
-				try {
-					album.put("title", albumTitle);
-					album.put("songs", songArray); 
-					albumArray.put(album); 
-				} catch (JSONException e) {
-					e.printStackTrace();
-				} 
-
-			} while (albumCursor.moveToNext()); 
+	public void writeLibraryAsBinary(WireCodec.Writer writer) throws IOException {
+		Cursor cursor = getAllSongs(); 
+		try {
+			writer.writeVarint(cursor.getCount()); 
+			while (cursor.moveToNext()) {
+				writer.writeString(cursor.getString(COL_TITLE)); 
+				writer.writeString(cursor.getString(COL_ARTIST)); 
+				writer.writeString(cursor.getString(COL_ALBUM)); 
+				writer.writeString(cursor.getString(COL_PATH)); 
+				writer.writeString(cursor.getString(COL_IP)); 
+				writer.writeVarint(cursor.getInt(COL_PORT)); 
+				writer.writeVarint(cursor.getInt(COL_TRACK_NUM)); 
+				writer.writeString(cursor.getString(COL_ART_HASH)); 
+			}
+		} finally {
+			cursor.close(); 
 		}
-
-		albumCursor.close(); 
-
-		return albumArray; 
 	}
-
+	
 	/**
-	 * Converts the songs from the songs table
-	 * by the given artist and album to a JSONObject. 
-	 * Helper method for getLibraryAsJSON(). 
-	 * 
-	 * @returns JSONArray songsArray
+	 * Null-safe string equality, for grouping cursor rows. 
 	 */
-	private JSONArray getSongsAsJSON(String artistName, String albumTitle) {
-		JSONArray songArray = new JSONArray(); 
-		Cursor songCursor = getSongsByArtistAndAlbum(artistName, albumTitle); 
-
-		if (songCursor.moveToFirst()) {
-			do {
-				JSONObject song = new JSONObject(); 
-				String title = songCursor.getString(COL_TITLE);
-				String path = songCursor.getString(COL_PATH);
-				String ip = songCursor.getString(COL_IP); 
-				int port = songCursor.getInt(COL_PORT);
-				int trackNum = songCursor.getInt(COL_TRACK_NUM); 
-
-				try {
-					song.put("title", title);
-					song.put("path", path);
-					song.put("ip", ip); 	
-					song.put("port", port);
-					song.put("num", trackNum); 
-					songArray.put(song); 
-				} catch (JSONException e) {
-					e.printStackTrace();
-				} 
-
-			} while (songCursor.moveToNext()); 
-		}
-
-		songCursor.close(); 
-
-		return songArray; 
+	private static boolean sameValue(String a, String b) {
+		return a == null ? b == null : a.equals(b); 
 	}
 
 	/**
-	 * Encodes all album art from the songs table
+	 * Encodes all album art from the library
 	 * in Base64 format and returns as JSONObject.  
 	 * 
 	 * @returns JSONObject encodedAlbumArt
@@ -945,13 +1734,14 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 
 
 	/**
-	 * Loads music metadata into the songs table 
+	 * Loads music metadata into the library 
 	 * by parsing a remote JSON response from another phone. 
 	 * 
 	 * @param JSONArray jsonArtists
 	 */
 	public void loadMusicFromJSON(JSONArray artists) { 
-		//synchronized (this) {
+		SongInserter inserter = beginSongInsert(LOAD_BATCH_SIZE); 
+		try {
 			for (int i = 0; i < artists.length(); i++) {
 				try {
 					JSONObject jsonArtist = artists.getJSONObject(i); 
@@ -977,17 +1767,187 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 							song.setPort(port);
 							song.setAlbumArt("");
 							song.setTrackNum(trackNum);
+							song.setArtHash(jsonSong.isNull("artHash") ? null : jsonSong.optString("artHash")); 
 	
-							addSongToLibrary(song); 
+							inserter.add(song); 
 						}
-	
-						g.sendUIMessage(0); 
 					}
 				} catch (JSONException e) {
 					e.printStackTrace();
 				} 
 			}
-		//}
+			inserter.finish(); 
+		} finally {
+			inserter.close(); 
+		}
+	}
+
+	/**
+	 * Loads music metadata into the library while it 
+	 * is being parsed from a remote phone's JSON stream. 
+	 * 
+	 * Reads the artists array written by writeLibraryAsJSON(). 
+	 * Songs are inserted as they arrive, committed in batches 
+	 * of LOAD_BATCH_SIZE, and the UI is refreshed after each 
+	 * batch so the first songs can be browsed right away. 
+	 * 
+	 * @param JsonReader reader, positioned at the artists array
+	 * @throws IOException
+	 */
+	public void loadMusicFromJSON(JsonReader reader) throws IOException {
+		SongInserter inserter = beginSongInsert(LOAD_BATCH_SIZE); 
+		try {
+			reader.beginArray(); 
+			while (reader.hasNext()) {
+				readArtistFromJSON(reader, inserter); 
+			}
+			reader.endArray(); 
+			inserter.finish(); 
+		} finally {
+			inserter.close(); 
+		}
+	}
+	
+	/**
+	 * Reads one artist object and inserts its songs. 
+	 * As in writeLibraryAsJSON(), the artist's name and each 
+	 * album's title are expected ahead of their nested arrays. 
+	 * Helper method for loadMusicFromJSON(JsonReader). 
+	 */
+	private void readArtistFromJSON(JsonReader reader, SongInserter inserter) throws IOException {
+		String artistName = null; 
+		reader.beginObject(); 
+		while (reader.hasNext()) {
+			String field = reader.nextName(); 
+			if (field.equals("name")) {
+				artistName = nextStringOrNull(reader); 
+			} else if (field.equals("albums")) {
+				reader.beginArray(); 
+				while (reader.hasNext()) {
+					readAlbumFromJSON(reader, artistName, inserter); 
+				}
+				reader.endArray(); 
+			} else {
+				reader.skipValue(); 
+			}
+		}
+		reader.endObject(); 
+	}
+	
+	/**
+	 * Reads one album object and inserts its songs. 
+	 * Helper method for loadMusicFromJSON(JsonReader). 
+	 */
+	private void readAlbumFromJSON(JsonReader reader, String artistName, 
+			SongInserter inserter) throws IOException {
+		String albumTitle = null; 
+		reader.beginObject(); 
+		while (reader.hasNext()) {
+			String field = reader.nextName(); 
+			if (field.equals("title")) {
+				albumTitle = nextStringOrNull(reader); 
+			} else if (field.equals("songs")) {
+				reader.beginArray(); 
+				while (reader.hasNext()) {
+					Song song = readSongFromJSON(reader); 
+					song.setArtist(artistName); 
+					song.setAlbum(albumTitle); 
+					inserter.add(song); 
+				}
+				reader.endArray(); 
+			} else {
+				reader.skipValue(); 
+			}
+		}
+		reader.endObject(); 
+	}
+	
+	/**
+	 * Reads one song object from a remote library. 
+	 * Helper method for loadMusicFromJSON(JsonReader). 
+	 */
+	private Song readSongFromJSON(JsonReader reader) throws IOException {
+		String title = null; 
+		String path = null; 
+		String ip = null; 
+		int port = 0; 
+		int trackNum = 0; 
+		String artHash = null; 
+		
+		reader.beginObject(); 
+		while (reader.hasNext()) {
+			String field = reader.nextName(); 
+			if (field.equals("title")) {
+				title = nextStringOrNull(reader); 
+			} else if (field.equals("path")) {
+				path = nextStringOrNull(reader); 
+			} else if (field.equals("ip")) {
+				ip = nextStringOrNull(reader); 
+			} else if (field.equals("port")) {
+				port = reader.nextInt(); 
+			} else if (field.equals("num")) {
+				trackNum = reader.nextInt(); 
+			} else if (field.equals("artHash")) {
+				artHash = nextStringOrNull(reader); 
+			} else {
+				reader.skipValue(); 
+			}
+		}
+		reader.endObject(); 
+		
+		Song song = new Song(title, path, false);
+		song.setIpAddr(ip);
+		song.setPort(port);
+		song.setAlbumArt("");
+		song.setTrackNum(trackNum);
+		song.setArtHash(artHash); 
+		return song; 
+	}
+	
+	/**
+	 * Loads music metadata into the library while it is 
+	 * being read from a remote phone's binary wire format message. 
+	 * 
+	 * Reads the songs written by writeLibraryAsBinary(), in 
+	 * batches of LOAD_BATCH_SIZE like loadMusicFromJSON(JsonReader). 
+	 * 
+	 * @param WireCodec.Reader reader, positioned at the song count
+	 * @throws IOException
+	 */
+	public void loadMusicFromBinary(WireCodec.Reader reader) throws IOException {
+		SongInserter inserter = beginSongInsert(LOAD_BATCH_SIZE); 
+		try {
+			int count = reader.readInt(); 
+			for (int i = 0; i < count; i++) {
+				String title = reader.readString(); 
+				String artist = reader.readString(); 
+				String album = reader.readString(); 
+				String path = reader.readString(); 
+				
+				Song song = new Song(title, path, false);
+				song.setArtist(artist); 
+				song.setAlbum(album); 
+				song.setIpAddr(reader.readString());
+				song.setPort(reader.readInt());
+				song.setAlbumArt("");
+				song.setTrackNum(reader.readInt());
+				if (reader.getVersion() >= 2) {
+					song.setArtHash(reader.readString()); 
+				}
+				inserter.add(song); 
+			}
+			inserter.finish(); 
+		} finally {
+			inserter.close(); 
+		}
+	}
+	
+	private static String nextStringOrNull(JsonReader reader) throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull(); 
+			return null; 
+		}
+		return reader.nextString(); 
 	}
 
 	/**
@@ -1040,38 +2000,207 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 	}
 
 	/**
-	 * Deletes all songs associated with the given ip address from the jam table.
+	 * Deletes all songs associated with the given ip address from the library.
 	 * 
 	 * @param String ipAddr
-	 * @returns int number of rows deleted
+	 * @returns int number of rows deleted.
+	 */
+	public int deleteSongsFromIp(String ipAddr) {
+		int deleted; 
+		SQLiteStatement delete = getStatement(DELETE_SONGS_FROM_IP); 
+		synchronized (delete) {
+			bindString(delete, 1, ipAddr); 
+			deleted = delete.executeUpdateDelete(); 
+		}
+		deleteEmptyAlbums(); 
+		return deleted; 
+	}
+	
+	private static final String DELETE_SONGS_FROM_IP = "DELETE FROM " + TABLE_TRACKS + " WHERE " + KEY_PEER_ID 
+			+ " IN (SELECT " + KEY_ID + " FROM " + TABLE_PEERS + " WHERE " + KEY_IP + " = ?)"; 
+	
+	/**
+	 * Deletes all songs from other phones from the library. 
+	 * 
+	 * @returns int number of rows deleted.
 	 */
-	public int deleteJamSongsFromIp(String ipAddr) {
+	public int deleteRemoteSongs() {
 		SQLiteDatabase db = this.getWritableDatabase();
-		return db.delete(TABLE_JAM, KEY_IP + "='" + ipAddr + "'", null);
+		int deleted = db.delete(TABLE_TRACKS, KEY_LOCAL + " = 0", null);
+		deleteEmptyAlbums(); 
+		return deleted; 
 	}
-
+	
 	/**
-	 * Deletes all songs associated with the given ip address from the song table.
+	 * Returns the modification time of every local song 
+	 * in the library, and of every music store song found 
+	 * to duplicate one, keyed by its music store ID. 
+	 * 
+	 * @returns HashMap<Long, Long> dateModifiedByMediaId
+	 */
+	public HashMap<Long, Long> getLocalMediaVersions() {
+		HashMap<Long, Long> versions = new HashMap<Long, Long>(); 
+		SQLiteDatabase db = this.getWritableDatabase();
+		Cursor cursor = db.rawQuery("SELECT " + KEY_MEDIA_ID + ", " + KEY_DATE_MODIFIED 
+				+ " FROM " + TABLE_TRACKS + " WHERE " + KEY_LOCAL + " = 1 AND " 
+				+ KEY_MEDIA_ID + " IS NOT NULL" 
+				+ " UNION ALL SELECT " + KEY_MEDIA_ID + ", " + KEY_DATE_MODIFIED 
+				+ " FROM " + TABLE_DUPLICATE_MEDIA, null); 
+		try {
+			while (cursor.moveToNext()) {
+				versions.put(cursor.getLong(0), cursor.getLong(1)); 
+			}
+		} finally {
+			cursor.close(); 
+		}
+		return versions; 
+	}
+	
+	/**
+	 * Deletes the local songs with the given music store IDs 
+	 * from the library, along with any duplicate records of 
+	 * them, in a single transaction. 
+	 * 
+	 * @param Collection<Long> mediaIds
+	 * @returns int number of tracks deleted.
+	 */
+	public int deleteLocalSongsByMediaIds(Collection<Long> mediaIds) {
+		SQLiteDatabase db = this.getWritableDatabase();
+		SQLiteStatement delete = getStatement(DELETE_LOCAL_SONG_BY_MEDIA_ID); 
+		SQLiteStatement deleteDuplicate = getStatement(DELETE_DUPLICATE_MEDIA); 
+		int deleted = 0; 
+		db.beginTransaction(); 
+		try {
+			synchronized (delete) {
+				for (Long mediaId : mediaIds) {
+					delete.bindLong(1, mediaId); 
+					deleted += delete.executeUpdateDelete(); 
+				}
+			}
+			synchronized (deleteDuplicate) {
+				for (Long mediaId : mediaIds) {
+					deleteDuplicate.bindLong(1, mediaId); 
+					deleteDuplicate.executeUpdateDelete(); 
+				}
+			}
+			db.setTransactionSuccessful(); 
+		} finally {
+			db.endTransaction(); 
+		}
+		return deleted; 
+	}
+	
+	private static final String DELETE_LOCAL_SONG_BY_MEDIA_ID = "DELETE FROM " + TABLE_TRACKS 
+			+ " WHERE " + KEY_LOCAL + " = 1 AND " + KEY_MEDIA_ID + " = ?"; 
+	
+	private static final String DELETE_DUPLICATE_MEDIA = "DELETE FROM " + TABLE_DUPLICATE_MEDIA 
+			+ " WHERE " + KEY_MEDIA_ID + " = ?"; 
+	
+	/**
+	 * Returns the music store IDs of the songs recorded as 
+	 * duplicates of tracks already in the library, and forgets 
+	 * them, so they can be added again. Those that are still 
+	 * duplicates are recorded again by the SongInserter. 
+	 * 
+	 * @returns ArrayList<Long> mediaIds
+	 */
+	public ArrayList<Long> takeDuplicateMediaIds() {
+		ArrayList<Long> mediaIds = new ArrayList<Long>(); 
+		SQLiteDatabase db = this.getWritableDatabase();
+		db.beginTransaction(); 
+		try {
+			Cursor cursor = db.rawQuery("SELECT " + KEY_MEDIA_ID + " FROM " + TABLE_DUPLICATE_MEDIA, null); 
+			try {
+				while (cursor.moveToNext()) {
+					mediaIds.add(cursor.getLong(0)); 
+				}
+			} finally {
+				cursor.close(); 
+			}
+			db.delete(TABLE_DUPLICATE_MEDIA, null, null); 
+			db.setTransactionSuccessful(); 
+		} finally {
+			db.endTransaction(); 
+		}
+		return mediaIds; 
+	}
+	
+	/**
+	 * Deletes local songs that were loaded without a music store 
+	 * ID, by versions of the app before incremental rescans, so 
+	 * that the next scan loads them again with their IDs. 
 	 * 
-	 * @param String ipAddr
 	 * @returns int number of rows deleted.
 	 */
-	public int deleteSongsFromIp(String ipAddr) {
+	public int deleteUnscannedLocalSongs() {
+		SQLiteDatabase db = this.getWritableDatabase();
+		return db.delete(TABLE_TRACKS, KEY_LOCAL + " = 1 AND " + KEY_MEDIA_ID + " IS NULL", null);
+	}
+	
+	/**
+	 * Deletes the albums that no longer have any songs, 
+	 * then the artists that no longer have any albums. 
+	 * 
+	 * @returns int number of albums deleted.
+	 */
+	public int deleteEmptyAlbums() {
+		SQLiteDatabase db = this.getWritableDatabase();
+		db.beginTransaction(); 
+		try {
+			int deleted = db.delete(TABLE_ALBUMS, "NOT EXISTS (SELECT 1 FROM " + TABLE_TRACKS + " t WHERE t." 
+					+ KEY_ALBUM_ID + " = " + TABLE_ALBUMS + "." + KEY_ID + ")", null);
+			db.delete(TABLE_ARTISTS, "NOT EXISTS (SELECT 1 FROM " + TABLE_ALBUMS + " al WHERE al." 
+					+ KEY_ARTIST_ID + " = " + TABLE_ARTISTS + "." + KEY_ID + ")", null);
+			db.setTransactionSuccessful(); 
+			return deleted; 
+		} finally {
+			db.endTransaction(); 
+		}
+	}
+	
+	// Keys of the phones that local songs are played from
+	private static final String LOCAL_PEER_IDS = "SELECT " + KEY_PEER_ID + " FROM " + TABLE_TRACKS 
+			+ " WHERE " + KEY_LOCAL + " = 1"; 
+	
+	/**
+	 * Sets the ip address of all local songs in the library, 
+	 * which may have changed since they were loaded. Songs from 
+	 * another phone that had the address before are deleted. 
+	 * 
+	 * @param String ipAddr
+	 * @returns int number of phone rows updated
+	 */
+	public int updateIpForLocalSongs(String ipAddr) {
 		SQLiteDatabase db = this.getWritableDatabase();
-		return db.delete(TABLE_SONGS, KEY_IP + "='" + ipAddr + "'", null);
+		db.beginTransaction(); 
+		try {
+			String[] whereArgs = new String[] {ipAddr}; 
+			db.delete(TABLE_TRACKS, KEY_LOCAL + " = 0 AND " + KEY_PEER_ID + " IN (SELECT " + KEY_ID + " FROM " 
+					+ TABLE_PEERS + " WHERE " + KEY_IP + " = ?)", whereArgs);
+			db.delete(TABLE_PEERS, KEY_IP + " = ? AND " + KEY_ID + " NOT IN (" + LOCAL_PEER_IDS + ")", whereArgs);
+			
+			ContentValues args = new ContentValues();
+			args.put(KEY_IP, ipAddr);
+			int updated = db.update(TABLE_PEERS, args, KEY_ID + " IN (" + LOCAL_PEER_IDS + ")", null);
+			db.setTransactionSuccessful(); 
+			return updated; 
+		} finally {
+			db.endTransaction(); 
+		}
 	}
 	
 	/**
-	 * Updates the port number for all local songs based on the server port.
+	 * Updates the port number for all local songs, 
+	 * in the library and the jam, based on the server port.
 	 * 
-	 * @returns int number of rows updated
+	 * @returns int number of phone rows updated
 	 */
 	public int updatePortForLocalSongs() {
 		SQLiteDatabase db = this.getWritableDatabase();
 		ContentValues args = new ContentValues();
 		args.put(KEY_PORT,  g.getServerPort());
-		int updated = db.update(TABLE_SONGS,  args,  KEY_LOCAL + "='" + 1 + "'", null);
-		updated += db.update(TABLE_JAM,  args,  KEY_LOCAL + "='" + 1 + "'", null);
+		int updated = db.update(TABLE_PEERS,  args,  KEY_ID + " IN (" + LOCAL_PEER_IDS + ")", null);
+		g.jam.updatePortForLocalSongs(g.getServerPort()); 
 		return updated;
 	}
 	
@@ -1082,16 +2211,19 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 	 * @returns long id of the jam
 	 */
 	public long createJamInLog() {
-		SQLiteDatabase db = this.getWritableDatabase();
-
-		ContentValues values = new ContentValues();
 		int timestamp = (int) (System.currentTimeMillis() / 1000L);
-		values.put(KEY_NUM_USERS, 1);
-		values.put(KEY_START_TIME, timestamp);
-		values.put(KEY_LATEST_TIME, timestamp);
-		return db.insert(TABLE_LOG, null, values);
+		SQLiteStatement insert = getStatement(INSERT_LOG); 
+		synchronized (insert) {
+			insert.bindLong(1, 1); 
+			insert.bindLong(2, timestamp); 
+			insert.bindLong(3, timestamp); 
+			return insert.executeInsert(); 
+		}
 	}
 	
+	private static final String INSERT_LOG = "INSERT INTO " + TABLE_LOG + " (" + KEY_NUM_USERS + ", " 
+			+ KEY_START_TIME + ", " + KEY_LATEST_TIME + ") VALUES (?, ?, ?)"; 
+	
 	/**
 	 * Updates the latest_time timestamp for the provided jamId.
 	 * 
@@ -1099,48 +2231,65 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 	 * @returns the number of rows updated, which should always just be 1.
 	 */
 	public int updateJamTimestamp(long jamId) {
-		SQLiteDatabase db = this.getWritableDatabase();
-		ContentValues values = new ContentValues();
-		values.put(KEY_LATEST_TIME, (int) (System.currentTimeMillis() / 1000L));
-		return db.update(TABLE_LOG, values, KEY_ID + "='" + String.valueOf(jamId)+ "'", null);
+		SQLiteStatement update = getStatement(UPDATE_LOG_TIMESTAMP); 
+		synchronized (update) {
+			update.bindLong(1, (int) (System.currentTimeMillis() / 1000L)); 
+			update.bindLong(2, jamId); 
+			return update.executeUpdateDelete(); 
+		}
 	}
 	
+	private static final String UPDATE_LOG_TIMESTAMP = "UPDATE " + TABLE_LOG 
+			+ " SET " + KEY_LATEST_TIME + " = ? WHERE " + KEY_ID + " = ?"; 
+	
 	/**
 	 * Increments the number of users in the jam specified by the provided id.
 	 * 
 	 * @param long jamId
 	 */
 	public void incrementJamNumUsers(long jamId) {
-		SQLiteDatabase db = this.getWritableDatabase();
-		db.execSQL("UPDATE " + TABLE_LOG + " SET "
-                + KEY_NUM_USERS + " = " + KEY_NUM_USERS + " +1 WHERE "
-                + KEY_ID + "='" + String.valueOf(jamId) + "'");
+		SQLiteStatement update = getStatement(INCREMENT_LOG_NUM_USERS); 
+		synchronized (update) {
+			update.bindLong(1, jamId); 
+			update.executeUpdateDelete(); 
+		}
 	}
 	
+	private static final String INCREMENT_LOG_NUM_USERS = "UPDATE " + TABLE_LOG + " SET "
+			+ KEY_NUM_USERS + " = " + KEY_NUM_USERS + " +1 WHERE " + KEY_ID + " = ?"; 
+	
 	/**
 	 * Updates the number of songs in the jam log specified by the provided id.
-	 * The number of songs is set to the number of entries in the song table at
+	 * The number of songs is set to the number of entries in the tracks table at
 	 * the time that the method is executed.
 	 * 
 	 * @param longJamId
 	 * @returns int number of rows updated, which should always be 1
 	 */
 	public int updateNumSongs(long jamId) {
-		SQLiteDatabase db = this.getWritableDatabase();
-		
 		// number of songs should be equals to the number of entries in the 
-		// song table
-		long numSongs = DatabaseUtils.queryNumEntries(db, TABLE_SONGS);
-
-		ContentValues values = new ContentValues();
-		values.put(KEY_NUM_SONGS, numSongs);
-		String where = KEY_ID + "=? AND " + KEY_NUM_SONGS + "<?";
-		String whereArgs[] = new String[] {String.valueOf(jamId), String.valueOf(numSongs)};
+		// tracks table
+		long numSongs; 
+		SQLiteStatement count = getStatement(COUNT_TRACKS); 
+		synchronized (count) {
+			numSongs = count.simpleQueryForLong(); 
+		}
 				
 		// only update the number of songs if it is greater than the previous number of songs.
-		return db.update(TABLE_LOG, values, where, whereArgs);	
+		SQLiteStatement update = getStatement(UPDATE_LOG_NUM_SONGS); 
+		synchronized (update) {
+			update.bindLong(1, numSongs); 
+			update.bindLong(2, jamId); 
+			update.bindLong(3, numSongs); 
+			return update.executeUpdateDelete(); 
+		}
 	}
 	
+	private static final String COUNT_TRACKS = "SELECT COUNT(*) FROM " + TABLE_TRACKS; 
+	
+	private static final String UPDATE_LOG_NUM_SONGS = "UPDATE " + TABLE_LOG + " SET " + KEY_NUM_SONGS 
+			+ " = ? WHERE " + KEY_ID + " = ? AND " + KEY_NUM_SONGS + " < ?"; 
+	
 	/**
 	 * Returns all jam logs which have not been updated in the last 15 seconds as a JSONObject.
 	 * The object has one record: jam_list, which is a list of json jams. Each json jam has
@@ -1152,10 +2301,10 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 		
 		int timestamp = (int) (System.currentTimeMillis() / 1000L);
 		
-		String query = "SELECT * FROM " + TABLE_LOG + " WHERE " + KEY_LATEST_TIME + " < " + (timestamp - 15);
+		String query = "SELECT * FROM " + TABLE_LOG + " WHERE " + KEY_LATEST_TIME + " < ?";
 
 		SQLiteDatabase db = this.getWritableDatabase();
-		Cursor cursor = db.rawQuery(query, null);
+		Cursor cursor = db.rawQuery(query, new String[] {String.valueOf(timestamp - 15)});
 		int numEntries = 0;
 		
 		if (cursor.moveToFirst()) {
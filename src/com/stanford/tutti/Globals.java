@@ -47,6 +47,10 @@ public class Globals extends Application {
 
 	DatabaseHandler db; 
 	
+	ArtStore artStore; 
+	
+	ThumbnailLoader thumbnails; 
+	
 	private static Context context; 
 	private LoggerAlarmReceiver loggerAlarm;
 	
@@ -60,12 +64,27 @@ public class Globals extends Application {
 		super.onCreate();
 		Globals.context = getApplicationContext(); 
 		db = new DatabaseHandler(this);
+		artStore = new ArtStore(this); 
+		thumbnails = new ThumbnailLoader(this); 
+		MusicLibraryLoaderThread.watchForChanges(this); 
 		jam.setIPUsername(getIpAddr(), getUsername());
 		discoveryManager = new DiscoveryManager(this);
 		logger = new Logger(this);
 		loggerAlarm = new LoggerAlarmReceiver();
 		loggerAlarm.setAlarm(context, false);
 	}
+	
+	/**
+	 * Frees the cached album art thumbnails 
+	 * when the system is running low on memory. 
+	 * 
+	 * @see android.app.Application#onLowMemory()
+	 */
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory(); 
+		thumbnails.clearMemory(); 
+	}
 
 	/**
 	 * Helper method to get the global context
@@ -1,9 +1,22 @@
 package com.stanford.tutti;
 
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.http.Header;
 import org.json.JSONArray;
@@ -14,6 +27,7 @@ import com.loopj.android.http.AsyncHttpClient;
 import com.loopj.android.http.AsyncHttpResponseHandler;
 
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnPreparedListener;
@@ -26,10 +40,77 @@ import android.widget.Toast;
  * Each jam has a single "master" phone (by default, the phone
  * that created the jam), which maintains the canonical jam state 
  * and acts as the central source of synchronization for remote Clients. 
+ * 
+ * The song list lives in memory, indexed by timestamp ID and by song 
+ * hash, so reads and edits never wait on the disk. Edits are written 
+ * behind to the jam table, coalesced into one transaction per flush. 
+ * 
+ * The song list is a sequence CRDT keyed by timestamp ID. Songs are 
+ * ordered by their position keys (see PositionKey), ties broken by 
+ * timestamp ID; each song's position is a last-writer-wins register, 
+ * stamped with a VersionStamp; and removed songs leave a tombstone, 
+ * so that a late add or move of them is ignored. Edits therefore 
+ * commute, and any phone can apply its own edits at once and still 
+ * converge with the others once everyone has seen the same edits. 
+ * 
+ * The master records each edit as an operation with a sequence number, 
+ * and Clients replay the operations they are sent in order. A Client 
+ * that sees a gap in the sequence asks the master for the operations 
+ * it missed, or for a full snapshot if they have left the log. 
+ * Broadcasts are debounced, so that a burst of edits reaches each 
+ * Client as a single batch, and each Client's outbound queue keeps 
+ * at most one jam update waiting so that batches arrive in order. 
  */
 public class Jam {
+	// Delay before persisting the jam, so that bursts of edits share a write
+	private static final long PERSIST_DELAY_MS = 500; 
+	
+	// Columns of the cursor returned by getSongs: the songs view columns up to the port, the jam fields, then the art hash
+	private static final String[] SONG_CURSOR_COLUMNS = {"_id", "title", "artist", "album", "path", 
+		"local", "art", "hash", "_ip", "port", "jamIndex", "addedBy", "timestamp", "artHash"}; 
+	
 	private int currIndex; 
-	private int currSize; 
+	private ArrayList<Song> songs; 
+	private HashMap<String, Integer> indexById; 
+	private HashMap<Integer, Integer> hashCounts; 
+	
+	private ScheduledExecutorService persistExecutor; 
+	private AtomicBoolean persistScheduled; 
+	
+	// Sequence CRDT state: the stamp of each song's position, the 
+	// timestamp IDs of removed songs with the sequence number of 
+	// their removal, and this phone's Lamport clock
+	private HashMap<String, VersionStamp> positionStamps; 
+	private HashMap<String, Long> removedIds; 
+	private long clock; 
+	
+	// Rows to write at the next persist, by timestamp ID; a null song deletes the row
+	private LinkedHashMap<String, Song> pendingWrites; 
+	private boolean pendingRewrite; 
+	
+	// Number of recent operations the master keeps for Clients catching up
+	private static final int OP_LOG_SIZE = 128; 
+	
+	// Operation types
+	private static final String OP_ADD = "add"; 
+	private static final String OP_MOVE = "move"; 
+	private static final String OP_REMOVE = "remove"; 
+	private static final String OP_SET = "set"; 
+	private static final String OP_SNAPSHOT = "snapshot"; 
+	
+	private long seq; 
+	private LinkedList<JSONObject> opLog; 
+	private boolean resyncing; 
+	
+	// Default window in which broadcasts are coalesced into one update per Client
+	private static final long BROADCAST_WINDOW_MS = 50; 
+	
+	private long broadcastWindowMs; 
+	private ScheduledExecutorService broadcastExecutor; 
+	private AtomicBoolean broadcastScheduled; 
+	private HashMap<Client, Long> clientSeqs; 
+	private AtomicLong updatesRequested; 
+	private AtomicLong updatesSent; 
 
 	private boolean isShuffled; 
 	private boolean master; 
@@ -50,7 +131,25 @@ public class Jam {
 	public Jam(Globals gl) {
 		this.g = gl; 
 		currIndex = -1; 
-		currSize = 0; 
+		songs = new ArrayList<Song>(); 
+		indexById = new HashMap<String, Integer>(); 
+		hashCounts = new HashMap<Integer, Integer>(); 
+		persistExecutor = Executors.newSingleThreadScheduledExecutor(); 
+		persistScheduled = new AtomicBoolean(false); 
+		positionStamps = new HashMap<String, VersionStamp>(); 
+		removedIds = new HashMap<String, Long>(); 
+		clock = 0; 
+		pendingWrites = new LinkedHashMap<String, Song>(); 
+		pendingRewrite = false; 
+		seq = 0; 
+		broadcastWindowMs = BROADCAST_WINDOW_MS; 
+		broadcastExecutor = Executors.newSingleThreadScheduledExecutor(); 
+		broadcastScheduled = new AtomicBoolean(false); 
+		clientSeqs = new HashMap<Client, Long>(); 
+		updatesRequested = new AtomicLong(); 
+		updatesSent = new AtomicLong(); 
+		opLog = new LinkedList<JSONObject>(); 
+		resyncing = false; 
 		isShuffled = false; 
 		mediaPlayer = new MediaPlayer(); 
 		mediaPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {			
@@ -60,12 +159,9 @@ public class Jam {
 					playCurrentSong();
 				}
 				if (checkMaster()) {
-					g.jamLock.lock(); 
-					JSONObject jsonJam = toJSON(); 
-					g.jamLock.unlock(); 
 					g.uiUpdateHandler.sendEmptyMessage(0);
 					
-					broadcastJamUpdate(jsonJam); 
+					broadcastJamUpdate(); 
 				}
 			}
 		});
@@ -129,6 +225,10 @@ public class Jam {
 		synchronized (clientSet) {
 			clientSet.add(client);
 		}
+		synchronized (this) {
+			// The Client loads a snapshot of the jam at least this recent
+			clientSeqs.put(client, seq); 
+		}
 		usernameMap.put(client.getIpAddress(), client.getUsername());
 		g.logger.updateUsers(client.getIpAddress());
 	}
@@ -227,8 +327,16 @@ public class Jam {
 	 * 
 	 * @return Cursor songsCursor
 	 */
-	public Cursor getSongs() {
-		return g.db.getSongsInJam(); 
+	public synchronized Cursor getSongs() {
+		MatrixCursor cursor = new MatrixCursor(SONG_CURSOR_COLUMNS, songs.size()); 
+		for (int i = 0; i < songs.size(); i++) {
+			Song song = songs.get(i); 
+			cursor.addRow(new Object[] {i, song.getTitle(), song.getArtist(), song.getAlbum(), 
+					song.getPath(), song.isLocal() ? 1 : 0, song.getAlbumArt(), 
+					Integer.toString(song.hashCode()), song.getIpAddr(), song.getPort(), 
+					i, song.getAddedBy(), song.getJamID(), song.getArtHash()}); 
+		}
+		return cursor; 
 	}
 
 	/**
@@ -238,10 +346,9 @@ public class Jam {
 	 * @param Song song
 	 * @return String timestampID
 	 */
-	public String addSong(Song song) {
+	public synchronized String addSong(Song song) {
 		String timestamp = g.getTimestamp(); 
-		g.db.addSongToJam(song, currSize, timestamp);
-		currSize++;
+		addSongWithTimestamp(song, timestamp); 
 		return timestamp; 
 	}
 
@@ -252,9 +359,65 @@ public class Jam {
 	 * @param Song song
 	 * @param String timestampID
 	 */
-	public void addSongWithTimestamp(Song song, String timestamp) {
-		g.db.addSongToJam(song, currSize, timestamp); 
-		currSize++; 
+	public synchronized void addSongWithTimestamp(Song song, String timestamp) {
+		song.setJamID(timestamp); 
+		String last = songs.isEmpty() ? null : songs.get(songs.size() - 1).getJamPosition(); 
+		mergeAdd(song, PositionKey.between(last, null), nextStamp()); 
+	}
+	
+	/**
+	 * Adds the given song, which already has a timestamp ID, 
+	 * at the given position key, as an edit made on this or 
+	 * any other phone. An add of a song that is already in 
+	 * the jam is merged as a move, and an add of a removed 
+	 * song is ignored. 
+	 * 
+	 * @param Song song
+	 * @param String position
+	 * @param VersionStamp stamp
+	 * @return boolean changed
+	 */
+	public synchronized boolean mergeAdd(Song song, String position, VersionStamp stamp) {
+		String jamID = song.getJamID(); 
+		if (removedIds.containsKey(jamID)) {
+			return false; 
+		}
+		observe(stamp); 
+		if (indexById.containsKey(jamID)) {
+			return mergeMove(jamID, position, stamp); 
+		}
+		
+		int index = insertSong(song, position, stamp); 
+		logOp(OP_ADD, "index", index, "position", position, "stamp", stamp.toString(), "song", song.toJSON()); 
+		checkPosition(position, index); 
+		return true; 
+	}
+	
+	/**
+	 * Inserts the given song, which already has a timestamp 
+	 * ID, in order of the given position key. 
+	 * 
+	 * @param Song song
+	 * @param String position
+	 * @param VersionStamp stamp
+	 * @return int index
+	 */
+	private int insertSong(Song song, String position, VersionStamp stamp) {
+		song.setJamPosition(position); 
+		positionStamps.put(song.getJamID(), stamp); 
+		int index = sortedIndex(position, song.getJamID()); 
+		songs.add(index, song); 
+		reindex(index, songs.size() - 1); 
+		persistSong(song.getJamID(), song); 
+		
+		int hash = song.hashCode(); 
+		Integer count = hashCounts.get(hash); 
+		hashCounts.put(hash, count == null ? 1 : count + 1); 
+		
+		if (currIndex >= index) {
+			currIndex++; 
+		}
+		return index; 
 	}
 
 	/**
@@ -276,8 +439,8 @@ public class Jam {
 	 * 
 	 * @return Song currentSong
 	 */
-	public Song getCurrentSong() {
-		return g.db.getSongInJamByIndex(currIndex); 
+	public synchronized Song getCurrentSong() {
+		return getSongByIndex(currIndex); 
 	}
 
 	/**
@@ -294,12 +457,14 @@ public class Jam {
 	 * 
 	 * @return boolean iteratedSuccessfully
 	 */
-	public boolean iterateCurrentSong() {
+	public synchronized boolean iterateCurrentSong() {
 		currIndex++;
-		if (currIndex >= currSize) {
+		if (currIndex >= songs.size()) {
 			currIndex = 0;
+			logCurrentSong(); 
 			return false;
 		}
+		logCurrentSong(); 
 		return true;
 	}
 
@@ -308,16 +473,12 @@ public class Jam {
 	 * 
 	 * @param String timestampID
 	 */
-	public void setCurrentSong(String timestamp) {
-		Cursor cursor = g.db.getSongInJamByID(timestamp); 
-
-		if (isShuffled()) {
-			currIndex = cursor.getInt(cursor.getColumnIndex("shuffleIndex")); 
-		} else {
-			currIndex = cursor.getInt(cursor.getColumnIndex("jamIndex")); 
+	public synchronized void setCurrentSong(String timestamp) {
+		Integer index = indexById.get(timestamp); 
+		if (index != null) {
+			currIndex = index; 
+			logCurrentSong(); 
 		}
-
-		cursor.close(); 
 	}
 
 	/**
@@ -327,44 +488,97 @@ public class Jam {
 	 * @param int index
 	 * @return String timestampID
 	 */
-	public String setCurrentSongIndex(int index) {
-		if (index < currSize) {
+	public synchronized String setCurrentSongIndex(int index) {
+		if (index < songs.size()) {
 			currIndex = index; 
+			logCurrentSong(); 
 		}
 
 		return getSongIdByIndex(index); 
 	}
 
 	/**
-	 * Returns the song at the given index of the jam. 
+	 * Returns the song at the given index of the jam, 
+	 * or null if none exists. 
 	 * 
 	 * @param int index
 	 * @return Song song
 	 */
-	public Song getSongByIndex(int index) {
-		return g.db.getSongInJamByIndex(index);  
+	public synchronized Song getSongByIndex(int index) {
+		if (index < 0 || index >= songs.size()) {
+			return null; 
+		}
+		return songs.get(index); 
 	}
 
 	/**
 	 * Returns the timestamp ID of the song at the given
-	 * index in the jam. 
+	 * index in the jam, or the empty string if none exists. 
 	 * 
 	 * @param int index
 	 * @return String timestampID
 	 */
-	public String getSongIdByIndex(int index) {
-		return g.db.getJamSongIDByIndex(index); 
+	public synchronized String getSongIdByIndex(int index) {
+		Song song = getSongByIndex(index); 
+		if (song == null) {
+			return ""; 
+		}
+		return song.getJamID(); 
 	}
 
 	/**
 	 * Moves the song with the given timestamp ID 
-	 * to a new index in the jam. 
+	 * to a new index in the jam, by giving it a new 
+	 * position key between its new neighbors. 
 	 * 
 	 * @param String jamSongId
 	 * @param int toIndex
 	 */
-	public void changeSongIndexInJam(String jamSongId, int to) {
-		int from = g.db.changeSongIndexInJam(jamSongId, to);
+	public synchronized void changeSongIndexInJam(String jamSongId, int to) {
+		Integer fromIndex = indexById.get(jamSongId); 
+		if (fromIndex == null || to < 0 || to >= songs.size() || fromIndex == to) {
+			return; 
+		}
+		int from = fromIndex; 
+		
+		// The new neighbors, once the song is out of the list
+		int beforeIndex = to > from ? to : to - 1; 
+		int afterIndex = to > from ? to + 1 : to; 
+		String before = beforeIndex >= 0 ? songs.get(beforeIndex).getJamPosition() : null; 
+		String after = afterIndex < songs.size() ? songs.get(afterIndex).getJamPosition() : null; 
+		mergeMove(jamSongId, PositionKey.between(before, after), nextStamp()); 
+	}
+	
+	/**
+	 * Moves the song with the given timestamp ID to the given 
+	 * position key, as an edit made on this or any other phone. 
+	 * The move only takes effect if its stamp is newer than 
+	 * that of the song's current position. 
+	 * 
+	 * @param String jamSongId
+	 * @param String position
+	 * @param VersionStamp stamp
+	 * @return boolean changed
+	 */
+	public synchronized boolean mergeMove(String jamSongId, String position, VersionStamp stamp) {
+		Integer fromIndex = indexById.get(jamSongId); 
+		if (fromIndex == null) {
+			return false; 
+		}
+		observe(stamp); 
+		VersionStamp current = positionStamps.get(jamSongId); 
+		if (current != null && current.compareTo(stamp) >= 0) {
+			return false; 
+		}
+		int from = fromIndex; 
+		
+		Song song = songs.remove(from); 
+		song.setJamPosition(position); 
+		positionStamps.put(jamSongId, stamp); 
+		int to = sortedIndex(position, jamSongId); 
+		songs.add(to, song); 
+		reindex(Math.min(from, to), Math.max(from, to)); 
+		persistSong(jamSongId, song); 
 
 		if (currIndex == from) {
 			currIndex = to;
@@ -373,15 +587,21 @@ public class Jam {
 		} else if (from > to && currIndex < from && currIndex >= to) {
 			currIndex++; 
 		}
+		
+		logOp(OP_MOVE, "jamID", jamSongId, "to", to, "position", position, "stamp", stamp.toString()); 
+		checkPosition(position, to); 
+		return true; 
 	}
 
 	/**
 	 * Shuffles the jam, i.e., randomly rearranges
 	 * the indices of all songs after the current song. 
 	 */
-	public void shuffle() {
+	public synchronized void shuffle() {
 		if (!isShuffled()) {
-			g.db.shuffleJam(currIndex, currSize - 1); 
+			Collections.shuffle(songs.subList(currIndex + 1, songs.size())); 
+			reindex(currIndex + 1, songs.size() - 1); 
+			rebalance(); 
 			isShuffled = true; 
 		} else {
 
@@ -411,8 +631,8 @@ public class Jam {
 	 * @param Song song
 	 * @return boolean containsSong
 	 */
-	public boolean containsSong(Song song) {
-		return g.db.jamContainsSong(song); 
+	public synchronized boolean containsSong(Song song) {
+		return hashCounts.containsKey(song.hashCode()); 
 	}
 
 	/**
@@ -420,26 +640,48 @@ public class Jam {
 	 * 
 	 * @return int numSongs
 	 */
-	public int getJamSize() {
-		return currSize; 
+	public synchronized int getJamSize() {
+		return songs.size(); 
 	}
 
 	/**
 	 * Clears and resets the jam. 
 	 */
-	public void clearSongs() {
-		g.db.clearJam(); 
+	public synchronized void clearSongs() {
+		songs.clear(); 
+		indexById.clear(); 
+		hashCounts.clear(); 
+		positionStamps.clear(); 
+		removedIds.clear(); 
 		currIndex = -1; 
-		currSize = 0; 
+		pendingWrites.clear(); 
+		pendingRewrite = true; 
+		schedulePersist(); 
 	}
 
 	/**
-	 * Remove the song with the given timestamp ID from the jam. 
+	 * Remove the song with the given timestamp ID from the jam, 
+	 * as an edit made on this or any other phone. The song's 
+	 * timestamp ID is remembered, so that it stays removed even 
+	 * if an add or move of it arrives afterwards, until every 
+	 * phone has seen the removal (see pruneRemovedIds). 
 	 * 
 	 * @param String jamSongID
 	 */
-	public void removeSong(String jamSongID) {
-		int index = g.db.removeSongFromJam(jamSongID);
+	public synchronized void removeSong(String jamSongID) {
+		Integer removedIndex = indexById.get(jamSongID); 
+		if (removedIndex == null) {
+			removedIds.put(jamSongID, seq); 
+			return; 
+		}
+		int index = removedIndex; 
+		
+		forgetSong(songs.remove(index)); 
+		reindex(index, songs.size() - 1); 
+		logOp(OP_REMOVE, "jamID", jamSongID); 
+		removedIds.put(jamSongID, seq); 
+		pruneRemovedIds(); 
+		persistSong(jamSongID, null); 
 
 		if (currIndex > index) {
 			currIndex--; 
@@ -447,33 +689,671 @@ public class Jam {
 			currIndex = -1; 
 			playCurrentSong(); 
 		}
+	}
+	
+	/**
+	 * Removes all the songs on the phone with 
+	 * the given IP address from the jam. 
+	 * 
+	 * @param String ipAddr
+	 */
+	public synchronized void removeSongsFromIp(String ipAddr) {
+		ArrayList<Song> kept = new ArrayList<Song>(songs.size()); 
+		int newIndex = -1; 
+		for (int i = 0; i < songs.size(); i++) {
+			Song song = songs.get(i); 
+			if (ipAddr.equals(song.getIpAddr())) {
+				forgetSong(song); 
+				removedIds.put(song.getJamID(), seq); 
+				persistSong(song.getJamID(), null); 
+			} else {
+				if (i == currIndex) {
+					newIndex = kept.size(); 
+				}
+				kept.add(song); 
+			}
+		}
+		
+		if (kept.size() == songs.size()) {
+			return; 
+		}
+		
+		songs = kept; 
+		reindex(0, songs.size() - 1); 
+		currIndex = newIndex; 
+	}
+	
+	/**
+	 * Sets the album art for all songs in the jam 
+	 * from the album with the given title. 
+	 * 
+	 * @param String albumTitle
+	 * @param String albumArtPath
+	 */
+	public synchronized void setAlbumArt(String albumTitle, String path) {
+		for (Song song : songs) {
+			if (albumTitle.equals(song.getAlbum())) {
+				song.setAlbumArt(path); 
+				persistSong(song.getJamID(), song); 
+			}
+		}
+	}
+	
+	/**
+	 * Sets the album art for all songs in the jam 
+	 * whose art has the given content hash. 
+	 * 
+	 * @param String artHash
+	 * @param String albumArtPath
+	 */
+	public synchronized void setAlbumArtByArtHash(String artHash, String path) {
+		for (Song song : songs) {
+			if (artHash.equals(song.getArtHash())) {
+				song.setAlbumArt(path); 
+				persistSong(song.getJamID(), song); 
+			}
+		}
+	}
+	
+	/**
+	 * Sets the port number of all the local songs in the jam. 
+	 * 
+	 * @param int port
+	 */
+	public synchronized void updatePortForLocalSongs(int port) {
+		for (Song song : songs) {
+			if (song.isLocal()) {
+				song.setPort(port); 
+				persistSong(song.getJamID(), song); 
+			}
+		}
+	}
+	
+	/**
+	 * Updates the timestamp ID index for the songs 
+	 * between the given indices, inclusive. 
+	 * 
+	 * @param int from
+	 * @param int to
+	 */
+	private void reindex(int from, int to) {
+		for (int i = from; i <= to; i++) {
+			indexById.put(songs.get(i).getJamID(), i); 
+		}
+	}
+	
+	/**
+	 * Returns the index at which a song with the given position 
+	 * key and timestamp ID belongs in the sorted song list. 
+	 * 
+	 * @param String position
+	 * @param String jamSongID
+	 * @return int index
+	 */
+	private int sortedIndex(String position, String jamSongID) {
+		int low = 0; 
+		int high = songs.size(); 
+		while (low < high) {
+			int mid = (low + high) >>> 1; 
+			Song song = songs.get(mid); 
+			int cmp = song.getJamPosition().compareTo(position); 
+			if (cmp == 0) {
+				cmp = song.getJamID().compareTo(jamSongID); 
+			}
+			if (cmp < 0) {
+				low = mid + 1; 
+			} else {
+				high = mid; 
+			}
+		}
+		return low; 
+	}
+	
+	/**
+	 * Returns a new stamp from this phone's Lamport clock. 
+	 * 
+	 * @return VersionStamp stamp
+	 */
+	private VersionStamp nextStamp() {
+		clock++; 
+		return new VersionStamp(clock, g.getIpAddr()); 
+	}
+	
+	/**
+	 * Advances this phone's Lamport clock past a stamp 
+	 * seen in an edit, so its own later edits win over it. 
+	 * 
+	 * @param VersionStamp stamp
+	 */
+	private void observe(VersionStamp stamp) {
+		if (stamp.getClock() > clock) {
+			clock = stamp.getClock(); 
+		}
+	}
+	
+	/**
+	 * Rebalances the jam on the master once a position key 
+	 * has grown too long, or is shared with a neighbor. 
+	 * 
+	 * @param String position
+	 * @param int index, of the song with that position
+	 */
+	private void checkPosition(String position, int index) {
+		if (!master) {
+			return; 
+		}
+		boolean tied = (index > 0 && position.equals(songs.get(index - 1).getJamPosition())) 
+				|| (index + 1 < songs.size() && position.equals(songs.get(index + 1).getJamPosition())); 
+		if (tied || position.length() > PositionKey.MAX_LENGTH) {
+			rebalance(); 
+		}
+	}
+	
+	/**
+	 * Forgets the tombstones of songs whose removal every 
+	 * Client has acknowledged, since no edit of them can 
+	 * still be on its way. Only the master knows what Clients 
+	 * have acknowledged; a Client drops a tombstone once it 
+	 * replays the master's removal of the song instead. 
+	 */
+	private void pruneRemovedIds() {
+		if (!master || removedIds.isEmpty()) {
+			return; 
+		}
+		long acked = seq; 
+		for (Long clientSeq : clientSeqs.values()) {
+			acked = Math.min(acked, clientSeq); 
+		}
+		Iterator<Long> removals = removedIds.values().iterator(); 
+		while (removals.hasNext()) {
+			if (removals.next() <= acked) {
+				removals.remove(); 
+			}
+		}
+	}
+	
+	/**
+	 * Gives every song in the jam a new, evenly spaced position 
+	 * key in its current order, under a single new stamp, sends 
+	 * the result to Clients as a snapshot, and rewrites the jam 
+	 * table at the next persist. Only the master rebalances, 
+	 * since positions are shared by every phone in the jam. 
+	 */
+	private void rebalance() {
+		String[] positions = PositionKey.spread(songs.size()); 
+		VersionStamp stamp = nextStamp(); 
+		for (int i = 0; i < songs.size(); i++) {
+			Song song = songs.get(i); 
+			song.setJamPosition(positions[i]); 
+			positionStamps.put(song.getJamID(), stamp); 
+		}
+		pendingWrites.clear(); 
+		pendingRewrite = true; 
+		schedulePersist(); 
+		logOp(OP_SNAPSHOT, "jam", toJSON()); 
+	}
+	
+	/**
+	 * Returns the position key and stamp of the song with 
+	 * the given timestamp ID, for sending an edit of it 
+	 * to the master, or null if it isn't in the jam. 
+	 * 
+	 * @param String jamSongID
+	 * @return String[] {position, stamp}
+	 */
+	private synchronized String[] getPositionAndStamp(String jamSongID) {
+		Integer index = indexById.get(jamSongID); 
+		if (index == null) {
+			return null; 
+		}
+		VersionStamp stamp = positionStamps.get(jamSongID); 
+		return new String[] {songs.get(index).getJamPosition(), 
+				stamp == null ? VersionStamp.ZERO.toString() : stamp.toString()}; 
+	}
+	
+	/**
+	 * Queues one row of the jam table to be written 
+	 * at the next persist. 
+	 * 
+	 * @param String jamSongID
+	 * @param Song song, or null to delete the row
+	 */
+	private void persistSong(String jamSongID, Song song) {
+		if (!pendingRewrite) {
+			pendingWrites.put(jamSongID, song); 
+		}
+		schedulePersist(); 
+	}
+	
+	/**
+	 * Drops a song that has been removed from the 
+	 * song list from the ID and hash indexes. 
+	 * 
+	 * @param Song song
+	 */
+	private void forgetSong(Song song) {
+		indexById.remove(song.getJamID()); 
+		
+		int hash = song.hashCode(); 
+		Integer count = hashCounts.get(hash); 
+		if (count != null && count > 1) {
+			hashCounts.put(hash, count - 1); 
+		} else {
+			hashCounts.remove(hash); 
+		}
+	}
+	
+	/**
+	 * Records an edit made on the master as the next operation 
+	 * in the log, to be sent to Clients by broadcastJamUpdate. 
+	 * Does nothing on Clients, which only replay operations. 
+	 * 
+	 * @param String type
+	 * @param Object... fields (alternating names and values)
+	 */
+	private void logOp(String type, Object... fields) {
+		if (!master) {
+			return; 
+		}
+		
+		JSONObject op = new JSONObject(); 
+		try {
+			op.put("op", type); 
+			for (int i = 0; i + 1 < fields.length; i += 2) {
+				op.put((String) fields[i], fields[i + 1]); 
+			}
+			seq++; 
+			op.put("seq", seq); 
+		} catch (JSONException e) {
+			e.printStackTrace();
+			return; 
+		}
+		
+		opLog.add(op); 
+		if (opLog.size() > OP_LOG_SIZE) {
+			opLog.removeFirst(); 
+		}
+	}
+	
+	/**
+	 * Records a change of the current song. 
+	 */
+	private void logCurrentSong() {
+		logOp(OP_SET, "jamID", getSongIdByIndex(currIndex)); 
+	}
+	
+	/**
+	 * Returns the logged operations after the given 
+	 * sequence number, or null if some of them have 
+	 * already been dropped from the log. 
+	 * 
+	 * @param long since
+	 * @return JSONArray ops
+	 */
+	private JSONArray getOpsSince(long since) {
+		if (since > seq) {
+			return null; 
+		}
+		if (since < seq && (opLog.isEmpty() || opLog.getFirst().optLong("seq") > since + 1)) {
+			return null; 
+		}
+		
+		JSONArray ops = new JSONArray(); 
+		for (JSONObject op : opLog) {
+			if (op.optLong("seq") > since) {
+				ops.put(op); 
+			}
+		}
+		return ops; 
+	}
 
-		currSize--; 
+	/**
+	 * Schedules a write of the jam to the jam table. 
+	 * All the edits made before the write runs are 
+	 * saved together in a single transaction, which 
+	 * only touches the rows of the songs that changed, 
+	 * unless the whole jam was cleared or rebalanced. 
+	 */
+	private void schedulePersist() {
+		if (!persistScheduled.compareAndSet(false, true)) {
+			return; 
+		}
 		
+		persistExecutor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				persistScheduled.set(false); 
+				ArrayList<Song> snapshot = null; 
+				ArrayList<Song> written = new ArrayList<Song>(); 
+				ArrayList<String> removed = new ArrayList<String>(); 
+				synchronized (Jam.this) {
+					if (pendingRewrite) {
+						snapshot = new ArrayList<Song>(songs); 
+					} else {
+						for (Map.Entry<String, Song> write : pendingWrites.entrySet()) {
+							if (write.getValue() == null) {
+								removed.add(write.getKey()); 
+							} else {
+								written.add(write.getValue()); 
+							}
+						}
+					}
+					pendingWrites.clear(); 
+					pendingRewrite = false; 
+				}
+				try {
+					if (snapshot != null) {
+						g.db.saveJam(snapshot); 
+					} else {
+						g.db.updateJam(written, removed); 
+					}
+				} catch (Exception e) {
+					e.printStackTrace(); 
+				}
+			}
+		}, PERSIST_DELAY_MS, TimeUnit.MILLISECONDS); 
 	}
 
 	/**
-	 * Sends a message to all remote Clients to update their 
-	 * local versions of the jam to match the master. 
+	 * Sends the operations logged since the last broadcast 
+	 * to all remote Clients, so that their local versions 
+	 * of the jam match the master. The update goes out after 
+	 * the broadcast window, together with any other edits 
+	 * broadcast in the meantime. 
 	 * Should only be called on the master phone of the jam. 
-	 * 
-	 * @param JSONObject jsonJam
 	 */
-	public void broadcastJamUpdate(JSONObject jsonJam) {
+	public void broadcastJamUpdate() {
 		if (master) {
-			for (Client client : clientSet) {
-				client.updateJam(jsonJam, new AsyncHttpResponseHandler() {
-
-				});
+			synchronized (clientSet) {
+				updatesRequested.addAndGet(clientSet.size()); 
 			}
+			
+			if (!broadcastScheduled.compareAndSet(false, true)) {
+				return; 
+			}
+			broadcastExecutor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					broadcastScheduled.set(false); 
+					
+					ArrayList<Client> clients; 
+					synchronized (clientSet) {
+						clients = new ArrayList<Client>(clientSet); 
+					}
+					for (Client client : clients) {
+						sendJamUpdate(client); 
+					}
+				}
+			}, broadcastWindowMs, TimeUnit.MILLISECONDS); 
 		} else {
 			System.out.println("Error: Master maintains and broadcasts canonical Jam"); 
 		}
 	}
+	
+	/**
+	 * Queues an update for the given Client carrying every 
+	 * operation it has not yet acknowledged. The Client sends 
+	 * one update at a time, and a queued update is replaced 
+	 * by a newer one, so batches arrive in order and a slow 
+	 * Client never has more than one update waiting. 
+	 * A failed update is queued again after a backoff, 
+	 * for as long as the Client is still behind. 
+	 * 
+	 * @param Client client
+	 */
+	private void sendJamUpdate(final Client client) {
+		client.updateJam(new Client.JamUpdateSource() {
+			private long sentSeq; 
+			
+			@Override
+			public JSONObject createJamUpdate() {
+				synchronized (Jam.this) {
+					Long clientSeq = clientSeqs.get(client); 
+					if (clientSeq == null || clientSeq >= seq) {
+						// No longer in the jam, or already up to date
+						return null; 
+					}
+					sentSeq = seq; 
+					updatesSent.incrementAndGet(); 
+					return getUpdateSince(clientSeq); 
+				}
+			}
+			
+			@Override
+			public void onJamUpdateSent() {
+				synchronized (Jam.this) {
+					Long clientSeq = clientSeqs.get(client); 
+					if (clientSeq != null && clientSeq < sentSeq) {
+						clientSeqs.put(client, sentSeq); 
+						pruneRemovedIds(); 
+					}
+				}
+			}
+			
+			@Override
+			public void onJamUpdateFailed() {
+				broadcastExecutor.schedule(new Runnable() {
+					@Override
+					public void run() {
+						synchronized (Jam.this) {
+							Long clientSeq = clientSeqs.get(client); 
+							if (clientSeq == null || clientSeq >= seq) {
+								return; 
+							}
+						}
+						sendJamUpdate(client); 
+					}
+				}, client.getOutboundTimeout(), TimeUnit.MILLISECONDS); 
+			}
+		}); 
+	}
+	
+	/**
+	 * Sets the window in which broadcasts are coalesced. 
+	 * 
+	 * @param long windowMs
+	 */
+	public void setBroadcastWindow(long windowMs) {
+		this.broadcastWindowMs = windowMs; 
+	}
+	
+	/**
+	 * Returns the number of per-Client updates that 
+	 * broadcasts would have sent without coalescing. 
+	 * 
+	 * @return long updatesRequested
+	 */
+	public long getUpdatesRequested() {
+		return updatesRequested.get(); 
+	}
+	
+	/**
+	 * Returns the number of per-Client updates actually sent. 
+	 * 
+	 * @return long updatesSent
+	 */
+	public long getUpdatesSent() {
+		return updatesSent.get(); 
+	}
+	
+	/**
+	 * Returns the number of per-Client updates saved by coalescing. 
+	 * 
+	 * @return long updatesCoalesced
+	 */
+	public long getUpdatesCoalesced() {
+		return Math.max(0, updatesRequested.get() - updatesSent.get()); 
+	}
+	
+	/**
+	 * Returns an update holding the operations after the 
+	 * given sequence number, or a snapshot of the whole jam 
+	 * if some of them have already been dropped from the log. 
+	 * 
+	 * @param long since
+	 * @return JSONObject update
+	 */
+	public synchronized JSONObject getUpdateSince(long since) {
+		JSONArray ops = getOpsSince(since); 
+		if (ops == null) {
+			ops = new JSONArray(); 
+			ops.put(snapshotOp()); 
+		}
+		
+		JSONObject update = new JSONObject(); 
+		try {
+			update.put("ops", ops); 
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		return update; 
+	}
+	
+	/**
+	 * Returns a snapshot operation holding the whole jam, 
+	 * which brings a Client up to the current sequence number. 
+	 * 
+	 * @return JSONObject op
+	 */
+	private JSONObject snapshotOp() {
+		JSONObject op = new JSONObject(); 
+		try {
+			op.put("op", OP_SNAPSHOT); 
+			op.put("jam", toJSON()); 
+			op.put("seq", seq); 
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		return op; 
+	}
+	
+	/**
+	 * Applies operations sent from the master phone, in order. 
+	 * Operations that were already applied are skipped. If an 
+	 * operation is missing, the rest are dropped and the missing 
+	 * ones are requested from the master instead. 
+	 * 
+	 * @param JSONArray ops
+	 */
+	public synchronized void applyOps(JSONArray ops) {
+		boolean changed = false; 
+		try {
+			HashMap<String, String> artMap = new HashMap<String, String>(); 
+			for (int i = 0; i < ops.length(); i++) {
+				JSONObject op = ops.getJSONObject(i); 
+				String type = op.getString("op"); 
+				long opSeq = op.getLong("seq"); 
+				
+				if (type.equals(OP_SNAPSHOT)) {
+					if (opSeq >= seq) {
+						loadJamFromJSON(op.getJSONObject("jam")); 
+						seq = opSeq; 
+						changed = true; 
+					}
+					continue; 
+				}
+				if (opSeq <= seq) {
+					continue; 
+				}
+				if (opSeq != seq + 1) {
+					requestOpsSince(seq); 
+					break; 
+				}
+				
+				// Edits this phone already made are merged again without effect
+				if (type.equals(OP_ADD)) {
+					Song song = songFromJSON(op.getJSONObject("song"), artMap); 
+					if (op.has("position")) {
+						mergeAdd(song, op.getString("position"), VersionStamp.parse(op.optString("stamp"))); 
+					} else if (!indexById.containsKey(song.getJamID())) {
+						// From a master that only sends indices
+						int index = Math.min(op.getInt("index"), songs.size()); 
+						String before = index > 0 ? songs.get(index - 1).getJamPosition() : null; 
+						String after = index < songs.size() ? songs.get(index).getJamPosition() : null; 
+						mergeAdd(song, PositionKey.between(before, after), nextStamp()); 
+					}
+				} else if (type.equals(OP_MOVE)) {
+					if (op.has("position")) {
+						mergeMove(op.getString("jamID"), op.getString("position"), VersionStamp.parse(op.optString("stamp"))); 
+					} else {
+						changeSongIndexInJam(op.getString("jamID"), Math.min(op.getInt("to"), songs.size() - 1)); 
+					}
+				} else if (type.equals(OP_REMOVE)) {
+					String jamID = op.getString("jamID"); 
+					removeSong(jamID); 
+					// The master's later operations all follow this removal
+					removedIds.remove(jamID); 
+				} else if (type.equals(OP_SET)) {
+					String jamID = op.getString("jamID"); 
+					if (jamID.equals("")) {
+						currIndex = -1; 
+					} else {
+						setCurrentSong(jamID); 
+					}
+				}
+				seq = opSeq; 
+				changed = true; 
+			}
+		} catch (JSONException e) {
+			e.printStackTrace();
+			requestOpsSince(seq); 
+		}
+		
+		if (changed) {
+			g.sendUIMessage(7); 
+			g.sendUIMessage(0); 
+		}
+	}
+	
+	/**
+	 * Asks the master phone for the operations after the 
+	 * given sequence number, or a snapshot if they are no 
+	 * longer logged, and applies the response. Only one 
+	 * such request is outstanding at a time. 
+	 * 
+	 * @param long since
+	 */
+	private void requestOpsSince(long since) {
+		if (resyncing) {
+			return; 
+		}
+		resyncing = true; 
+		
+		Client masterClient = new Client(g, "", getMasterIpAddr(), masterPort); 
+		masterClient.refreshJam(since, new AsyncHttpResponseHandler() {
+			@Override
+			public void onSuccess(int statusCode, Header[] headers, byte[] responseBody) {
+				try {
+					BufferedReader reader = new BufferedReader(
+							new InputStreamReader(Client.openResponseBody(responseBody))); 
+					JSONArray ops = new JSONObject(reader.readLine()).getJSONArray("ops"); 
+					
+					g.jamLock.lock(); 
+					try {
+						synchronized (Jam.this) {
+							resyncing = false; 
+							applyOps(ops); 
+						}
+					} finally {
+						g.jamLock.unlock(); 
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+					resyncing = false; 
+				}
+			}
+			
+			@Override
+			public void onFailure(int statusCode, Header[] headers, byte[] responseBody, Throwable error) {
+				resyncing = false; 
+			}
+		}); 
+	}
 
 	/**
 	 * Sends a message to the master phone of the jam
-	 * requesting to add a song to the jam. 
+	 * requesting to add a song to the jam, at the position 
+	 * it was already given here by addSong(). 
 	 * Should only be called on non-master Client phones. 
 	 * 
 	 * @param String songCode
@@ -485,8 +1365,12 @@ public class Jam {
 		if (master) {
 			System.out.println("Error: Master should resend entire Jam state upon modifications"); 
 		} else {
+			String[] position = getPositionAndStamp(timestamp); 
+			if (position == null) {
+				return; 
+			}
 			Client masterClient = new Client(g, getIPUsername(getMasterIpAddr()), getMasterIpAddr(), masterPort); 
-			masterClient.requestAddSong(songCode, username, timestamp, new AsyncHttpResponseHandler() {
+			masterClient.requestAddSong(songCode, username, timestamp, position[0], position[1], new AsyncHttpResponseHandler() {
 				@Override
 				public void onSuccess(int statusCode, Header[] headers, byte[] responseBody) {
 					Toast.makeText(
@@ -525,7 +1409,9 @@ public class Jam {
 
 	/**
 	 * Sends a message to the master phone of the jam
-	 * requesting to move a song to a new index in the jam. 
+	 * requesting to move a song to a new index in the jam, 
+	 * with the position it was already given here by 
+	 * changeSongIndexInJam(). 
 	 * Should only be called on non-master Client phones. 
 	 * 
 	 * @param String jamSongID
@@ -535,8 +1421,12 @@ public class Jam {
 		if (master) {
 			System.out.println("Error: Master should resend entire Jam state upon modifications"); 
 		} else {
+			String[] position = getPositionAndStamp(jamSongID); 
+			if (position == null) {
+				return; 
+			}
 			Client masterClient = new Client(g, "", getMasterIpAddr(), masterPort);
-			masterClient.requestMoveSong(jamSongID, to, new AsyncHttpResponseHandler() {
+			masterClient.requestMoveSong(jamSongID, to, position[0], position[1], new AsyncHttpResponseHandler() {
 
 			});
 		}
@@ -621,17 +1511,23 @@ public class Jam {
 
 	/**
 	 * Returns a JSON representation of the jam, 
-	 * containing the song list, current index, 
+	 * containing the song list, current index, sequence number, 
 	 * and list of IP addresses / associated usernames. 
 	 * 
 	 * @return JSONObject jsonJam
 	 */
-	public JSONObject toJSON() {
+	public synchronized JSONObject toJSON() {
 		JSONObject jam = new JSONObject(); 
 		JSONArray songArray = new JSONArray(); 
-		for (int i = 0; i < getJamSize(); i++) {
-			Song song = getSongByIndex(i); 
-			songArray.put(song.toJSON());
+		for (Song song : songs) {
+			JSONObject jsonSong = song.toJSON(); 
+			try {
+				VersionStamp stamp = positionStamps.get(song.getJamID()); 
+				jsonSong.put("stamp", (stamp == null ? VersionStamp.ZERO : stamp).toString()); 
+			} catch (JSONException e) {
+				e.printStackTrace();
+			}
+			songArray.put(jsonSong);
 		}
 		JSONArray ipArray = new JSONArray(); 
 		JSONArray usernameArray = new JSONArray(); 
@@ -642,6 +1538,7 @@ public class Jam {
 		try {
 			jam.put("songs", songArray);
 			jam.put("current", getCurrentSongIndex());
+			jam.put("seq", seq); 
 			jam.put("ips", ipArray); 
 			jam.put("usernames", usernameArray); 
 		} catch (JSONException e) {
@@ -651,58 +1548,225 @@ public class Jam {
 	}
 
 	/**
-	 * Clears existing jam state and recreates the jam
-	 * using an updated version sent from the master phone as JSON. 
+	 * Brings the jam up to date with a version sent 
+	 * from the master phone as JSON. 
+	 * 
+	 * The incoming songs are matched against the local ones by 
+	 * timestamp ID: songs that are gone are removed, new songs 
+	 * are inserted, songs whose position key changed are moved, 
+	 * and kept songs take the sender's port, adder and art hash. 
+	 * Only the rows of new, moved and updated songs are written 
+	 * to the jam table, album art is looked up in one query for 
+	 * just the new songs and those whose art changed, and the 
+	 * jam list is only refreshed if it changed. 
 	 * 
 	 * @param JSONObject jsonJam
 	 */
-	public void loadJamFromJSON(JSONObject jam) {    	
+	public synchronized void loadJamFromJSON(JSONObject jam) {    	
 		try {
-			clearSongs(); 
-			JSONArray songs = jam.getJSONArray("songs");
-			currIndex = jam.getInt("current"); 
-			HashMap<String, String> artMap = new HashMap<String, String>(); 
-			for (int i = 0; i < songs.length(); i++) {
-				JSONObject jsonSong = songs.getJSONObject(i); 
-				String songTitle = (String)jsonSong.get("title"); 
-				String songPath = (String)jsonSong.get("path");
-				Song song = new Song(songTitle, songPath, false);
-				song.setArtist((String)jsonSong.get("artist"));
-
-				String album = (String)jsonSong.get("album"); 
-				song.setAlbum(album); 
-				song.setIpAddr((String)jsonSong.get("ip"));
-				song.setPort(jsonSong.getInt("port"));
-				song.setAddedBy((String)jsonSong.get("addedBy")); 
-
-				if (artMap.containsKey(album)) {
-					song.setAlbumArt(artMap.get(album));
+			// Parse everything first, so a malformed jam changes nothing
+			JSONArray songArray = jam.getJSONArray("songs");
+			int count = songArray.length(); 
+			ArrayList<Song> incoming = new ArrayList<Song>(count); 
+			ArrayList<String> positions = new ArrayList<String>(count); 
+			ArrayList<VersionStamp> stamps = new ArrayList<VersionStamp>(count); 
+			ArrayList<Song> inserted = new ArrayList<Song>(); 
+			ArrayList<Song> needArt = new ArrayList<Song>(); 
+			boolean[] isNew = new boolean[count]; 
+			boolean[] refreshed = new boolean[count]; 
+			HashSet<String> incomingIds = new HashSet<String>(); 
+			String last = null; 
+			for (int i = 0; i < count; i++) {
+				JSONObject jsonSong = songArray.getJSONObject(i); 
+				String jamID = jsonSong.getString("jamID"); 
+				String position = jsonSong.optString("position", ""); 
+				if (position.length() == 0) {
+					// From a master that doesn't send position keys
+					position = PositionKey.between(last, null); 
+				}
+				last = position; 
+				
+				Integer index = indexById.get(jamID); 
+				Song song; 
+				if (index != null) {
+					song = songs.get(index); 
 				} else {
-					String artPath = g.db.getAlbumArtByHash(Integer.toString(song.hashCode())); 
-					song.setAlbumArt(artPath);
-					artMap.put(album, artPath); 
+					song = songFromJSON(jsonSong); 
+					inserted.add(song); 
+					needArt.add(song); 
+					isNew[i] = true; 
 				}
-
-				String timestampID = (String)jsonSong.getString("jamID"); 
-				song.setJamID(timestampID);
-
-				addSongWithTimestamp(song, timestampID);
+				incoming.add(song); 
+				positions.add(position); 
+				incomingIds.add(jamID); 
+				stamps.add(VersionStamp.parse(jsonSong.optString("stamp", null))); 
 			}
-
+			int current = jam.getInt("current"); 
 			JSONArray ipArray = jam.getJSONArray("ips"); 
 			JSONArray usernameArray = jam.getJSONArray("usernames"); 
+			
+			// Only now that parsing succeeded are the kept songs updated
+			boolean anyRefreshed = false; 
+			for (int i = 0; i < count; i++) {
+				if (!isNew[i]) {
+					refreshed[i] = refreshFromJSON(incoming.get(i), songArray.optJSONObject(i), needArt); 
+					anyRefreshed |= refreshed[i]; 
+				}
+			}
+			loadAlbumArt(needArt); 
+			
+			int removed = 0; 
+			for (Song song : songs) {
+				if (!incomingIds.contains(song.getJamID())) {
+					// No tombstone: this phone's own add may not have reached the master yet
+					persistSong(song.getJamID(), null); 
+					removed++; 
+				}
+			}
+			boolean changed = removed > 0 || anyRefreshed || !inserted.isEmpty() || current != currIndex 
+					|| incoming.size() != songs.size(); 
+			for (int i = 0; !changed && i < incoming.size(); i++) {
+				changed = incoming.get(i) != songs.get(i); 
+			}
+			
+			songs = incoming; 
+			indexById.clear(); 
+			hashCounts.clear(); 
+			positionStamps.clear(); 
+			for (int i = 0; i < songs.size(); i++) {
+				Song song = songs.get(i); 
+				indexById.put(song.getJamID(), i); 
+				int hash = song.hashCode(); 
+				Integer hashCount = hashCounts.get(hash); 
+				hashCounts.put(hash, hashCount == null ? 1 : hashCount + 1); 
+				positionStamps.put(song.getJamID(), stamps.get(i)); 
+				observe(stamps.get(i)); 
+				// Only new, refreshed and moved rows are written; new songs already carry their position
+				if (isNew[i] || refreshed[i] || !positions.get(i).equals(song.getJamPosition())) {
+					song.setJamPosition(positions.get(i)); 
+					persistSong(song.getJamID(), song); 
+				}
+			}
+			currIndex = current; 
+			seq = jam.optLong("seq", seq); 
+
 			for (int i = 0; i < ipArray.length(); i++) {
 				if (!usernameMap.containsKey((String)ipArray.get(i))) {
 					usernameMap.put((String)ipArray.get(i), (String)usernameArray.get(i)); 
 				}
 			}
 
-			g.sendUIMessage(7); 
-			g.sendUIMessage(0); 
+			if (changed) {
+				g.sendUIMessage(7); 
+			}
 		} catch (JSONException e) {
 			e.printStackTrace();
 		} 
 	}
+	
+	/**
+	 * Updates a song kept from the current jam with the mutable 
+	 * fields of its incoming JSON: the port of the phone it plays 
+	 * from, who added it, and its art hash. A remote song whose 
+	 * art hash changed is added to needArt to look up its art again. 
+	 * 
+	 * @param Song song
+	 * @param JSONObject jsonSong
+	 * @param List<Song> needArt
+	 * @return boolean whether anything changed
+	 */
+	private boolean refreshFromJSON(Song song, JSONObject jsonSong, List<Song> needArt) {
+		boolean changed = false; 
+		int port = jsonSong.optInt("port", song.getPort()); 
+		if (port != song.getPort()) {
+			song.setPort(port); 
+			changed = true; 
+		}
+		String addedBy = jsonSong.optString("addedBy", song.getAddedBy()); 
+		if (addedBy != null && !addedBy.equals(song.getAddedBy())) {
+			song.setAddedBy(addedBy); 
+			changed = true; 
+		}
+		String artHash = jsonSong.isNull("artHash") ? null : jsonSong.optString("artHash"); 
+		if (artHash != null && !artHash.equals(song.getArtHash())) {
+			song.setArtHash(artHash); 
+			if (!song.isLocal()) {
+				needArt.add(song); 
+			}
+			changed = true; 
+		}
+		return changed; 
+	}
+
+	/**
+	 * Sets the album art of the given jam songs, 
+	 * looked up from the songs table in a single query. 
+	 * 
+	 * @param List<Song> newSongs, new or with changed art
+	 */
+	private void loadAlbumArt(List<Song> newSongs) {
+		if (newSongs.isEmpty()) {
+			return; 
+		}
+		HashSet<String> hashes = new HashSet<String>(); 
+		for (Song song : newSongs) {
+			hashes.add(Integer.toString(song.hashCode())); 
+		}
+		HashMap<String, String> art = g.db.getAlbumArtByHashes(hashes); 
+		for (Song song : newSongs) {
+			String artPath = art.get(Integer.toString(song.hashCode())); 
+			song.setAlbumArt(artPath == null ? "" : artPath); 
+		}
+	}
+
+	/**
+	 * Creates a remote song in the jam from its JSON representation, 
+	 * looking up its album art once per album in the given map. 
+	 * 
+	 * @param JSONObject jsonSong
+	 * @param HashMap<String, String> artMap
+	 * @return Song song
+	 * @throws JSONException
+	 */
+	private Song songFromJSON(JSONObject jsonSong, HashMap<String, String> artMap) throws JSONException {
+		Song song = songFromJSON(jsonSong); 
+		String album = song.getAlbum(); 
+		if (artMap.containsKey(album)) {
+			song.setAlbumArt(artMap.get(album));
+		} else {
+			String artPath = g.db.getAlbumArtByHash(Integer.toString(song.hashCode())); 
+			song.setAlbumArt(artPath);
+			artMap.put(album, artPath); 
+		}
+		return song; 
+	}
+	
+	/**
+	 * Creates a remote song in the jam from its JSON 
+	 * representation, without its album art. 
+	 * 
+	 * @param JSONObject jsonSong
+	 * @return Song song
+	 * @throws JSONException
+	 */
+	private Song songFromJSON(JSONObject jsonSong) throws JSONException {
+		String songTitle = (String)jsonSong.get("title"); 
+		String songPath = (String)jsonSong.get("path");
+		Song song = new Song(songTitle, songPath, false);
+		song.setArtist((String)jsonSong.get("artist"));
+
+		String album = (String)jsonSong.get("album"); 
+		song.setAlbum(album); 
+		song.setIpAddr((String)jsonSong.get("ip"));
+		song.setPort(jsonSong.getInt("port"));
+		song.setAddedBy((String)jsonSong.get("addedBy")); 
+		song.setJamID(jsonSong.getString("jamID"));
+		song.setJamPosition(jsonSong.optString("position", "")); 
+		if (!jsonSong.isNull("artHash")) {
+			song.setArtHash(jsonSong.optString("artHash")); 
+		}
+		return song; 
+	}
 
 	/**
 	 * Periodically pings all Clients in the jam to 
@@ -752,9 +1816,13 @@ public class Jam {
 	 * @param Client clientToRemove
 	 */
 	private void removeFromJam(final Client clientToRemove) {
-		g.db.deleteJamSongsFromIp(clientToRemove.getIpAddress());
+		removeSongsFromIp(clientToRemove.getIpAddress());
 		g.db.deleteSongsFromIp(clientToRemove.getIpAddress());
 		g.sendUIMessage(0);
+		synchronized (this) {
+			clientSeqs.remove(clientToRemove); 
+			pruneRemovedIds(); 
+		}
 		synchronized (clientSet) {
 			clientSet.remove(clientToRemove);
 			for (final Client client : clientSet) {
@@ -127,11 +127,15 @@ public class MainActivity extends Activity {
 	}
 
 	/**
-	 * Starts a new thread that loads the music on the phone into a local 
-	 * database.
+	 * Starts a new thread that brings the music on the phone in the local 
+	 * database up to date. Songs from other phones are cleared, since 
+	 * they belong to a previous jam. 
 	 */
 	private void loadLocalMusic() {
-		g.db.dropTable("songs"); 
+		g.db.deleteRemoteSongs(); 
+		if (g.localLoaderThread != null && g.localLoaderThread.isAlive()) {
+			return; 
+		}
 		g.localLoaderThread = new MusicLibraryLoaderThread(this);
 		g.localLoaderThread.start();	
 	}
@@ -227,7 +231,7 @@ public class MainActivity extends Activity {
 	 */
 	private boolean startJam(String jamName) {
 		try {
-			Server s = new Server(g);
+			Server s = new Server(g, Server.Engine.NIO);
 			s.start();
 			g.server = s;
 			g.db.updatePortForLocalSongs();
@@ -1,149 +1,332 @@
 package com.stanford.tutti;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 
-import android.app.Activity;
+import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
-import android.os.Message;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.MediaStore;
 
 /**
  * Loads all local music meta data from the SDCard 
  * into the in-app music library database.
+ * 
+ * The library is kept between launches, and each scan only 
+ * touches the songs that were added, changed or removed in 
+ * the music store since the last one, going by each song's 
+ * music store ID and DATE_MODIFIED. Changes made while the 
+ * app runs are picked up by a rescan from watchForChanges(). 
  */
 public class MusicLibraryLoaderThread extends Thread {
+
+	/* Songs committed to the database per transaction. */
+	private static final int INSERT_BATCH_SIZE = 200; 
+	
+	/* Music store IDs per query when loading changed songs. */
+	private static final int MAX_IDS_PER_QUERY = 500; 
 	
-	private ArrayList<String> artists; 
-	Activity activity; 
+	/* Delay before rescanning, so a burst of music store changes shares one scan. */
+	private static final long RESCAN_DELAY_MS = 2000; 
+
+	/* Columns read from the music store for each song. */
+	private static final String[] MEDIA_COLUMNS = {
+		MediaStore.Audio.Media._ID,
+		MediaStore.Audio.Media.DATE_MODIFIED,
+		MediaStore.Audio.Media.TITLE,
+		MediaStore.Audio.Media.DATA,
+		MediaStore.Audio.Media.ARTIST,
+		MediaStore.Audio.Media.ALBUM,
+		MediaStore.Audio.Media.ALBUM_ID,
+		MediaStore.Audio.Media.TRACK
+	};
+
+	/* Content hashes of album art files, keyed by path, so each file is hashed once. */
+	private HashMap<String, String> artHashes = new HashMap<String, String>(); 
 	
-	public MusicLibraryLoaderThread(Activity activity) {
-		this.activity = activity; 
+	/* Album art paths keyed by album ID, loaded on the first song query. */
+	private HashMap<Long, String> albumArt; 
+	Context context; 
+
+	public MusicLibraryLoaderThread(Context context) {
+		this.context = context; 
 	}
 
 	public void run() {
-		loadMusic(activity); 
+		loadMusic(context); 
 	}
 
-	
+
 	/**
-	 * Loads all of the music into the Globals music metadata store.
+	 * Brings the local songs in the Globals music metadata 
+	 * store up to date with the music store.
 	 * 
-	 * @param Activity activity
+	 * @param Context context
 	 */
-    public void loadMusic(Activity activity) {
-    	Globals g = (Globals) activity.getApplication();
-		loadAllArtists(activity);
-		loadAllSongs(activity, g);
+    public void loadMusic(Context context) {
+    	Globals g = (Globals) context.getApplicationContext();
+    	g.db.updateIpForLocalSongs(g.getIpAddr()); 
+		if (rescanSongs(context, g)) {
+			g.sendUIMessage(0); 
+		}
 		g.logger.updateNumberSongs();
 	}
-	
-    /**
-     * Loads all of the artists from the music store into the
-     * Globals metadata store.
-     * 
-     * @param Activity activity
-     */
-	private void loadAllArtists(Activity activity) {
-        artists = new ArrayList<String>();
+    
+	/**
+	 * Starts watching the music store for changes, and rescans 
+	 * the local library shortly after each burst of them. 
+	 * 
+	 * @param Globals g
+	 */
+	public static void watchForChanges(final Globals g) {
+		final Handler handler = new Handler(Looper.getMainLooper()); 
+		final Runnable rescan = new Runnable() {
+			@Override
+			public void run() {
+				if (g.localLoaderThread != null && g.localLoaderThread.isAlive()) {
+					// Try again once the running scan is done
+					handler.postDelayed(this, RESCAN_DELAY_MS); 
+					return; 
+				}
+				g.localLoaderThread = new MusicLibraryLoaderThread(g); 
+				g.localLoaderThread.start(); 
+			}
+		}; 
 		
-		Cursor cursor = activity.getContentResolver().query(
-        	    MediaStore.Audio.Artists.EXTERNAL_CONTENT_URI, 
-        	    null, 
-        	    null, 
-        	    null, 
-        	    MediaStore.Audio.Artists.ARTIST + " ASC");
-        
-        while (cursor.moveToNext()) {
-            String artistName = cursor.getString(
-            		cursor.getColumnIndex(MediaStore.Audio.Artists.ARTIST));
-            artists.add(artistName); 
-        }
+		g.getContentResolver().registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, 
+				true, new ContentObserver(handler) {
+			@Override
+			public void onChange(boolean selfChange) {
+				handler.removeCallbacks(rescan); 
+				handler.postDelayed(rescan, RESCAN_DELAY_MS); 
+			}
+		}); 
+	}
+
+	/**
+	 * Compares the music store's song IDs and modification times 
+	 * with those of the local songs in the database, then deletes 
+	 * the removed and changed songs and loads the added and changed 
+	 * ones. Songs that haven't changed are left alone, including 
+	 * songs the library keeps as duplicates of another track. 
+	 * 
+	 * @param Context context
+	 * @param Globals globals
+	 * @return boolean true if the library changed
+	 */
+	private boolean rescanSongs(Context context, Globals g) {
+		// Songs loaded before IDs were stored are reloaded once
+		boolean changed = g.db.deleteUnscannedLocalSongs() > 0; 
+		
+		HashMap<Long, Long> known = g.db.getLocalMediaVersions(); 
+		boolean firstScan = known.isEmpty(); 
+		ArrayList<Long> added = new ArrayList<Long>(); 
+		ArrayList<Long> modified = new ArrayList<Long>(); 
+		
+		Cursor cursor = context.getContentResolver().query(
+				MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, 
+				new String[] {MediaStore.Audio.Media._ID, MediaStore.Audio.Media.DATE_MODIFIED}, 
+				null, 
+				null, 
+				null); 
+		if (cursor == null) {
+			return changed; 
+		}
+		try {
+			while (cursor.moveToNext()) {
+				long mediaId = cursor.getLong(0); 
+				Long dateModified = known.remove(mediaId); 
+				if (dateModified == null) {
+					added.add(mediaId); 
+				} else if (dateModified != cursor.getLong(1)) {
+					modified.add(mediaId); 
+				}
+			}
+		} finally {
+			cursor.close(); 
+		}
+		// Whatever is left in the database is gone from the music store
+		ArrayList<Long> removed = new ArrayList<Long>(known.keySet()); 
+		
+		System.out.println("Local library rescan: " + added.size() + " added, " 
+				+ modified.size() + " changed, " + removed.size() + " removed"); 
+		if (added.isEmpty() && modified.isEmpty() && removed.isEmpty()) {
+			return changed; 
+		}
+		
+		removed.addAll(modified); 
+		if (g.db.deleteLocalSongsByMediaIds(removed) > 0) {
+			// A duplicate may now be the only copy of its song
+			added.addAll(g.db.takeDuplicateMediaIds()); 
+		}
+		added.addAll(modified); 
+		if (!added.isEmpty()) {
+			DatabaseHandler.SongInserter inserter = g.db.beginSongInsert(INSERT_BATCH_SIZE); 
+			try {
+				if (firstScan) {
+					loadSongs(context, g, inserter, null, null); 
+				} else {
+					loadSongs(context, g, inserter, added); 
+				}
+				inserter.finish(); 
+			} finally {
+				inserter.close(); 
+			}
+		}
+		g.db.deleteEmptyAlbums(); 
+		return true; 
 	}
 	
 	/**
-	 * Loads all metadata from the local music library into the in-app database. 
+	 * Loads the songs with the given music store IDs, 
+	 * MAX_IDS_PER_QUERY at a time. 
 	 * 
-	 * @param Activity activity
+	 * @param Context context
 	 * @param Globals globals
+	 * @param SongInserter inserter
+	 * @param List<Long> mediaIds
 	 */
-	private void loadAllSongs(Activity activity, Globals g) {
-		for (int i = 0; i < artists.size(); i++) {
-			
-			String artist = artists.get(i);
-			final String where = MediaStore.Audio.AlbumColumns.ARTIST
-        		+ "='" + artist.replace("'",  "''") + "'";
-			
-	        Cursor cursor = activity.getContentResolver().query(
-	        	    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, 
-	        	    null, 
-	        	    where,
-	        	    null, 
-	        	    MediaStore.Audio.Albums.ARTIST + " ASC");
-	        
-	        ArrayList<String> albumList = new ArrayList<String>(); 
-	        
+	private void loadSongs(Context context, Globals g, DatabaseHandler.SongInserter inserter, 
+			List<Long> mediaIds) {
+		for (int start = 0; start < mediaIds.size(); start += MAX_IDS_PER_QUERY) {
+			List<Long> batch = mediaIds.subList(start, Math.min(start + MAX_IDS_PER_QUERY, mediaIds.size())); 
+			StringBuilder selection = new StringBuilder(MediaStore.Audio.Media._ID + " IN ("); 
+			String[] selectionArgs = new String[batch.size()]; 
+			for (int i = 0; i < batch.size(); i++) {
+				selection.append(i == 0 ? "?" : ",?"); 
+				selectionArgs[i] = Long.toString(batch.get(i)); 
+			}
+			selection.append(")"); 
+			loadSongs(context, g, inserter, selection.toString(), selectionArgs); 
+		}
+	}
+
+	/**
+	 * Reads the selected songs from the music store in a single 
+	 * cursor pass, ordered by artist, and hands them to the bulk 
+	 * inserter. Album art paths come from one query over all albums 
+	 * up front, instead of one query per song. 
+	 * 
+	 * @param Context context
+	 * @param Globals globals
+	 * @param SongInserter inserter
+	 * @param String selection, or null for all songs
+	 * @param String[] selectionArgs
+	 */
+	private void loadSongs(Context context, Globals g, DatabaseHandler.SongInserter inserter, 
+			String selection, String[] selectionArgs) {
+		if (albumArt == null) {
+			albumArt = loadAlbumArt(context); 
+		}
+		String ipAddr = g.getIpAddr();
+		int port = g.getServerPort();
+
+        Cursor cursor = context.getContentResolver().query(
+        	    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+        	    MEDIA_COLUMNS,
+        	    selection, 
+        	    selectionArgs, 
+        	    MediaStore.Audio.Media.ARTIST + " ASC");
+        if (cursor == null) {
+        	return;
+        }
+
+        try {
+	        int idColumn = cursor.getColumnIndex(MediaStore.Audio.Media._ID);
+	        int dateModifiedColumn = cursor.getColumnIndex(MediaStore.Audio.Media.DATE_MODIFIED);
+	        int titleColumn = cursor.getColumnIndex(MediaStore.Audio.Media.TITLE);
+	        int pathColumn = cursor.getColumnIndex(MediaStore.Audio.Media.DATA);
+	        int artistColumn = cursor.getColumnIndex(MediaStore.Audio.Media.ARTIST);
+	        int albumColumn = cursor.getColumnIndex(MediaStore.Audio.Media.ALBUM);
+	        int albumIdColumn = cursor.getColumnIndex(MediaStore.Audio.Media.ALBUM_ID);
+	        int trackColumn = cursor.getColumnIndex(MediaStore.Audio.Media.TRACK);
+
+	        int total = cursor.getCount();
+	        int loaded = 0;
 	        while (cursor.moveToNext()) {
-	            String songTitle = cursor.getString(
-	            		cursor.getColumnIndex(MediaStore.Audio.Media.TITLE));
-	            String path = cursor.getString(
-	            		cursor.getColumnIndex(MediaStore.Audio.Media.DATA));
-	            Song song = new Song(songTitle, path, true);
-	            
-	            String albumTitle = cursor.getString(cursor.getColumnIndex(MediaStore.Audio.Media.ALBUM)); 
+	            Song song = new Song(cursor.getString(titleColumn), cursor.getString(pathColumn), true);
+
+	            String artist = cursor.getString(artistColumn);
+	            String albumTitle = cursor.getString(albumColumn);
 	            song.setAlbum(albumTitle);
-	            song.setArtist(cursor.getString(cursor.getColumnIndex(MediaStore.Audio.Media.ARTIST)));
-	            
-	            String artPath = ""; 
-	            if (albumTitle != "") {
-	            	String trackNumString = cursor.getString(cursor.getColumnIndex(MediaStore.Audio.Media.TRACK));
-	            		            	
-	            	int trackNum;
-	            	
-	            	if (trackNumString != null && !trackNumString.equals("null")) {
+	            song.setArtist(artist);
+
+	            String trackNumString = cursor.getString(trackColumn);
+	            int trackNum = 0;
+	            if (trackNumString != null && !trackNumString.equals("null")) {
+	            	try {
 	            		trackNum = Integer.parseInt(trackNumString);
-	            	} else {
+	            	} catch (NumberFormatException e) {
 	            		trackNum = 0;
 	            	}
-	            	
-	            	song.setTrackNum(trackNum);
-	            		            	
-		            Cursor artCursor = activity.getContentResolver().query(MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI, 
-		                    new String[] {MediaStore.Audio.Albums.ALBUM, MediaStore.Audio.Albums.ALBUM_ART}, 
-		                    MediaStore.Audio.Albums.ALBUM + "=?", 
-		                    new String[] { albumTitle }, 
-		                    null);
-	
-		            if (artCursor.moveToFirst() && artCursor.getString(1) != null) {
-		            	artPath = artCursor.getString(1);
-		            }
-		            
-		            song.setAlbumArt(artPath); 
-		            artCursor.close(); 
-	            } else {
-	            	song.setTrackNum(0);
-	            	
-	            	// SET DEFAULT ALBUM ART??
 	            }
-	            
-	            song.setIpAddr(g.getIpAddr());
-	            
-	            if (!albumList.contains(albumTitle)) {
-	            	Song albumSong = new Song("DISPLAY_ALBUM", "", true); 
-	            	albumSong.setAlbum(albumTitle);
-	            	albumSong.setArtist(cursor.getString(cursor.getColumnIndex(MediaStore.Audio.Media.ARTIST))); 
-	            	albumSong.setTrackNum(-1); 
-	            	albumSong.setAlbumArt(artPath);
-	            	albumSong.setIpAddr(g.getIpAddr());
-	            	g.db.addSongToLibrary(albumSong); 
-	            	albumList.add(albumTitle); 
+	            song.setTrackNum(trackNum);
+
+	            String artPath = albumArt.get(cursor.getLong(albumIdColumn));
+	            if (artPath == null) {
+	            	artPath = "";
+	            }
+	            song.setAlbumArt(artPath);
+	            song.setArtHash(getArtHash(artPath));
+	            song.setIpAddr(ipAddr);
+	            song.setPort(port);
+
+	            inserter.add(song, cursor.getLong(idColumn), cursor.getLong(dateModifiedColumn)); 
+	            if (++loaded % INSERT_BATCH_SIZE == 0) {
+	            	System.out.println("Loaded " + loaded + " of " + total + " local songs");
 	            }
-	            
-	            
-	            g.db.addSongToLibrary(song); 
 	        }
-	        cursor.close(); 
-	        
-	    	g.sendUIMessage(0); 
-		}	
+	        System.out.println("Loaded " + loaded + " of " + total + " local songs");
+        } finally {
+        	cursor.close();
+        }
+	}
+
+	/**
+	 * Returns the album art path of every album
+	 * in the music store that has art, keyed by album ID.
+	 * 
+	 * @param Context context
+	 * @return HashMap<Long, String> albumArt
+	 */
+	private HashMap<Long, String> loadAlbumArt(Context context) {
+		HashMap<Long, String> albumArt = new HashMap<Long, String>();
+		Cursor cursor = context.getContentResolver().query(
+				MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI,
+				new String[] {MediaStore.Audio.Albums._ID, MediaStore.Audio.Albums.ALBUM_ART},
+				MediaStore.Audio.Albums.ALBUM_ART + " IS NOT NULL",
+				null,
+				null);
+		if (cursor == null) {
+			return albumArt;
+		}
+		try {
+			while (cursor.moveToNext()) {
+				albumArt.put(cursor.getLong(0), cursor.getString(1));
+			}
+		} finally {
+			cursor.close();
+		}
+		return albumArt;
+	}
+
+	/**
+	 * Returns the content hash of the album art at the given 
+	 * path, hashing each file only the first time it is seen. 
+	 * 
+	 * @param String artPath
+	 * @return String artHash, or null if there is no art
+	 */
+	private String getArtHash(String artPath) {
+		if (artPath == null || artPath.equals("")) {
+			return null; 
+		}
+		if (!artHashes.containsKey(artPath)) {
+			artHashes.put(artPath, ArtStore.hashFile(artPath)); 
+		}
+		return artHashes.get(artPath); 
 	}
 }
@@ -23,6 +23,16 @@ import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * A simple, tiny, nicely embeddable HTTP server in Java
@@ -100,6 +110,10 @@ public abstract class NanoHTTPD {
      * Pluggable strategy for creating and cleaning up temporary files.
      */
     private TempFileManagerFactory tempFileManagerFactory;
+    /**
+     * Idle keep-alive connections of the threaded engine, under a {@link PooledAsyncRunner}.
+     */
+    private final IdleConnectionWatcher idleConnectionWatcher = new IdleConnectionWatcher();
 
     /**
      * Constructs an HTTP server on given port.
@@ -163,31 +177,13 @@ public abstract class NanoHTTPD {
                         registerConnection(finalAccept);
                         finalAccept.setSoTimeout(SOCKET_READ_TIMEOUT);
                         final InputStream inputStream = finalAccept.getInputStream();
-                        asyncRunner.exec(new Runnable() {
-                            @Override
-                            public void run() {
-                                OutputStream outputStream = null;
-                                try {
-                                    outputStream = finalAccept.getOutputStream();
-                                    TempFileManager tempFileManager = tempFileManagerFactory.create();
-                                    HTTPSession session = new HTTPSession(tempFileManager, inputStream, outputStream, finalAccept.getInetAddress());
-                                    while (!finalAccept.isClosed()) {
-                                        session.execute();
-                                    }
-                                } catch (Exception e) {
-                                    // When the socket is closed by the client, we throw our own SocketException
-                                    // to break the  "keep alive" loop above.
-                                    if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
-                                        e.printStackTrace();
-                                    }
-                                } finally {
-                                    safeClose(outputStream);
-                                    safeClose(inputStream);
-                                    safeClose(finalAccept);
-                                    unRegisterConnection(finalAccept);
-                                }
-                            }
-                        });
+                        ClientHandler handler = new ClientHandler(inputStream, finalAccept);
+                        if (asyncRunner instanceof PooledAsyncRunner) {
+                            // Take a worker only once the first request arrives
+                            idleConnectionWatcher.park(handler);
+                        } else {
+                            asyncRunner.exec(handler);
+                        }
                     } catch (IOException e) {
                     }
                 } while (!myServerSocket.isClosed());
@@ -368,6 +364,97 @@ public abstract class NanoHTTPD {
         this.asyncRunner = asyncRunner;
     }
 
+    /**
+     * Override this to decide which responses may be compressed when the client
+     * sends a matching Accept-Encoding header.
+     * <p/>
+     * <p>By default text and JSON bodies are compressed; media such as audio/mpeg is
+     * already compressed and is always sent as is.  Responses that must not have a
+     * body (1xx, 204 and 304) and empty bodies are never compressed, since an encoded
+     * response is framed as chunks and would always carry at least the coder's
+     * header and trailer.</p>
+     *
+     * @param r the response about to be sent
+     * @return true if the response body may be gzip/deflate encoded
+     */
+    protected boolean useGzipWhenAccepted(Response r) {
+        String mime = r.getMimeType();
+        if (mime == null || r instanceof FileResponse || r.getHeader("Content-Encoding") != null) {
+            return false;
+        }
+        int status = r.getStatus() != null ? r.getStatus().getRequestStatus() : 0;
+        if (status < 200 || status == 204 || status == 304) {
+            return false;
+        }
+        // A streaming response writes its body itself, without a data stream
+        if (!(r instanceof StreamingResponse)) {
+            try {
+                if (r.getData() == null || r.getData().available() == 0) {
+                    return false;
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        mime = mime.toLowerCase(Locale.US);
+        return mime.startsWith("text/") || mime.contains("json");
+    }
+
+    /**
+     * Picks the content coding for a response from the request's Accept-Encoding header.
+     *
+     * @return "gzip", "deflate" or null if neither is acceptable
+     */
+    protected static String negotiateContentEncoding(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        boolean deflate = false;
+        StringTokenizer st = new StringTokenizer(acceptEncoding, ",");
+        while (st.hasMoreTokens()) {
+            String token = st.nextToken().trim().toLowerCase(Locale.US);
+            String coding = token;
+            int semi = token.indexOf(';');
+            if (semi >= 0) {
+                coding = token.substring(0, semi).trim();
+                String q = token.substring(semi + 1).trim();
+                if (q.startsWith("q=")) {
+                    try {
+                        if (Float.parseFloat(q.substring(2)) <= 0) {
+                            continue;
+                        }
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                return "gzip";
+            } else if (coding.equals("deflate")) {
+                deflate = true;
+            }
+        }
+        return deflate ? "deflate" : null;
+    }
+
+    public AsyncRunner getAsyncRunner() {
+        return asyncRunner;
+    }
+
+    /**
+     * Override this to move long-lived requests (e.g. media streams) off the
+     * request lane of a {@link PooledAsyncRunner}.
+     * <p/>
+     * <p>Called after the request header has been decoded and before serve().
+     * Returning true hands the connection over to the streaming lane, so that
+     * slow bodies cannot starve short requests of worker threads.</p>
+     *
+     * @param session The HTTP session, with method, uri and headers decoded
+     * @return true if the request should be served on the streaming lane
+     */
+    protected boolean useStreamingLane(IHTTPSession session) {
+        return false;
+    }
+
     // ------------------------------------------------------------------------------- //
     //
     // Temp file handling strategy.
@@ -383,6 +470,10 @@ public abstract class NanoHTTPD {
         this.tempFileManagerFactory = tempFileManagerFactory;
     }
 
+    public TempFileManagerFactory getTempFileManagerFactory() {
+        return tempFileManagerFactory;
+    }
+
     /**
      * HTTP Request methods, with the ability to decode a <code>String</code> back to its enum value.
      */
@@ -406,6 +497,13 @@ public abstract class NanoHTTPD {
         void exec(Runnable code);
     }
 
+    /**
+     * Work that can answer its client itself when an {@link AsyncRunner} has no room for it.
+     */
+    public interface RejectableRunnable extends Runnable {
+        void reject(int retryAfterSeconds);
+    }
+
     /**
      * Factory to create temp file managers.
      */
@@ -461,6 +559,159 @@ public abstract class NanoHTTPD {
         }
     }
 
+    /**
+     * Bounded threading strategy for NanoHttpd.
+     * <p/>
+     * <p>Connections are served by a fixed pool of daemon worker threads with a bounded
+     * accept queue, instead of one new Thread per connection.  Work is split into two
+     * lanes: short API requests run on the request lane, and requests for which
+     * {@link NanoHTTPD#useStreamingLane(IHTTPSession)} returns true are handed over to
+     * a separate streaming lane, so long-lived responses cannot starve the short ones.</p>
+     * <p/>
+     * <p>When a lane's queue is full the {@link RejectPolicy} decides what happens to the
+     * connection.  Each lane keeps counters of queued, active and rejected connections.</p>
+     */
+    public static class PooledAsyncRunner implements AsyncRunner {
+        /**
+         * What to do with a connection when its lane is saturated.
+         */
+        public enum RejectPolicy {
+            /**
+             * Answer "503 Service Unavailable" with a Retry-After header and close.
+             */
+            SERVICE_UNAVAILABLE,
+            /**
+             * Run the work on the submitting thread.  Connections ({@link RejectableRunnable}s)
+             * are still answered with 503, as serving them on the accepting thread would
+             * stop it from accepting.
+             */
+            CALLER_RUNS
+        }
+
+        private final Lane requestLane;
+        private final Lane streamingLane;
+        private volatile RejectPolicy rejectPolicy = RejectPolicy.SERVICE_UNAVAILABLE;
+        private volatile int retryAfterSeconds = 2;
+
+        public PooledAsyncRunner(int requestWorkers, int requestQueueSize, int streamingWorkers, int streamingQueueSize) {
+            requestLane = new Lane("NanoHttpd Request Processor", requestWorkers, requestQueueSize);
+            streamingLane = new Lane("NanoHttpd Stream Processor", streamingWorkers, streamingQueueSize);
+        }
+
+        @Override
+        public void exec(Runnable code) {
+            submit(requestLane, code);
+        }
+
+        /**
+         * Runs the given code on the streaming lane.
+         */
+        public void execStreaming(Runnable code) {
+            submit(streamingLane, code);
+        }
+
+        private void submit(Lane lane, Runnable code) {
+            if (!lane.offer(code)) {
+                if (code instanceof RejectableRunnable) {
+                    ((RejectableRunnable) code).reject(retryAfterSeconds);
+                } else if (rejectPolicy == RejectPolicy.CALLER_RUNS) {
+                    code.run();
+                }
+            }
+        }
+
+        public void setRejectPolicy(RejectPolicy rejectPolicy) {
+            this.rejectPolicy = rejectPolicy;
+        }
+
+        public RejectPolicy getRejectPolicy() {
+            return rejectPolicy;
+        }
+
+        /**
+         * Sets the Retry-After value sent with 503 responses, in seconds.
+         */
+        public void setRetryAfterSeconds(int retryAfterSeconds) {
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public Lane getRequestLane() {
+            return requestLane;
+        }
+
+        public Lane getStreamingLane() {
+            return streamingLane;
+        }
+
+        public int getQueuedCount() {
+            return requestLane.getQueuedCount() + streamingLane.getQueuedCount();
+        }
+
+        public int getActiveCount() {
+            return requestLane.getActiveCount() + streamingLane.getActiveCount();
+        }
+
+        public long getRejectedCount() {
+            return requestLane.getRejectedCount() + streamingLane.getRejectedCount();
+        }
+
+        @Override
+        public String toString() {
+            return "request lane " + requestLane + ", streaming lane " + streamingLane;
+        }
+
+        /**
+         * A bounded pool of daemon workers fed by a bounded queue.
+         */
+        public static class Lane {
+            private final ThreadPoolExecutor executor;
+            private final AtomicLong rejectedCount = new AtomicLong();
+
+            Lane(final String name, int workers, int queueSize) {
+                executor = new ThreadPoolExecutor(workers, workers, 30, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                    private final AtomicLong threadCount = new AtomicLong();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r);
+                        t.setDaemon(true);
+                        t.setName(name + " (#" + threadCount.incrementAndGet() + ")");
+                        return t;
+                    }
+                });
+                executor.allowCoreThreadTimeOut(true);
+            }
+
+            boolean offer(Runnable code) {
+                try {
+                    executor.execute(code);
+                    return true;
+                } catch (RejectedExecutionException e) {
+                    rejectedCount.incrementAndGet();
+                    return false;
+                }
+            }
+
+            public int getQueuedCount() {
+                return executor.getQueue().size();
+            }
+
+            public int getActiveCount() {
+                return executor.getActiveCount();
+            }
+
+            public long getRejectedCount() {
+                return rejectedCount.get();
+            }
+
+            @Override
+            public String toString() {
+                return "queued=" + getQueuedCount() + " active=" + getActiveCount() + " rejected=" + getRejectedCount();
+            }
+        }
+    }
+
     /**
      * Default strategy for creating and cleaning up temporary files.
      * <p/>
@@ -558,6 +809,10 @@ public abstract class NanoHTTPD {
          * Use chunkedTransfer
          */
         private boolean chunkedTransfer;
+        /**
+         * Content coding of the body ("gzip" or "deflate"), or null to send it as is.
+         */
+        private String contentEncoding;
 
         /**
          * Default constructor: response = HTTP_OK, mime = MIME_HTML and your supplied message
@@ -631,14 +886,21 @@ public abstract class NanoHTTPD {
 
                 sendConnectionHeaderIfNotAlreadyPresent(pw, header);
 
-                if (requestMethod != Method.HEAD && chunkedTransfer) {
+                if (requestMethod != Method.HEAD && contentEncoding != null) {
+                    pw.print("Content-Encoding: " + contentEncoding + "\r\n");
+                    sendAsEncoded(outputStream, pw);
+                } else if (requestMethod != Method.HEAD && chunkedTransfer) {
                     sendAsChunked(outputStream, pw);
                 } else {
                     int pending = data != null ? data.available() : 0;
-                    sendContentLengthHeaderIfNotAlreadyPresent(pw, header, pending);
+                    // 1xx, 204 and 304 never have a body, so no length
+                    int code = status.getRequestStatus();
+                    if (code >= 200 && code != 204 && code != 304) {
+                        sendContentLengthHeaderIfNotAlreadyPresent(pw, header, pending);
+                    }
                     pw.print("\r\n");
                     pw.flush();
-                    sendAsFixedLength(outputStream, pending);
+                    sendBody(outputStream, pending);
                 }
                 outputStream.flush();
                 safeClose(data);
@@ -672,15 +934,50 @@ public abstract class NanoHTTPD {
             pw.print("\r\n");
             pw.flush();
             int BUFFER_SIZE = 16 * 1024;
-            byte[] CRLF = "\r\n".getBytes();
-            byte[] buff = new byte[BUFFER_SIZE];
-            int read;
-            while ((read = data.read(buff)) > 0) {
-                outputStream.write(String.format("%x\r\n", read).getBytes());
-                outputStream.write(buff, 0, read);
-                outputStream.write(CRLF);
+            OutputStream chunked = new BufferedOutputStream(new ChunkedOutputStream(outputStream), BUFFER_SIZE);
+            writeBody(chunked);
+            // Writes the last chunk, but leaves the socket open.
+            chunked.close();
+        }
+
+        /**
+         * Streams the body through the content coder, framed as chunks, so the
+         * compressed length never has to be known up front.
+         */
+        private void sendAsEncoded(OutputStream outputStream, PrintWriter pw) throws IOException {
+            pw.print("Transfer-Encoding: chunked\r\n");
+            pw.print("\r\n");
+            pw.flush();
+            int BUFFER_SIZE = 16 * 1024;
+            OutputStream chunked = new BufferedOutputStream(new ChunkedOutputStream(outputStream), BUFFER_SIZE);
+            DeflaterOutputStream encoder = "gzip".equals(contentEncoding) ? new GZIPOutputStream(chunked, BUFFER_SIZE)
+                : new DeflaterOutputStream(chunked);
+            writeBody(encoder);
+            // Finishes the coder and writes the last chunk, but leaves the socket open.
+            encoder.close();
+        }
+
+        /**
+         * Writes the whole body of a chunked or encoded response.  By default the data
+         * stream is copied; override to produce the body directly.
+         */
+        protected void writeBody(OutputStream out) throws IOException {
+            if (data != null) {
+                int BUFFER_SIZE = 16 * 1024;
+                byte[] buff = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = data.read(buff)) > 0) {
+                    out.write(buff, 0, read);
+                }
             }
-            outputStream.write(String.format("0\r\n\r\n").getBytes());
+        }
+
+        /**
+         * Sends the fixed-length body of the response, after the header has been flushed.
+         * Override to stream the body by other means.
+         */
+        protected void sendBody(OutputStream outputStream, int pending) throws IOException {
+            sendAsFixedLength(outputStream, pending);
         }
 
         private void sendAsFixedLength(OutputStream outputStream, int pending) throws IOException {
@@ -734,6 +1031,17 @@ public abstract class NanoHTTPD {
             this.chunkedTransfer = chunkedTransfer;
         }
 
+        public String getContentEncoding() {
+            return contentEncoding;
+        }
+
+        /**
+         * Sets the content coding of the body: "gzip", "deflate" or null for none.
+         */
+        public void setContentEncoding(String contentEncoding) {
+            this.contentEncoding = contentEncoding;
+        }
+
         public interface IStatus {
             int getRequestStatus();
             String getDescription();
@@ -745,8 +1053,10 @@ public abstract class NanoHTTPD {
         public enum Status implements IStatus {
             SWITCH_PROTOCOL(101, "Switching Protocols"), OK(200, "OK"), CREATED(201, "Created"), ACCEPTED(202, "Accepted"), NO_CONTENT(204, "No Content"), PARTIAL_CONTENT(206, "Partial Content"), REDIRECT(301,
                 "Moved Permanently"), NOT_MODIFIED(304, "Not Modified"), BAD_REQUEST(400, "Bad Request"), UNAUTHORIZED(401,
-                "Unauthorized"), FORBIDDEN(403, "Forbidden"), NOT_FOUND(404, "Not Found"), METHOD_NOT_ALLOWED(405, "Method Not Allowed"), RANGE_NOT_SATISFIABLE(416,
-                "Requested Range Not Satisfiable"), INTERNAL_ERROR(500, "Internal Server Error");
+                "Unauthorized"), FORBIDDEN(403, "Forbidden"), NOT_FOUND(404, "Not Found"), METHOD_NOT_ALLOWED(405, "Method Not Allowed"), LENGTH_REQUIRED(411,
+                "Length Required"), PAYLOAD_TOO_LARGE(413, "Payload Too Large"), RANGE_NOT_SATISFIABLE(416,
+                "Requested Range Not Satisfiable"), INTERNAL_ERROR(500, "Internal Server Error"), SERVICE_UNAVAILABLE(503,
+                "Service Unavailable");
             private final int requestStatus;
             private final String description;
 
@@ -767,6 +1077,143 @@ public abstract class NanoHTTPD {
         }
     }
 
+    /**
+     * Output stream that frames everything written to it as HTTP/1.1 chunks.
+     * <p/>
+     * <p>Closing it writes the terminating chunk but leaves the underlying stream open,
+     * so the connection can be kept alive.</p>
+     */
+    private static class ChunkedOutputStream extends FilterOutputStream {
+        private static final byte[] CRLF = "\r\n".getBytes();
+
+        public ChunkedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            out.write(Integer.toHexString(len).getBytes());
+            out.write(CRLF);
+            out.write(b, off, len);
+            out.write(CRLF);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.write("0\r\n\r\n".getBytes());
+            out.flush();
+        }
+    }
+
+    /**
+     * An output stream that can take file contents directly from a {@link FileChannel}
+     * without copying them through user space, e.g. one backed by a SocketChannel.
+     */
+    public interface FileTransferTarget {
+        /**
+         * Transfers count bytes of the file, starting at position, blocking until all are sent.
+         */
+        void transferFrom(FileChannel file, long position, long count) throws IOException;
+    }
+
+    /**
+     * HTTP response whose body is a region of a file.
+     * <p/>
+     * <p>The body is handed to the socket with <code>FileChannel.transferTo</code> when the
+     * connection's output stream is a {@link FileTransferTarget}, so the kernel copies the
+     * bytes straight from the page cache.  Other output streams, such as a plain socket's
+     * or an encoder's, have no channel to transfer to, and are fed through a buffer.</p>
+     */
+    public static class FileResponse extends Response {
+        private static final int COPY_BUFFER_SIZE = 64 * 1024;
+        private final FileChannel channel;
+        private final long offset;
+        private final long length;
+
+        /**
+         * @param file   the file to serve
+         * @param offset first byte of the body within the file
+         * @param length number of bytes in the body
+         */
+        public FileResponse(IStatus status, String mimeType, File file, final long offset, final long length) throws IOException {
+            super(status, mimeType, (InputStream) null);
+            FileInputStream data = new FileInputStream(file) {
+                @Override
+                public int available() throws IOException {
+                    return (int) Math.min(length, Integer.MAX_VALUE);
+                }
+            };
+            setData(data);
+            this.channel = data.getChannel();
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        protected void sendBody(OutputStream outputStream, int pending) throws IOException {
+            if (getRequestMethod() == Method.HEAD) {
+                return;
+            }
+            if (outputStream instanceof FileTransferTarget) {
+                ((FileTransferTarget) outputStream).transferFrom(channel, offset, length);
+            } else {
+                sendCopied(outputStream);
+            }
+        }
+
+        /**
+         * Writes the region, not the whole file, when the body is chunked or encoded.
+         */
+        @Override
+        protected void writeBody(OutputStream out) throws IOException {
+            sendCopied(out);
+        }
+
+        private void sendCopied(OutputStream outputStream) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            long position = offset;
+            long remaining = length;
+            while (remaining > 0) {
+                buffer.clear();
+                if (remaining < buffer.capacity()) {
+                    buffer.limit((int) remaining);
+                }
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("File ended before its response body");
+                }
+                outputStream.write(buffer.array(), 0, read);
+                position += read;
+                remaining -= read;
+            }
+        }
+    }
+
+    /**
+     * HTTP response whose body is generated while it is being sent.
+     * <p/>
+     * <p>The body is written by {@link #writeBody(OutputStream)} into a chunked (and,
+     * if negotiated, compressed) stream, so large documents can be produced with
+     * bounded memory instead of being built up front.</p>
+     */
+    public abstract static class StreamingResponse extends Response {
+        public StreamingResponse(IStatus status, String mimeType) {
+            super(status, mimeType, (InputStream) null);
+            setChunkedTransfer(true);
+        }
+
+        @Override
+        protected abstract void writeBody(OutputStream out) throws IOException;
+    }
+
     public static final class ResponseException extends Exception {
 
         private final Response.Status status;
@@ -796,6 +1243,194 @@ public abstract class NanoHTTPD {
         }
     }
 
+    /**
+     * Serves all requests of one accepted connection.
+     * <p/>
+     * <p>Under a {@link PooledAsyncRunner} the handler serves one request per run: it may
+     * move itself to the streaming lane after decoding a request header, and once the
+     * response is sent it gives up its worker, waiting for the next request in the
+     * {@link IdleConnectionWatcher}.  It answers "503 Service Unavailable" when the
+     * runner has no room left for it.</p>
+     */
+    protected class ClientHandler implements RejectableRunnable {
+        private final InputStream inputStream;
+        private final Socket acceptSocket;
+        private OutputStream outputStream;
+        private HTTPSession session;
+        private boolean pendingResponse;
+        private long idleSince;
+
+        public ClientHandler(InputStream inputStream, Socket acceptSocket) {
+            this.inputStream = inputStream;
+            this.acceptSocket = acceptSocket;
+        }
+
+        @Override
+        public void run() {
+            boolean handedOff = false;
+            try {
+                if (session == null) {
+                    outputStream = acceptSocket.getOutputStream();
+                    TempFileManager tempFileManager = tempFileManagerFactory.create();
+                    session = new HTTPSession(tempFileManager, inputStream, outputStream, acceptSocket.getInetAddress());
+                }
+                if (!(asyncRunner instanceof PooledAsyncRunner)) {
+                    while (!acceptSocket.isClosed()) {
+                        if (session.readRequest()) {
+                            session.respond();
+                        }
+                    }
+                    return;
+                }
+
+                if (pendingResponse) {
+                    pendingResponse = false;
+                } else {
+                    if (!session.readRequest()) {
+                        return;
+                    }
+                    if (useStreamingLane(session)) {
+                        pendingResponse = true;
+                        handedOff = true;
+                        ((PooledAsyncRunner) asyncRunner).execStreaming(this);
+                        return;
+                    }
+                }
+                session.respond();
+                if (!acceptSocket.isClosed()) {
+                    // Free this worker until the next request arrives
+                    handedOff = true;
+                    if (hasInput()) {
+                        asyncRunner.exec(this);
+                    } else {
+                        idleConnectionWatcher.park(this);
+                    }
+                }
+            } catch (Exception e) {
+                // When the socket is closed by the client, we throw our own SocketException
+                // to break the  "keep alive" loop above.
+                if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
+                    e.printStackTrace();
+                }
+            } finally {
+                if (!handedOff) {
+                    close();
+                }
+            }
+        }
+
+        /**
+         * Returns true if bytes of the next request can be read without blocking.
+         */
+        private boolean hasInput() throws IOException {
+            return (session != null ? session.inputStream : inputStream).available() > 0;
+        }
+
+        /**
+         * Answers the connection with "503 Service Unavailable" and closes it.
+         *
+         * @param retryAfterSeconds value of the Retry-After header
+         */
+        @Override
+        public void reject(int retryAfterSeconds) {
+            try {
+                if (outputStream == null) {
+                    outputStream = acceptSocket.getOutputStream();
+                }
+                Response r = new Response(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT, "SERVICE UNAVAILABLE: Server is busy.");
+                r.addHeader("Retry-After", String.valueOf(retryAfterSeconds));
+                r.addHeader("Connection", "close");
+                r.send(outputStream);
+            } catch (IOException ignored) {
+            } finally {
+                close();
+            }
+        }
+
+        private void close() {
+            if (session != null) {
+                session.tempFileManager.clear();
+            }
+            safeClose(outputStream);
+            safeClose(inputStream);
+            safeClose(acceptSocket);
+            unRegisterConnection(acceptSocket);
+        }
+    }
+
+    /**
+     * Holds the idle keep-alive connections of the threaded engine under a
+     * {@link PooledAsyncRunner}, so that they don't pin a worker while they wait.
+     * <p/>
+     * <p>Plain sockets can't be selected on, so one thread polls the parked connections
+     * every {@link #POLL_INTERVAL} ms: a connection with bytes to read goes back to the
+     * request lane, and one idle for longer than {@link #SOCKET_READ_TIMEOUT} is closed.</p>
+     */
+    private class IdleConnectionWatcher implements Runnable {
+        private static final long POLL_INTERVAL = 10;
+        private final List<ClientHandler> parked = new ArrayList<ClientHandler>();
+        private Thread thread;
+
+        synchronized void park(ClientHandler handler) {
+            handler.idleSince = System.currentTimeMillis();
+            parked.add(handler);
+            if (thread == null) {
+                thread = new Thread(this);
+                thread.setDaemon(true);
+                thread.setName("NanoHttpd Keep-Alive Watcher");
+                thread.start();
+            }
+            notify();
+        }
+
+        @Override
+        public void run() {
+            List<ClientHandler> ready = new ArrayList<ClientHandler>();
+            List<ClientHandler> expired = new ArrayList<ClientHandler>();
+            try {
+                while (true) {
+                    synchronized (this) {
+                        while (parked.isEmpty()) {
+                            wait();
+                        }
+                        long now = System.currentTimeMillis();
+                        Iterator<ClientHandler> it = parked.iterator();
+                        while (it.hasNext()) {
+                            ClientHandler handler = it.next();
+                            try {
+                                if (handler.acceptSocket.isClosed()) {
+                                    expired.add(handler);
+                                } else if (handler.hasInput()) {
+                                    ready.add(handler);
+                                } else if (now - handler.idleSince > SOCKET_READ_TIMEOUT) {
+                                    expired.add(handler);
+                                } else {
+                                    continue;
+                                }
+                            } catch (IOException e) {
+                                expired.add(handler);
+                            }
+                            it.remove();
+                        }
+                    }
+                    for (ClientHandler handler : ready) {
+                        asyncRunner.exec(handler);
+                    }
+                    for (ClientHandler handler : expired) {
+                        handler.close();
+                    }
+                    ready.clear();
+                    expired.clear();
+                    Thread.sleep(POLL_INTERVAL);
+                }
+            } catch (InterruptedException e) {
+                synchronized (this) {
+                    thread = null;
+                }
+            }
+        }
+    }
+
     /**
      * Handles one session, i.e. parses the HTTP request and returns the response.
      */
@@ -839,6 +1474,7 @@ public abstract class NanoHTTPD {
         private Map<String, String> headers;
         private CookieHandler cookies;
         private String queryParameterString;
+        private String protocolVersion;
 
         public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream) {
             this.tempFileManager = tempFileManager;
@@ -859,6 +1495,17 @@ public abstract class NanoHTTPD {
 
         @Override
         public void execute() throws IOException {
+            if (readRequest()) {
+                respond();
+            }
+        }
+
+        /**
+         * Reads and decodes the next request header from the connection.
+         *
+         * @return false if the request was malformed and an error response has already been sent
+         */
+        boolean readRequest() throws IOException {
             try {
                 // Read the first 8192 bytes.
                 // The full header should fit in here.
@@ -913,9 +1560,32 @@ public abstract class NanoHTTPD {
                 }
 
                 uri = pre.get("uri");
+                protocolVersion = pre.get("protocol");
 
                 cookies = new CookieHandler(headers);
+                return true;
+            } catch (SocketException e) {
+                // throw it out to close socket object (finalAccept)
+                throw e;
+            } catch (SocketTimeoutException ste) {
+            	throw ste;
+            } catch (IOException ioe) {
+                Response r = new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
+                r.send(outputStream);
+                safeClose(outputStream);
+            } catch (ResponseException re) {
+                Response r = new Response(re.getStatus(), MIME_PLAINTEXT, re.getMessage());
+                r.send(outputStream);
+                safeClose(outputStream);
+            }
+            return false;
+        }
 
+        /**
+         * Serves the request decoded by {@link #readRequest()} and sends the response.
+         */
+        void respond() throws IOException {
+            try {
                 // Ok, now do the serve()
                 Response r = serve(this);
                 if (r == null) {
@@ -923,17 +1593,11 @@ public abstract class NanoHTTPD {
                 } else {
                     cookies.unloadQueue(r);
                     r.setRequestMethod(method);
+                    if (useGzipWhenAccepted(r)) {
+                        r.setContentEncoding(negotiateContentEncoding(headers.get("accept-encoding")));
+                    }
                     r.send(outputStream);
                 }
-            } catch (SocketException e) {
-                // throw it out to close socket object (finalAccept)
-                throw e;
-            } catch (SocketTimeoutException ste) {
-            	throw ste;
-            } catch (IOException ioe) {
-                Response r = new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
-                r.send(outputStream);
-                safeClose(outputStream);
             } catch (ResponseException re) {
                 Response r = new Response(re.getStatus(), MIME_PLAINTEXT, re.getMessage());
                 r.send(outputStream);
@@ -970,6 +1634,12 @@ public abstract class NanoHTTPD {
                     }
                 }
 
+                // Undo a compressed request body (Content-Encoding: gzip or deflate)
+                String contentEncoding = headers.get("content-encoding");
+                if (contentEncoding != null) {
+                    randomAccessFile = decodeBody(randomAccessFile, contentEncoding.trim().toLowerCase(Locale.US));
+                }
+
                 // Get the raw body as a byte []
                 ByteBuffer fbuf = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
                 randomAccessFile.seek(0);
@@ -1006,6 +1676,10 @@ public abstract class NanoHTTPD {
                         }
 
                         decodeMultipartData(boundary, fbuf, in, parms, files);
+                    } else if (!isTextContentType(contentType)) {
+                        // Binary POST data would not survive decoding as a string, so keep it in a
+                        // temp file like PUT content
+                        files.put("content", saveTmpFile(fbuf, 0, fbuf.limit()));
                     } else {
                         String postLine = "";
                         StringBuilder postLineBuffer = new StringBuilder();
@@ -1034,6 +1708,49 @@ public abstract class NanoHTTPD {
             }
         }
 
+        /**
+         * Inflates an encoded request body into a new temp bucket.
+         *
+         * @return the bucket holding the decoded body
+         */
+        private RandomAccessFile decodeBody(RandomAccessFile encoded, String contentEncoding) throws IOException, ResponseException {
+            if (!"gzip".equals(contentEncoding) && !"x-gzip".equals(contentEncoding) && !"deflate".equals(contentEncoding)) {
+                if ("identity".equals(contentEncoding)) {
+                    return encoded;
+                }
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Unsupported Content-Encoding: " + contentEncoding);
+            }
+            RandomAccessFile decoded = getTmpBucket();
+            InputStream in = null;
+            try {
+                encoded.seek(0);
+                InputStream raw = new FileInputStream(encoded.getFD());
+                in = "deflate".equals(contentEncoding) ? new InflaterInputStream(raw) : new GZIPInputStream(raw);
+                byte[] buf = new byte[BUFSIZE];
+                int read;
+                while ((read = in.read(buf)) > 0) {
+                    decoded.write(buf, 0, read);
+                }
+            } catch (IOException ioe) {
+                safeClose(decoded);
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Malformed " + contentEncoding + " body.", ioe);
+            } finally {
+                safeClose(in);
+                safeClose(encoded);
+            }
+            return decoded;
+        }
+
+        /**
+         * Returns true if a POST body of the given content type can be read as text.
+         * A missing content type is treated as text, as before.
+         */
+        private boolean isTextContentType(String contentType) {
+            String type = contentType.toLowerCase(Locale.US);
+            return type.length() == 0 || type.startsWith("text/") || type.endsWith("json") || type.endsWith("xml")
+                || type.equals("application/x-www-form-urlencoded") || type.equals("application/javascript");
+        }
+
         /**
          * Decodes the sent headers and loads the data into Key/value pairs
          */
@@ -1069,10 +1786,11 @@ public abstract class NanoHTTPD {
                 }
 
                 // If there's another token, it's protocol version,
-                // followed by HTTP headers. Ignore version but parse headers.
+                // followed by HTTP headers.
                 // NOTE: this now forces header names lowercase since they are
                 // case insensitive and vary by client.
                 if (st.hasMoreTokens()) {
+                    pre.put("protocol", st.nextToken());
                     String line = in.readLine();
                     while (line != null && line.trim().length() > 0) {
                         int p = line.indexOf(':');
@@ -1290,6 +2008,14 @@ public abstract class NanoHTTPD {
             return headers;
         }
 
+        /**
+         * @return the protocol version of the request line, e.g. "HTTP/1.1",
+         * or null if the request line had none.
+         */
+        public final String getProtocolVersion() {
+            return protocolVersion;
+        }
+
         @Override
         public final String getUri() {
             return uri;
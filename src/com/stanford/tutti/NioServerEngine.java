@@ -0,0 +1,644 @@
+package com.stanford.tutti;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * This class is a non-blocking alternative to the thread-per-connection
+ * accept loop in NanoHTTPD.
+ *
+ * A single selector thread accepts connections and reads request bytes
+ * into pooled ByteBuffers, framing each request incrementally from its
+ * header and Content-Length. Only complete requests are dispatched to
+ * the server's worker threads, where they are served through the usual
+ * serve(IHTTPSession) contract. Idle keep-alive connections therefore
+ * cost a selection key instead of a blocked thread.
+ */
+public class NioServerEngine {
+	/* Idle keep-alive connections are closed after this many milliseconds. */
+	private static final int KEEP_ALIVE_TIMEOUT = 60000;
+	/* Requests whose header doesn't fit in this many bytes are refused. */
+	private static final int MAX_HEADER_SIZE = NanoHTTPD.HTTPSession.BUFSIZE;
+	/* Requests with a larger body are refused, as bodies are held in memory until complete. */
+	private static final int MAX_BODY_SIZE = 8 * 1024 * 1024;
+	/* Accepting is paused this long after accept() fails, e.g. out of file descriptors. */
+	private static final long ACCEPT_RETRY_DELAY = 1000;
+	private static final int BUFFER_SIZE = 8192;
+	private static final int MAX_POOLED_BUFFERS = 16;
+	private static final long SWEEP_INTERVAL = 1000;
+
+	private final NanoHTTPD server;
+	private final int port;
+	private final ConcurrentLinkedQueue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final ConcurrentLinkedQueue<Connection> resumeQueue = new ConcurrentLinkedQueue<Connection>();
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private SelectionKey serverKey;
+	private long acceptPausedUntil;
+	private Thread selectorThread;
+	private volatile boolean running;
+	private long lastSweep;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param NanoHTTPD server whose serve() answers the requests
+	 * @param int port to listen on, or 0 for any free port
+	 */
+	public NioServerEngine(NanoHTTPD server, int port) {
+		this.server = server;
+		this.port = port;
+	}
+
+	/**
+	 * Binds the listening channel and starts the selector thread.
+	 *
+	 * @throws IOException if the port is in use
+	 */
+	public void start() throws IOException {
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.configureBlocking(false);
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		serverKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		running = true;
+
+		selectorThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				selectLoop();
+			}
+		});
+		selectorThread.setDaemon(true);
+		selectorThread.setName("NanoHttpd NIO Selector");
+		selectorThread.start();
+	}
+
+	/**
+	 * Stops the selector thread and closes every open connection.
+	 */
+	public void stop() {
+		running = false;
+		try {
+			if (selector != null) {
+				selector.wakeup();
+			}
+			if (selectorThread != null) {
+				selectorThread.join();
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns the port the engine is listening on, or -1 if not started.
+	 */
+	public int getListeningPort() {
+		return serverChannel == null ? -1 : serverChannel.socket().getLocalPort();
+	}
+
+	public boolean isAlive() {
+		return running && selectorThread != null && selectorThread.isAlive();
+	}
+
+	private void selectLoop() {
+		try {
+			while (running) {
+				selector.select(SWEEP_INTERVAL);
+				resumeConnections();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else if (key.isReadable()) {
+						read(key);
+					}
+				}
+
+				sweepIdleConnections();
+				resumeAccepting();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				closeQuietly(key.channel());
+			}
+			closeQuietly(serverChannel);
+			closeSelector(selector);
+		}
+	}
+
+	/**
+	 * Accepts every pending connection. A connection that fails to
+	 * be set up is dropped, without ending the select loop.
+	 */
+	private void accept() {
+		while (true) {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+			} catch (IOException e) {
+				// e.g. out of file descriptors. The listening key would stay
+				// ready and spin the loop, so stop accepting for a while
+				e.printStackTrace();
+				serverKey.interestOps(0);
+				acceptPausedUntil = System.currentTimeMillis() + ACCEPT_RETRY_DELAY;
+				return;
+			}
+			if (channel == null) {
+				return;
+			}
+			try {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				Connection conn = new Connection(channel);
+				conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+			} catch (IOException e) {
+				closeQuietly(channel);
+			}
+		}
+	}
+
+	/**
+	 * Drains whatever the client has sent into a pooled buffer and
+	 * appends it to the connection's pending request bytes.
+	 */
+	private void read(SelectionKey key) {
+		Connection conn = (Connection) key.attachment();
+		ByteBuffer buffer = acquireBuffer();
+		try {
+			int read;
+			while ((read = conn.channel.read(buffer)) > 0) {
+				buffer.flip();
+				conn.append(buffer);
+				buffer.clear();
+			}
+			if (read < 0) {
+				conn.close();
+				return;
+			}
+			conn.lastActive = System.currentTimeMillis();
+			dispatchIfComplete(conn);
+		} catch (IOException e) {
+			conn.close();
+		} finally {
+			releaseBuffer(buffer);
+		}
+	}
+
+	/**
+	 * Hands the next complete request of the connection to a worker,
+	 * and stops selecting for reads until that request is answered.
+	 */
+	private void dispatchIfComplete(Connection conn) {
+		int length = conn.frameRequest();
+		if (length == 0) {
+			return;
+		}
+		if (length < 0) {
+			refuse(conn, conn.refusal);
+			return;
+		}
+
+		byte[] request = conn.take(length);
+		conn.busy = true;
+		conn.key.interestOps(0);
+		server.getAsyncRunner().exec(new RequestTask(conn, request));
+	}
+
+	/**
+	 * Answers a request that can't be framed with the given error
+	 * status, then closes the connection. The response is small and
+	 * written once without blocking; it is only a courtesy to the client.
+	 */
+	private void refuse(Connection conn, NanoHTTPD.Response.Status status) {
+		NanoHTTPD.Response r = new NanoHTTPD.Response(status, NanoHTTPD.MIME_PLAINTEXT, status.getDescription());
+		r.addHeader("Connection", "close");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		r.send(out);
+		try {
+			conn.channel.write(ByteBuffer.wrap(out.toByteArray()));
+		} catch (IOException ignored) {
+		}
+		conn.close();
+	}
+
+	/**
+	 * Re-arms connections whose request has been answered, serving any
+	 * pipelined request that had already been read.
+	 */
+	private void resumeConnections() {
+		Connection conn;
+		while ((conn = resumeQueue.poll()) != null) {
+			if (!conn.channel.isOpen() || !conn.key.isValid()) {
+				conn.close();
+				continue;
+			}
+			conn.busy = false;
+			conn.lastActive = System.currentTimeMillis();
+			conn.key.interestOps(SelectionKey.OP_READ);
+			dispatchIfComplete(conn);
+		}
+	}
+
+	private void resumeAccepting() {
+		if (acceptPausedUntil != 0 && System.currentTimeMillis() >= acceptPausedUntil) {
+			acceptPausedUntil = 0;
+			serverKey.interestOps(SelectionKey.OP_ACCEPT);
+		}
+	}
+
+	private void sweepIdleConnections() {
+		long now = System.currentTimeMillis();
+		if (now - lastSweep < SWEEP_INTERVAL) {
+			return;
+		}
+		lastSweep = now;
+		for (SelectionKey key : selector.keys()) {
+			Object attachment = key.attachment();
+			if (attachment instanceof Connection) {
+				Connection conn = (Connection) attachment;
+				if (!conn.busy && now - conn.lastActive > KEEP_ALIVE_TIMEOUT) {
+					conn.close();
+				}
+			}
+		}
+	}
+
+	private ByteBuffer acquireBuffer() {
+		ByteBuffer buffer = bufferPool.poll();
+		return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+	}
+
+	private void releaseBuffer(ByteBuffer buffer) {
+		buffer.clear();
+		if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+			bufferPool.offer(buffer);
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	private static void closeSelector(Selector selector) {
+		if (selector != null) {
+			try {
+				selector.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	/**
+	 * Serves one complete request on a worker thread. Under a
+	 * PooledAsyncRunner, requests that ask for the streaming lane
+	 * are decoded here and answered from the streaming lane.
+	 */
+	private class RequestTask implements NanoHTTPD.RejectableRunnable {
+		private final Connection conn;
+		private final byte[] request;
+		private NanoHTTPD.HTTPSession session;
+		private boolean decoded;
+
+		RequestTask(Connection conn, byte[] request) {
+			this.conn = conn;
+			this.request = request;
+		}
+
+		@Override
+		public void run() {
+			boolean handedOff = false;
+			try {
+				if (session == null) {
+					session = server.new HTTPSession(server.getTempFileManagerFactory().create(),
+							new ByteArrayInputStream(request), conn.output, conn.remoteAddress);
+				}
+				if (!decoded) {
+					decoded = true;
+					if (!session.readRequest()) {
+						conn.closeAfterResponse = true;
+						return;
+					}
+					conn.closeAfterResponse |= wantsClose(session);
+					NanoHTTPD.AsyncRunner runner = server.getAsyncRunner();
+					if (runner instanceof NanoHTTPD.PooledAsyncRunner && server.useStreamingLane(session)) {
+						handedOff = true;
+						((NanoHTTPD.PooledAsyncRunner) runner).execStreaming(this);
+						return;
+					}
+				}
+				session.respond();
+			} catch (Exception e) {
+				conn.closeAfterResponse = true;
+				e.printStackTrace();
+			} finally {
+				if (!handedOff) {
+					finish();
+				}
+			}
+		}
+
+		@Override
+		public void reject(int retryAfterSeconds) {
+			NanoHTTPD.Response r = new NanoHTTPD.Response(NanoHTTPD.Response.Status.SERVICE_UNAVAILABLE,
+					NanoHTTPD.MIME_PLAINTEXT, "SERVICE UNAVAILABLE: Server is busy.");
+			r.addHeader("Retry-After", String.valueOf(retryAfterSeconds));
+			r.addHeader("Connection", "close");
+			r.send(conn.output);
+			conn.closeAfterResponse = true;
+			finish();
+		}
+
+		private void finish() {
+			conn.output.releaseWriteSelector();
+			// Response.send swallows write errors, so a response that
+			// stopped part way is only known to the output stream
+			if (conn.closeAfterResponse || conn.output.hasFailed()) {
+				conn.close();
+			}
+			resumeQueue.offer(conn);
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Returns true if the connection must be closed after the response:
+	 * the client asked for it, or it speaks HTTP/1.0 (or older) without
+	 * asking for keep-alive.
+	 */
+	private static boolean wantsClose(NanoHTTPD.HTTPSession session) {
+		String connection = session.getHeaders().get("connection");
+		connection = connection != null ? connection.toLowerCase(Locale.US) : "";
+		if (connection.contains("close")) {
+			return true;
+		}
+		boolean persistentByDefault = "HTTP/1.1".equalsIgnoreCase(session.getProtocolVersion());
+		return !persistentByDefault && !connection.contains("keep-alive");
+	}
+
+	/**
+	 * State of one client connection: the request bytes read so far and
+	 * how far they have been scanned for the end of the header.
+	 */
+	private class Connection {
+		final SocketChannel channel;
+		final ChannelOutputStream output;
+		final InetAddress remoteAddress;
+		SelectionKey key;
+		volatile boolean busy;
+		volatile boolean closeAfterResponse;
+		long lastActive = System.currentTimeMillis();
+		/* Why the pending request can't be framed, once frameRequest() returns -1. */
+		NanoHTTPD.Response.Status refusal;
+
+		private byte[] pending;
+		private int pendingLength;
+		private int scanned;
+		private int headerEnd;
+		private int requestLength;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+			this.output = new ChannelOutputStream(channel);
+			this.remoteAddress = channel.socket().getInetAddress();
+		}
+
+		void append(ByteBuffer buffer) {
+			int count = buffer.remaining();
+			if (pending == null) {
+				pending = new byte[Math.max(BUFFER_SIZE, count)];
+			} else if (pendingLength + count > pending.length) {
+				byte[] grown = new byte[Math.max(pending.length * 2, pendingLength + count)];
+				System.arraycopy(pending, 0, grown, 0, pendingLength);
+				pending = grown;
+			}
+			buffer.get(pending, pendingLength, count);
+			pendingLength += count;
+		}
+
+		/**
+		 * Continues framing the pending request from where the last
+		 * read left off.
+		 *
+		 * Bodies must have a Content-Length of at most MAX_BODY_SIZE;
+		 * chunked bodies aren't supported, as their end can't be found
+		 * without decoding them.
+		 *
+		 * @return the length of the complete request, 0 if more bytes
+		 * are needed, or -1 if the request can't be framed, with the
+		 * status to refuse it with in refusal
+		 */
+		int frameRequest() {
+			if (headerEnd == 0) {
+				int from = Math.max(0, scanned - 3);
+				for (int i = from; i + 3 < pendingLength; i++) {
+					if (pending[i] == '\r' && pending[i + 1] == '\n'
+							&& pending[i + 2] == '\r' && pending[i + 3] == '\n') {
+						headerEnd = i + 4;
+						break;
+					}
+				}
+				scanned = pendingLength;
+				if (headerEnd == 0) {
+					if (pendingLength > MAX_HEADER_SIZE) {
+						refusal = NanoHTTPD.Response.Status.BAD_REQUEST;
+						return -1;
+					}
+					return 0;
+				}
+				if (headerEnd > MAX_HEADER_SIZE) {
+					refusal = NanoHTTPD.Response.Status.BAD_REQUEST;
+					return -1;
+				}
+				String header = new String(pending, 0, headerEnd).toLowerCase(Locale.US);
+				if (header.indexOf("\r\ntransfer-encoding:") >= 0) {
+					refusal = NanoHTTPD.Response.Status.LENGTH_REQUIRED;
+					return -1;
+				}
+				long contentLength = parseContentLength(header);
+				if (contentLength < 0) {
+					refusal = NanoHTTPD.Response.Status.BAD_REQUEST;
+					return -1;
+				}
+				if (contentLength > MAX_BODY_SIZE) {
+					refusal = NanoHTTPD.Response.Status.PAYLOAD_TOO_LARGE;
+					return -1;
+				}
+				requestLength = headerEnd + (int) contentLength;
+			}
+			return pendingLength >= requestLength ? requestLength : 0;
+		}
+
+		private long parseContentLength(String header) {
+			int index = header.indexOf("\r\ncontent-length:");
+			if (index < 0) {
+				return 0;
+			}
+			int start = index + "\r\ncontent-length:".length();
+			int end = header.indexOf("\r\n", start);
+			try {
+				return Long.parseLong(header.substring(start, end).trim());
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+
+		/**
+		 * Removes the first request from the pending bytes, keeping any
+		 * pipelined bytes that follow it.
+		 */
+		byte[] take(int length) {
+			byte[] request = new byte[length];
+			System.arraycopy(pending, 0, request, 0, length);
+			int remaining = pendingLength - length;
+			if (remaining > 0) {
+				System.arraycopy(pending, length, pending, 0, remaining);
+				pendingLength = remaining;
+			} else {
+				pending = null;
+				pendingLength = 0;
+			}
+			scanned = 0;
+			headerEnd = 0;
+			requestLength = 0;
+			return request;
+		}
+
+		void close() {
+			if (key != null) {
+				key.cancel();
+			}
+			closeQuietly(channel);
+			pending = null;
+		}
+	}
+
+	/**
+	 * Blocking OutputStream over a non-blocking SocketChannel. When the
+	 * socket's send buffer is full the writing worker waits on its own
+	 * selector, so the engine's selector thread never blocks. File bodies
+	 * are sent with FileChannel.transferTo, without a user-space copy.
+	 */
+	static class ChannelOutputStream extends OutputStream implements NanoHTTPD.FileTransferTarget {
+		private final SocketChannel channel;
+		private Selector writeSelector;
+		private volatile boolean failed;
+
+		ChannelOutputStream(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		public SocketChannel getChannel() {
+			return channel;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			write(ByteBuffer.wrap(b, off, len));
+		}
+
+		/**
+		 * Writes all remaining bytes of the buffer, waiting for the
+		 * socket to become writable as needed.
+		 */
+		public void write(ByteBuffer buffer) throws IOException {
+			try {
+				while (buffer.hasRemaining()) {
+					if (channel.write(buffer) == 0) {
+						awaitWritable();
+					}
+				}
+			} catch (IOException e) {
+				failed = true;
+				throw e;
+			}
+		}
+
+		@Override
+		public void transferFrom(FileChannel file, long position, long count) throws IOException {
+			try {
+				while (count > 0) {
+					long sent = file.transferTo(position, count, channel);
+					if (sent == 0) {
+						awaitWritable();
+					}
+					position += sent;
+					count -= sent;
+				}
+			} catch (IOException e) {
+				failed = true;
+				throw e;
+			}
+		}
+
+		/**
+		 * Returns true if a write has failed, so the connection is no
+		 * longer at a request boundary and can't be kept alive.
+		 */
+		boolean hasFailed() {
+			return failed;
+		}
+
+		/**
+		 * Blocks until the channel can accept more bytes.
+		 */
+		public void awaitWritable() throws IOException {
+			if (writeSelector == null) {
+				writeSelector = Selector.open();
+			}
+			SelectionKey key = channel.register(writeSelector, SelectionKey.OP_WRITE);
+			try {
+				if (writeSelector.select(NanoHTTPD.SOCKET_READ_TIMEOUT) == 0) {
+					throw new IOException("Write timed out");
+				}
+				writeSelector.selectedKeys().clear();
+			} finally {
+				key.cancel();
+				writeSelector.selectNow();
+			}
+		}
+
+		void releaseWriteSelector() {
+			closeSelector(writeSelector);
+			writeSelector = null;
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
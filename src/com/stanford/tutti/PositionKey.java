@@ -0,0 +1,115 @@
+package com.stanford.tutti;
+
+/**
+ * Generates sortable position keys for ordering songs in the jam.
+ *
+ * A key is a base-62 fraction between 0 and 1, written as its
+ * digits after the point, so keys compare the same way as strings
+ * (and as TEXT in SQLite) as they do as numbers. There is always
+ * room for a new key between two others, so a song can be moved
+ * or inserted by giving it one new key, without renumbering
+ * the songs around it. Keys never end in the zero digit,
+ * which keeps room below every key too.
+ *
+ * Keys grow longer as songs are repeatedly inserted in the
+ * same gap; once one grows past MAX_LENGTH the jam is given
+ * evenly spaced keys again with spread(). Two phones appending
+ * at the same time can also pick the same key; the jam breaks
+ * such ties by timestamp ID until it is spread again.
+ */
+public class PositionKey {
+
+	/* Keys longer than this should be rebalanced. */
+	public static final int MAX_LENGTH = 12;
+
+	// Digits in ascending ASCII order
+	private static final String DIGITS =
+			"0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+	private static final int BASE = DIGITS.length();
+
+	/**
+	 * Returns a key that sorts strictly between the given keys.
+	 * A null before means the start of the jam, and a null after
+	 * means the end. Keys appended at either end are kept short
+	 * by stepping one digit at a time instead of halving the gap.
+	 * Equal keys have nothing between them, so their shared key
+	 * is returned, rather than one that sorts past after.
+	 *
+	 * @param String before, or null
+	 * @param String after, or null; must not sort before before
+	 * @return String key
+	 */
+	public static String between(String before, String after) {
+		if (before != null && before.equals(after)) {
+			return before;
+		}
+		boolean atStart = before == null;
+		boolean atEnd = after == null;
+		StringBuilder key = new StringBuilder();
+		for (int i = 0; ; i++) {
+			int low = before != null && i < before.length() ? digit(before.charAt(i)) : 0;
+			int high = after != null && i < after.length() ? digit(after.charAt(i)) : BASE;
+
+			if (high - low > 1) {
+				int mid;
+				if (atEnd && !atStart) {
+					mid = low + 1;
+				} else if (atStart && !atEnd) {
+					mid = high - 1;
+				} else {
+					mid = (low + high) / 2;
+				}
+				key.append(DIGITS.charAt(mid));
+				return key.toString();
+			}
+
+			key.append(DIGITS.charAt(low));
+			if (low < high) {
+				// The key is already below after, so only before bounds the rest
+				after = null;
+			}
+		}
+	}
+
+	/**
+	 * Returns the given number of evenly spaced keys,
+	 * in ascending order, with room between each of them.
+	 *
+	 * @param int count
+	 * @return String[] keys
+	 */
+	public static String[] spread(int count) {
+		// Use enough digits for about BASE free keys between neighbors
+		int length = 1;
+		long range = BASE;
+		while (range < (long) (count + 1) * BASE) {
+			range *= BASE;
+			length++;
+		}
+
+		String[] keys = new String[count];
+		long step = range / (count + 1);
+		char[] digits = new char[length];
+		for (int i = 0; i < count; i++) {
+			long value = step * (i + 1);
+			for (int j = length - 1; j >= 0; j--) {
+				digits[j] = DIGITS.charAt((int) (value % BASE));
+				value /= BASE;
+			}
+			int end = length;
+			while (end > 1 && digits[end - 1] == '0') {
+				end--;
+			}
+			keys[i] = new String(digits, 0, end);
+		}
+		return keys;
+	}
+
+	private static int digit(char c) {
+		int digit = DIGITS.indexOf(c);
+		if (digit < 0) {
+			throw new IllegalArgumentException("Not a position key digit: " + c);
+		}
+		return digit;
+	}
+}
@@ -1,15 +1,34 @@
 package com.stanford.tutti;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import android.util.JsonReader;
+import android.util.JsonWriter;
+
 import com.loopj.android.http.AsyncHttpResponseHandler;
 
 /**
@@ -45,84 +64,443 @@ class RequestLibraryThread extends Thread {
 	 */
 	public void run() {
 		client.requestRemoteLibrary(new AsyncHttpResponseHandler() {
+			private JSONObject jam = null; 
+			private File forwardedLibrary = null; 
+			private boolean forwardedBinary = false; 
+			
+			/**
+			 * Parses the library straight off the socket on the 
+			 * request thread, instead of buffering the whole body 
+			 * for onSuccess(). 
+			 */
 			@Override
-			public void onSuccess(int statusCode, Header[] headers, byte[] responseBody) {
-				try {					
-					ByteArrayInputStream is = new ByteArrayInputStream(responseBody); 
-					BufferedReader reader = new BufferedReader(
-							new InputStreamReader(is));
-					
-					String remoteLibrary = reader.readLine();
-					JSONObject jsonLibrary;
-					jsonLibrary = new JSONObject(remoteLibrary);
-
-					String username = jsonLibrary.getString("username"); 
+			public void sendResponseMessage(HttpResponse response) throws IOException {
+				if (Thread.currentThread().isInterrupted()) {
+					return; 
+				}
+				StatusLine status = response.getStatusLine(); 
+				HttpEntity entity = response.getEntity(); 
+				if (status.getStatusCode() >= 300 || entity == null) {
+					super.sendResponseMessage(response); 
+					return; 
+				}
+				Header contentType = entity.getContentType(); 
+				boolean binary = contentType != null && WireCodec.isBinary(contentType.getValue()); 
+				// Older phones answer in a version that can't read ours 
+				client.setAcceptsBinary(binary && WireCodec.version(contentType.getValue()) >= WireCodec.VERSION); 
+				try {
+					loadRemoteLibrary(entity.getContent(), binary); 
+				} catch (Exception e) {
+					// IOException, JSONException, or a malformed stream from JsonReader
+					e.printStackTrace();
+					sendFailureMessage(status.getStatusCode(), response.getAllHeaders(), null, e); 
+					return; 
+				} finally {
+					entity.consumeContent(); 
+				}
+				sendSuccessMessage(status.getStatusCode(), response.getAllHeaders(), null); 
+			}
+			
+			/**
+			 * Reads the remote library, as JSON or in the binary 
+			 * wire format. Songs go into the database as they are 
+			 * parsed; the small jam object is kept for onSuccess(). 
+			 * On the master, the raw body is also spooled gzip-compressed 
+			 * to a cache file, to be forwarded to the other phones in the jam. 
+			 */
+			private void loadRemoteLibrary(InputStream content, boolean binary) throws IOException, JSONException {
+				InputStream is = Client.openResponseStream(content); 
+				File spool = null; 
+				GZIPOutputStream copy = null; 
+				if (g.jam.checkMaster()) {
+					spool = File.createTempFile("library", ".gz", g.getCacheDir()); 
+					copy = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(spool))); 
+					is = new TeeInputStream(is, copy); 
+				}
+				
+				try {
+					readRemoteLibrary(is, binary); 
+					if (copy != null) {
+						copy.close(); 
+						copy = null; 
+						forwardedLibrary = spool; 
+						forwardedBinary = binary; 
+					}
+				} finally {
+					is.close(); 
+					if (copy != null) {
+						copy.close(); 
+					}
+					if (spool != null && forwardedLibrary != spool) {
+						spool.delete(); 
+					}
+				}
+			}
+			
+			/**
+			 * Parses the remote library message. 
+			 * Helper method for loadRemoteLibrary(). 
+			 */
+			private void readRemoteLibrary(InputStream is, boolean binary) throws IOException, JSONException {
+				
+				if (binary) {
+					WireCodec.Reader reader = new WireCodec.Reader(new BufferedInputStream(is)); 
+					String username = reader.readString(); 
+					reader.readString(); 	// ip
+					reader.readInt(); 		// port
 					g.jam.setIPUsername(client.getIpAddress(), username); 
-
-					JSONArray artists = jsonLibrary.getJSONArray("artists");
-					JSONObject jam = jsonLibrary.getJSONObject("jam"); 
-					
-					g.db.loadMusicFromJSON(artists);
-					g.logger.updateNumberSongs();
-					
-					if (!g.jam.checkMaster()) {
-						g.jam.loadJamFromJSON(jam); 
+					g.db.loadMusicFromBinary(reader); 
+					Object jamValue = reader.readValue(); 
+					if (jamValue instanceof JSONObject) {
+						jam = (JSONObject) jamValue; 
 					}
-					
+					return; 
+				}
+				
+				JsonReader reader = new JsonReader(new InputStreamReader(is, "UTF-8")); 
+				reader.beginObject(); 
+				while (reader.hasNext()) {
+					String field = reader.nextName(); 
+					if (field.equals("username")) {
+						String username = reader.nextString(); 
+						g.jam.setIPUsername(client.getIpAddress(), username); 
+					} else if (field.equals("artists")) {
+						g.db.loadMusicFromJSON(reader); 
+					} else if (field.equals("jam")) {
+						jam = (JSONObject) readJSON(reader); 
+					} else {
+						reader.skipValue(); 
+					}
+				}
+				reader.endObject(); 
+			}
+			
+			@Override
+			public void onSuccess(int statusCode, Header[] headers, byte[] responseBody) {
+				g.logger.updateNumberSongs();
+				
+				if (!g.jam.checkMaster() && jam != null) {
+					g.jam.loadJamFromJSON(jam); 
+				}
+				
+				if (forwardedLibrary != null) {
 					if (g.jam.checkMaster()) {
-						for (Client c : g.jam.getClientSet()) {
-							if (c != client) {
-								c.updateLibrary(jsonLibrary, new AsyncHttpResponseHandler() {
-									
-								});
-							}
-						}
+						forwardLibrary(forwardedLibrary, forwardedBinary); 
+					} else {
+						forwardedLibrary.delete(); 
 					}
-					
-					
-					client.requestAlbumArt(new AsyncHttpResponseHandler() {
-						@Override
-						public void onSuccess(int statusCode, Header[] headers, byte[] responseBody) {
-							
-							ByteArrayInputStream is = new ByteArrayInputStream(responseBody); 
+					forwardedLibrary = null; 
+				}
+				
+				if (g.db.hasArtHashes(client.getIpAddress())) {
+					// Art is fetched by hash as it comes into view (see ArtStore)
+					return; 
+				}
+				
+				// Phones without art hashes can only send all of their art at once
+				client.requestAlbumArt(new AsyncHttpResponseHandler() {
+					@Override
+					public void onSuccess(int statusCode, Header[] headers, byte[] responseBody) {
+						
+						String remoteAlbumArt;
+						JSONObject jsonAlbumArt = null; 
+						try {
+							InputStream is = Client.openResponseBody(responseBody); 
 							BufferedReader reader = new BufferedReader(
 									new InputStreamReader(is));
+							remoteAlbumArt = reader.readLine();
+							jsonAlbumArt = new JSONObject(remoteAlbumArt);
+						} catch (IOException e) {
+							// TODO Auto-generated catch block
+							e.printStackTrace();
+						} catch (JSONException e) {
+							// TODO Auto-generated catch block
+							e.printStackTrace();
+						} 
+						
+						if (jsonAlbumArt != null) {
+							g.db.loadAlbumArtFromJSON(jsonAlbumArt); 
 							
-							String remoteAlbumArt;
-							JSONObject jsonAlbumArt = null; 
-							try {
-								remoteAlbumArt = reader.readLine();
-								jsonAlbumArt = new JSONObject(remoteAlbumArt);
-							} catch (IOException e) {
-								// TODO Auto-generated catch block
-								e.printStackTrace();
-							} catch (JSONException e) {
-								// TODO Auto-generated catch block
-								e.printStackTrace();
-							} 
-							
-							if (jsonAlbumArt != null) {
-								g.db.loadAlbumArtFromJSON(jsonAlbumArt); 
-								
-								if (g.jam.checkMaster()) {
-									for (Client c : g.jam.getClientSet()) {
-										if (c != client) {
-											c.updateAlbumArt(jsonAlbumArt, new AsyncHttpResponseHandler() {
-												
-											});
-										}
+							if (g.jam.checkMaster()) {
+								for (Client c : g.jam.getClientSet()) {
+									if (c != client) {
+										c.updateAlbumArt(jsonAlbumArt, new AsyncHttpResponseHandler() {
+											
+										});
 									}
 								}
 							}
 						}
-					}); 
-				} catch (IOException e) {
-					e.printStackTrace();
-				} catch (JSONException e) {
-					e.printStackTrace();
-				}
+					}
+				}); 
 			}
 		}); 
 	}
 	
+	/**
+	 * Forwards a spooled library to every other phone in the jam, 
+	 * transcoding it to JSON for phones without the binary format. 
+	 * The spool files are deleted once the last upload finishes. 
+	 * 
+	 * @param File spool, gzip-compressed
+	 * @param boolean binary
+	 */
+	private void forwardLibrary(final File spool, boolean binary) {
+		final File jsonSpool = binary ? null : spool; 
+		final ArrayList<Client> binaryClients = new ArrayList<Client>(); 
+		final ArrayList<Client> jsonClients = new ArrayList<Client>(); 
+		for (Client c : g.jam.getClientSet()) {
+			if (c == client) {
+				continue; 
+			}
+			if (binary && c.acceptsBinary()) {
+				binaryClients.add(c); 
+			} else {
+				jsonClients.add(c); 
+			}
+		}
+		
+		File transcoded = jsonSpool; 
+		if (transcoded == null && !jsonClients.isEmpty()) {
+			// Only phones without the binary format need the library as JSON
+			transcoded = binaryLibraryToJSON(spool, g.getCacheDir()); 
+			if (transcoded == null) {
+				jsonClients.clear(); 
+			}
+		}
+		
+		final File jsonLibrary = transcoded; 
+		final AtomicInteger pending = new AtomicInteger(binaryClients.size() + jsonClients.size()); 
+		if (pending.get() == 0) {
+			deleteSpools(spool, jsonLibrary); 
+			return; 
+		}
+		AsyncHttpResponseHandler handler = new AsyncHttpResponseHandler() {
+			@Override
+			public void onFinish() {
+				if (pending.decrementAndGet() == 0) {
+					deleteSpools(spool, jsonLibrary); 
+				}
+			}
+		}; 
+		for (Client c : binaryClients) {
+			c.updateLibrary(spool, true, handler); 
+		}
+		for (Client c : jsonClients) {
+			c.updateLibrary(jsonLibrary, false, handler); 
+		}
+	}
+	
+	/**
+	 * Deletes the spooled library and its JSON transcoding, 
+	 * which may be the same file, or null. 
+	 */
+	private static void deleteSpools(File spool, File jsonLibrary) {
+		spool.delete(); 
+		if (jsonLibrary != null) {
+			jsonLibrary.delete(); 
+		}
+	}
+	
+	/**
+	 * Transcodes a gzip-compressed binary library message 
+	 * into a gzip-compressed JSON file, for forwarding to 
+	 * phones that don't support the binary wire format. 
+	 * 
+	 * Songs are streamed from the reader to a JsonWriter one 
+	 * at a time, grouped the way writeLibraryAsJSON() groups 
+	 * them; the binary message is written in the same artist 
+	 * and album order, so only the current song is in memory. 
+	 * 
+	 * @param File compressedBinary
+	 * @param File dir, for the new file
+	 * @returns File compressedJSON, or null if the message is malformed
+	 */
+	private static File binaryLibraryToJSON(File compressedBinary, File dir) {
+		File compressedJSON = null; 
+		InputStream in = null; 
+		JsonWriter writer = null; 
+		try {
+			compressedJSON = File.createTempFile("library", ".json.gz", dir); 
+			in = new GZIPInputStream(new BufferedInputStream(new FileInputStream(compressedBinary))); 
+			WireCodec.Reader reader = new WireCodec.Reader(new BufferedInputStream(in)); 
+			writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(
+					new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(compressedJSON))), "UTF-8"))); 
+			writer.beginObject(); 
+			writer.name("username").value(reader.readString()); 
+			writer.name("ip").value(reader.readString()); 
+			writer.name("port").value(reader.readInt()); 
+			
+			writer.name("artists").beginArray(); 
+			boolean inArtist = false; 
+			String currentArtist = null; 
+			String currentAlbum = null; 
+			int count = reader.readInt(); 
+			for (int i = 0; i < count; i++) {
+				String title = reader.readString(); 
+				String artist = reader.readString(); 
+				String album = reader.readString(); 
+				boolean newArtist = !inArtist || !sameValue(artist, currentArtist); 
+				
+				if (newArtist) {
+					if (inArtist) {
+						writer.endArray().endObject(); 	// songs, album
+						writer.endArray().endObject(); 	// albums, artist
+					}
+					writer.beginObject(); 
+					writer.name("name").value(artist); 
+					writer.name("albums").beginArray(); 
+					inArtist = true; 
+					currentArtist = artist; 
+				} else if (!sameValue(album, currentAlbum)) {
+					writer.endArray().endObject(); 		// songs, album
+				}
+				
+				if (newArtist || !sameValue(album, currentAlbum)) {
+					writer.beginObject(); 
+					writer.name("title").value(album); 
+					writer.name("songs").beginArray(); 
+					currentAlbum = album; 
+				}
+				
+				writer.beginObject(); 
+				writer.name("title").value(title); 
+				writer.name("path").value(reader.readString()); 
+				writer.name("ip").value(reader.readString()); 
+				writer.name("port").value(reader.readInt()); 
+				writer.name("num").value(reader.readInt()); 
+				if (reader.getVersion() >= 2) {
+					writer.name("artHash").value(reader.readString()); 
+				}
+				writer.endObject(); 
+			}
+			if (inArtist) {
+				writer.endArray().endObject(); 
+				writer.endArray().endObject(); 
+			}
+			writer.endArray(); 
+			writer.endObject(); 
+			writer.close(); 
+			writer = null; 
+			return compressedJSON; 
+		} catch (IOException e) {
+			e.printStackTrace(); 
+		} finally {
+			try {
+				if (in != null) {
+					in.close(); 
+				}
+				if (writer != null) {
+					writer.close(); 
+				}
+			} catch (IOException e) {
+				e.printStackTrace(); 
+			}
+		}
+		if (compressedJSON != null) {
+			compressedJSON.delete(); 
+		}
+		return null; 
+	}
+	
+	/**
+	 * Null-safe string equality, for grouping songs. 
+	 */
+	private static boolean sameValue(String a, String b) {
+		return a == null ? b == null : a.equals(b); 
+	}
+	
+	/**
+	 * Reads the next JSON value from the reader into the 
+	 * equivalent org.json value: a JSONObject, JSONArray, 
+	 * String, Integer, Long, Double, Boolean or JSONObject.NULL. 
+	 * 
+	 * @param JsonReader reader
+	 * @returns Object value
+	 * @throws IOException
+	 * @throws JSONException
+	 */
+	static Object readJSON(JsonReader reader) throws IOException, JSONException {
+		switch (reader.peek()) {
+		case BEGIN_OBJECT: 
+			JSONObject object = new JSONObject(); 
+			reader.beginObject(); 
+			while (reader.hasNext()) {
+				String name = reader.nextName(); 
+				object.put(name, readJSON(reader)); 
+			}
+			reader.endObject(); 
+			return object; 
+		case BEGIN_ARRAY: 
+			JSONArray array = new JSONArray(); 
+			reader.beginArray(); 
+			while (reader.hasNext()) {
+				array.put(readJSON(reader)); 
+			}
+			reader.endArray(); 
+			return array; 
+		case BOOLEAN: 
+			return reader.nextBoolean(); 
+		case NULL: 
+			reader.nextNull(); 
+			return JSONObject.NULL; 
+		case NUMBER: 
+			String number = reader.nextString(); 
+			try {
+				long value = Long.parseLong(number); 
+				if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+					return (int) value; 
+				}
+				return value; 
+			} catch (NumberFormatException e) {
+				return Double.parseDouble(number); 
+			}
+		default: 
+			return reader.nextString(); 
+		}
+	}
+	
+	/**
+	 * InputStream that copies every byte it reads 
+	 * to a second, output stream. 
+	 */
+	private static class TeeInputStream extends FilterInputStream {
+		private final OutputStream copy; 
+		
+		TeeInputStream(InputStream in, OutputStream copy) {
+			super(in); 
+			this.copy = copy; 
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = super.read(); 
+			if (b >= 0) {
+				copy.write(b); 
+			}
+			return b; 
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			int read = super.read(buffer, offset, count); 
+			if (read > 0) {
+				copy.write(buffer, offset, read); 
+			}
+			return read; 
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			// Skipped bytes must still be copied
+			byte[] buffer = new byte[(int) Math.min(n, 4096)]; 
+			int read = read(buffer, 0, buffer.length); 
+			return read < 0 ? 0 : read; 
+		}
+		
+		@Override
+		public boolean markSupported() {
+			return false; 
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,68 @@
+package com.stanford.tutti;
+
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.support.v4.widget.CursorAdapter;
+
+/**
+ * Runs a library search off the UI thread and swaps
+ * the resulting cursor into a list adapter. A search
+ * that is cancelled because the query changed again
+ * closes its cursor instead of displaying it.
+ */
+public abstract class SearchTask extends AsyncTask<Void, Void, Cursor> {
+
+	private CursorAdapter adapter;
+
+	/**
+	 * Constructs a new SearchTask that
+	 * displays its results in the given adapter.
+	 *
+	 * @param CursorAdapter adapter
+	 */
+	public SearchTask(CursorAdapter adapter) {
+		this.adapter = adapter;
+	}
+
+	/**
+	 * Runs the search query.
+	 *
+	 * @returns Cursor results
+	 */
+	protected abstract Cursor search();
+
+	/**
+	 * (non-Javadoc)
+	 * @see android.os.AsyncTask#doInBackground(java.lang.Object[])
+	 */
+	@Override
+	protected Cursor doInBackground(Void... params) {
+		Cursor cursor = search();
+		// Queries are lazy, so fill the first window here rather than on the UI thread
+		cursor.getCount();
+		return cursor;
+	}
+
+	/**
+	 * (non-Javadoc)
+	 * @see android.os.AsyncTask#onPostExecute(java.lang.Object)
+	 */
+	@Override
+	protected void onPostExecute(Cursor cursor) {
+		Cursor oldCursor = adapter.swapCursor(cursor);
+		if (oldCursor != null) {
+			oldCursor.close();
+		}
+	}
+
+	/**
+	 * (non-Javadoc)
+	 * @see android.os.AsyncTask#onCancelled(java.lang.Object)
+	 */
+	@Override
+	protected void onCancelled(Cursor cursor) {
+		if (cursor != null) {
+			cursor.close();
+		}
+	}
+}
@@ -1,12 +1,23 @@
 package com.stanford.tutti;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
 
 import org.apache.http.Header;
 import org.json.JSONArray;
@@ -15,6 +26,7 @@ import org.json.JSONObject;
 
 import android.database.Cursor;
 import android.os.Message;
+import android.util.JsonWriter;
 
 import com.loopj.android.http.AsyncHttpResponseHandler;
 import com.stanford.tutti.NanoHTTPD.Response.Status;
@@ -31,6 +43,7 @@ public class Server extends NanoHTTPD {
 	private static final String UPDATE_LIBRARY = "/updateLibrary";
 	private static final String GET_ALBUM_ART = "/getAlbumArt"; 
 	private static final String UPDATE_ALBUM_ART = "/updateAlbumArt"; 
+	private static final String GET_ART = ArtStore.ART_PATH; 
 	private static final String GET_SONG = "/song";
 	private static final String JOIN_JAM = "/joinJam";
 	private static final String ACCEPT_JOIN_JAM = "/acceptJoinJam"; 
@@ -50,8 +63,28 @@ public class Server extends NanoHTTPD {
 	private static final String IS_MASTER = "/isMaster";
 	private static final String HTTP_CLIENT_IP = "http-client-ip";
 	private static final int PORT = 0; 
+	
+	/* Sizes of the bounded worker pools serving incoming connections. */
+	private static final int REQUEST_WORKERS = 8; 
+	private static final int REQUEST_QUEUE_SIZE = 64; 
+	private static final int STREAMING_WORKERS = 4; 
+	private static final int STREAMING_QUEUE_SIZE = 8; 
+	private static final int RETRY_AFTER_SECONDS = 2; 
 	private Globals g = null;
 	
+	/**
+	 * The connection handling engines the server can run on. 
+	 * THREADED is NanoHTTPD's blocking accept loop; NIO multiplexes 
+	 * all connections on one selector thread, so idle keep-alive 
+	 * clients don't each hold a worker thread. 
+	 */
+	public enum Engine {
+		THREADED, NIO
+	}
+	
+	private final Engine engine; 
+	private NioServerEngine nioEngine = null; 
+	
 	/**
 	 * Constructor. 
 	 * 
@@ -61,17 +94,60 @@ public class Server extends NanoHTTPD {
 	 * @param Globals globals
 	 */
 	public Server(Globals g) {
+		this(g, Engine.THREADED);
+	}
+	
+	/**
+	 * Constructor. 
+	 * 
+	 * Constructs the Server on the given connection handling engine. 
+	 * 
+	 * @param Globals globals
+	 * @param Engine engine
+	 */
+	public Server(Globals g, Engine engine) {
 		super(PORT);
 		this.g = g;
+		this.engine = engine; 
+		PooledAsyncRunner runner = new PooledAsyncRunner(REQUEST_WORKERS, REQUEST_QUEUE_SIZE, 
+				STREAMING_WORKERS, STREAMING_QUEUE_SIZE);
+		runner.setRetryAfterSeconds(RETRY_AFTER_SECONDS);
+		setAsyncRunner(runner);
 	}
 	
 	public void start() throws IOException {
-		super.start();
-		int port = this.getListeningPort();
+		int port; 
+		if (engine == Engine.NIO) {
+			nioEngine = new NioServerEngine(this, PORT); 
+			nioEngine.start(); 
+			port = nioEngine.getListeningPort(); 
+		} else {
+			super.start();
+			port = this.getListeningPort();
+		}
 		g.setServerPort(port);
 		System.out.println("Server booting on port..." + port);
 	}
 	
+	public void stop() {
+		if (nioEngine != null) {
+			nioEngine.stop(); 
+			nioEngine = null; 
+		} else {
+			super.stop(); 
+		}
+	}
+	
+	/**
+	 * Serves song streams on their own worker lane, so that 
+	 * long-running audio transfers can't hold up the short 
+	 * library and jam API requests. 
+	 */
+	@Override
+	protected boolean useStreamingLane(IHTTPSession session) {
+		return session.getUri().startsWith(GET_SONG);
+	}
+	
 	/**
 	 * Returns a BAD_REQUEST HTTP response.
 	 * 
@@ -127,6 +203,9 @@ public class Server extends NanoHTTPD {
     	else if (Method.POST.equals(method)) {
     		return postResponse(session);
     	}    	
+    	else if (Method.HEAD.equals(method) && session.getUri().startsWith(GET_SONG)) {
+    		return getSong(session, session.getUri().substring(GET_SONG.length())); 
+    	}
     	else {
     		return badRequestResponse();
     	}
@@ -152,16 +231,19 @@ public class Server extends NanoHTTPD {
     		return rejectJoinJamResponse(headers.get(HTTP_CLIENT_IP)); 
     	}
     	else if (uri.startsWith(GET_LOCAL_LIBRARY)) { 
-    		return getLocalLibraryResponse(headers.get(HTTP_CLIENT_IP));
+    		return getLocalLibraryResponse(headers.get(HTTP_CLIENT_IP), WireCodec.accepts(headers.get("accept")));
     	} 
     	else if (uri.startsWith(GET_ALBUM_ART)) {
     		return getAlbumArtResponse(); 
     	}
+    	else if (uri.startsWith(GET_ART)) {
+    		return getArtResponse(headers, uri.substring(GET_ART.length())); 
+    	}
     	else if (uri.startsWith(GET_JAM)) {
-    		return getJamResponse(); 
+    		return getJamResponse(parameters); 
     	} 
     	else if (uri.startsWith(GET_SONG)) {
-    		return getSong(uri.substring(GET_SONG.length()));  
+    		return getSong(session, uri.substring(GET_SONG.length()));  
     	} 
     	else if (uri.startsWith(EDIT_JAM)) {
     		return editJamResponse(headers.get(HTTP_CLIENT_IP), uri.substring(EDIT_JAM.length()), parameters); 
@@ -271,13 +353,15 @@ public class Server extends NanoHTTPD {
 	 */
     private Response editJamResponse(final String otherIpAddr, final String path, Map<String, String> parameters) {
     	if (path.startsWith(JAM_ADD_SONG)) {
-    		return jamAddSongResponse(otherIpAddr, parameters.get("songId"), parameters.get("addedBy"), parameters.get("jamSongId")); 
+    		return jamAddSongResponse(otherIpAddr, parameters.get("songId"), parameters.get("addedBy"), parameters.get("jamSongId"), 
+    				parameters.get("position"), parameters.get("stamp")); 
     	} 
     	else if (path.startsWith(JAM_SET_SONG)) {
     		return jamSetSongResponse(otherIpAddr, parameters.get("jamSongId")); 
     	} 
     	else if (path.startsWith(JAM_MOVE_SONG)) {
-    		return jamMoveSongResponse(otherIpAddr, parameters.get("jamSongId"), parameters.get("to")); 
+    		return jamMoveSongResponse(otherIpAddr, parameters.get("jamSongId"), parameters.get("to"), 
+    				parameters.get("position"), parameters.get("stamp")); 
     	}
     	else if (path.startsWith(JAM_REMOVE_SONG)) {
     		return jamRemoveSongResponse(otherIpAddr, parameters.get("jamSongId")); 
@@ -296,7 +380,8 @@ public class Server extends NanoHTTPD {
     
     /**
      * Parses, loads, and responds to a POST request containing new 
-     * music library metadata from a remote phone as JSON. 
+     * music library metadata from a remote phone, as JSON or 
+     * in the binary wire format. 
      * 
 	 * @param IHTTPSession session
 	 * @returns Response response
@@ -306,6 +391,21 @@ public class Server extends NanoHTTPD {
     	try {
 			session.parseBody(files);
 			
+			if (WireCodec.isBinary(session.getHeaders().get("content-type"))) {
+				InputStream is = new BufferedInputStream(new FileInputStream(files.get("content"))); 
+				try {
+					WireCodec.Reader reader = new WireCodec.Reader(is); 
+					String username = reader.readString(); 
+					String ip = reader.readString(); 
+					reader.readInt(); 	// port
+					g.db.loadMusicFromBinary(reader); 
+					g.jam.setIPUsername(ip, username); 
+				} finally {
+					is.close(); 
+				}
+				return new NanoHTTPD.Response("Updated library"); 
+			}
+			
   			JSONObject jsonLibrary = new JSONObject(files.get("postData")); 
   			JSONArray artists = jsonLibrary.getJSONArray("artists"); 
   			g.db.loadMusicFromJSON(artists); 
@@ -344,7 +444,8 @@ public class Server extends NanoHTTPD {
     
     /**
      * Parses, loads, and responds to a POST request containing new 
-     * shared jam metadata from a remote phone as JSON. 
+     * shared jam metadata from a remote phone as JSON: either 
+     * a batch of jam operations, or a whole jam. 
      * Only non-master Client phones should receive /jam/update requests, 
      * i.e. Clients should never overwrite the master phone's canonical
      * jam state. 
@@ -364,7 +465,11 @@ public class Server extends NanoHTTPD {
 	  			
 	  			g.jamLock.lock(); 
 	  			try {
-	  				g.jam.loadJamFromJSON(jsonJam);
+	  				if (jsonJam.has("ops")) {
+	  					g.jam.applyOps(jsonJam.getJSONArray("ops")); 
+	  				} else {
+	  					g.jam.loadJamFromJSON(jsonJam);
+	  				}
 	  			} finally {
 	  				g.jamLock.unlock(); 
 	  			}
@@ -377,7 +482,8 @@ public class Server extends NanoHTTPD {
     }
 
     /**
-     * Adds the requested song to the jam, 
+     * Adds the requested song to the jam, at the position the 
+     * requesting Client gave it (or else at the end), 
      * and rebroadcasts the new jam state to all Clients. 
      * Only the master phone of the jam should receive /jam/add requests. 
      * 
@@ -385,30 +491,36 @@ public class Server extends NanoHTTPD {
 	 * @param String songId
 	 * @param String addedBy
 	 * @param String jamSongId
+	 * @param String position, or null
+	 * @param String stamp, or null
 	 * @returns Response response
 	 */
-	private synchronized Response jamAddSongResponse(String otherIpAddr, String songId, String addedBy, String jamSongId) {
+	private synchronized Response jamAddSongResponse(String otherIpAddr, String songId, String addedBy, String jamSongId, 
+			String position, String stamp) {
 		if (g.jam.checkMaster()) {
 			Song song = g.db.getSongByHash(songId);
 			if (song == null) 
 				return fileNotFoundResponse();
 			
 			song.setAddedBy(addedBy);
-			JSONObject jsonJam = new JSONObject(); 
 			g.jamLock.lock(); 			
 			try {
-				g.jam.addSongWithTimestamp(song, jamSongId);
+				if (position != null && position.length() > 0) {
+					song.setJamID(jamSongId); 
+					g.jam.mergeAdd(song, position, VersionStamp.parse(stamp)); 
+				} else {
+					g.jam.addSongWithTimestamp(song, jamSongId);
+				}
 				
 				if (!g.jam.hasCurrentSong()) {
 					g.jam.setCurrentSong(jamSongId);
 					g.jam.playCurrentSong(); 
 				}
 				g.sendUIMessage(7); 
-				jsonJam = g.jam.toJSON(); 
 			} finally {
 				g.jamLock.unlock(); 
 			}
-			g.jam.broadcastJamUpdate(jsonJam); 
+			g.jam.broadcastJamUpdate(); 
 			return new NanoHTTPD.Response("Added song to jam");
 		}
 		else {
@@ -428,7 +540,6 @@ public class Server extends NanoHTTPD {
 	private synchronized Response jamSetSongResponse(String otherIpAddr, String jamSongId) {
 		if (g.jam.checkMaster()) {
 			
-			JSONObject jsonJam = new JSONObject(); 
 			g.jamLock.lock(); 
 			try {
 				g.jam.setCurrentSong(jamSongId);
@@ -436,11 +547,10 @@ public class Server extends NanoHTTPD {
 				
 				g.sendUIMessage(7); 
 				
-				jsonJam = g.jam.toJSON(); 
 			} finally {
 				g.jamLock.unlock(); 
 			}
-			g.jam.broadcastJamUpdate(jsonJam); 
+			g.jam.broadcastJamUpdate(); 
 			return new NanoHTTPD.Response("Set new currently playing song");
 		} 
 		else {
@@ -449,28 +559,35 @@ public class Server extends NanoHTTPD {
 	}
 	
     /**
-     * Moves the requested song to a new index in the jam, 
+     * Moves the requested song to the position the requesting 
+     * Client gave it (or else to the given index) in the jam, 
      * and rebroadcasts the new jam state to all Clients. 
      * Only the master phone of the jam should receive /jam/move requests. 
      * 
 	 * @param String otherIpAddress
 	 * @param String jamSongId
+	 * @param String to
+	 * @param String position, or null
+	 * @param String stamp, or null
 	 * @returns Response response
 	 */
-	private synchronized Response jamMoveSongResponse(String otherIpAddr, String jamSongId, String to) {
+	private synchronized Response jamMoveSongResponse(String otherIpAddr, String jamSongId, String to, 
+			String position, String stamp) {
 		if (g.jam.checkMaster()) {
-			JSONObject jsonJam = new JSONObject(); 
 			g.jamLock.lock(); 
 			try {
-				g.jam.changeSongIndexInJam(jamSongId, Integer.parseInt(to));
+				if (position != null && position.length() > 0) {
+					g.jam.mergeMove(jamSongId, position, VersionStamp.parse(stamp)); 
+				} else {
+					g.jam.changeSongIndexInJam(jamSongId, Integer.parseInt(to));
+				}
 				
 				g.sendUIMessage(7); 
 				
-				jsonJam = g.jam.toJSON(); 
 			} finally {
 				g.jamLock.unlock(); 	
 			}
-			g.jam.broadcastJamUpdate(jsonJam); 
+			g.jam.broadcastJamUpdate(); 
 			return new NanoHTTPD.Response("Moved song index in Jam"); 
 		}
 		else {
@@ -489,16 +606,14 @@ public class Server extends NanoHTTPD {
 	 */
 	private synchronized Response jamRemoveSongResponse(String otherIpAddr, String jamSongID) {
 		if (g.jam.checkMaster()) {
-			JSONObject jsonJam = new JSONObject(); 
 			g.jamLock.lock(); 
 			try {
 				g.jam.removeSong(jamSongID); 
 				g.sendUIMessage(7);
-				jsonJam = g.jam.toJSON(); 
 			} finally {	
 				g.jamLock.unlock(); 
 			}
-			g.jam.broadcastJamUpdate(jsonJam);
+			g.jam.broadcastJamUpdate();
 			return new NanoHTTPD.Response("Removed song from Jam"); 
 		} 
 		else {
@@ -546,28 +661,213 @@ public class Server extends NanoHTTPD {
      * Returns an OK HTTP response for the path with an audio/mpeg body, 
      * if the given path corresponds to a media file. 
      * 
+     * Honors single byte ranges ("Range: bytes=start-end", "start-" 
+     * and "-suffix") with a PARTIAL_CONTENT response, so that seeking 
+     * in a remote song only transfers the bytes that are needed. 
+     * A Range is ignored when an If-Range validator no longer matches 
+     * the file (the quoted ETag or Last-Modified date), or when its 
+     * last byte comes before its first, and the whole song is sent. 
+     * Multiple ranges and ranges past the end of the file are 
+     * rejected with RANGE_NOT_SATISFIABLE. 
+     * 
+     * @param IHTTPSession session
      * @param String path
      * @returns Response response
      */
-    private Response getSong(final String path) {
-        FileInputStream fis = null;
+    private Response getSong(IHTTPSession session, final String path) {
+    	File file = new File(path); 
+    	if (!file.isFile()) {
+    		return fileNotFoundResponse(); 
+    	}
+    	
+    	long fileLen = file.length(); 
+    	String etag = "\"" + Integer.toHexString((file.getAbsolutePath() + file.lastModified() + "" + fileLen).hashCode()) + "\"";
+    	String lastModified = httpDate(file.lastModified()); 
+    	
+    	Map<String, String> headers = session.getHeaders();
+    	String range = headers.get("range"); 
+    	String ifRange = headers.get("if-range"); 
+    	if (range != null && ifRange != null 
+    			&& !ifRange.equals(etag) && !ifRange.equals(lastModified)) {
+    		range = null; 
+    	}
+    	
+    	long startFrom = 0; 
+    	long endAt = fileLen - 1; 
+    	if (range != null) {
+    		range = range.trim(); 
+    		if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+    			return rangeNotSatisfiableResponse(fileLen, etag); 
+    		}
+    		String spec = range.substring("bytes=".length()).trim(); 
+    		int minus = spec.indexOf('-'); 
+    		boolean inverted = false; 
+    		try {
+    			if (minus < 0) {
+    				return rangeNotSatisfiableResponse(fileLen, etag); 
+    			} else if (minus == 0) {
+    				long suffix = Long.parseLong(spec.substring(1).trim()); 
+    				if (suffix <= 0) {
+    					return rangeNotSatisfiableResponse(fileLen, etag); 
+    				}
+    				startFrom = Math.max(0, fileLen - suffix); 
+    			} else {
+    				startFrom = Long.parseLong(spec.substring(0, minus).trim()); 
+    				String end = spec.substring(minus + 1).trim(); 
+    				if (end.length() > 0) {
+    					long last = Long.parseLong(end); 
+    					inverted = last < startFrom; 
+    					endAt = Math.min(endAt, last); 
+    				}
+    			}
+    		} catch (NumberFormatException e) {
+    			return rangeNotSatisfiableResponse(fileLen, etag); 
+    		}
+    		if (inverted) {
+    			// An invalid range, such as bytes=500-100, is ignored
+    			range = null; 
+    			startFrom = 0; 
+    			endAt = fileLen - 1; 
+    		} else if (startFrom >= fileLen) {
+    			return rangeNotSatisfiableResponse(fileLen, etag); 
+    		}
+    	}
+    	
+    	long dataLen = endAt - startFrom + 1; 
+        Response response; 
         try {
-        	fis = new FileInputStream(path);
-        } catch (FileNotFoundException e) {
+        	if (range != null) {
+        		response = new NanoHTTPD.FileResponse(Status.PARTIAL_CONTENT, "audio/mpeg", file, startFrom, dataLen);
+        		response.addHeader("Content-Range", "bytes " + startFrom + "-" + endAt + "/" + fileLen); 
+        	} else {
+        		response = new NanoHTTPD.FileResponse(Status.OK, "audio/mpeg", file, 0, dataLen);
+        	}
+        } catch (IOException e) {
             e.printStackTrace();
             return fileNotFoundResponse();
         }
-        return new NanoHTTPD.Response(Status.OK, "audio/mpeg", fis);
+        response.addHeader("Accept-Ranges", "bytes"); 
+        response.addHeader("Content-Length", "" + dataLen); 
+        response.addHeader("ETag", etag); 
+        response.addHeader("Last-Modified", lastModified); 
+        return response; 
 	}
+    
+    /**
+     * Returns the album art with the given content hash as raw 
+     * image bytes. Art never changes under its hash, so the 
+     * response may be cached for good, and a request revalidating 
+     * it with If-None-Match gets an empty NOT_MODIFIED response. 
+     * 
+     * @param Map<String, String> headers
+     * @param String artHash
+     * @returns Response response
+     */
+    private Response getArtResponse(Map<String, String> headers, String artHash) {
+    	if (!ArtStore.isArtHash(artHash)) {
+    		return badRequestResponse(); 
+    	}
+    	String etag = "\"" + artHash + "\""; 
+    	String ifNoneMatch = headers.get("if-none-match"); 
+    	if (ifNoneMatch != null && matchesETag(ifNoneMatch, artHash)) {
+    		Response response = new NanoHTTPD.Response(Status.NOT_MODIFIED, null, (InputStream) null); 
+    		response.addHeader("ETag", etag); 
+    		return response; 
+    	}
+    	
+    	String path = g.db.getArtPathByArtHash(artHash); 
+    	if (path == null || !new File(path).isFile()) {
+    		path = g.artStore.getPath(artHash); 
+    	}
+    	if (path == null) {
+    		return fileNotFoundResponse(); 
+    	}
+    	
+    	File file = new File(path); 
+    	String mimeType = path.toLowerCase(Locale.US).endsWith(".png") ? "image/png" : "image/jpeg"; 
+    	Response response; 
+    	try {
+    		response = new NanoHTTPD.FileResponse(Status.OK, mimeType, file, 0, file.length()); 
+    	} catch (IOException e) {
+    		e.printStackTrace(); 
+    		return fileNotFoundResponse(); 
+    	}
+    	response.addHeader("Content-Length", "" + file.length()); 
+    	response.addHeader("ETag", etag); 
+    	response.addHeader("Cache-Control", "public, max-age=31536000, immutable"); 
+    	return response; 
+    }
+    
+    /**
+     * Returns true if an If-None-Match header names the given 
+     * entity tag, or is "*". The header is a comma-separated list 
+     * of quoted tags, each of which may carry a W/ weak prefix. 
+     * 
+     * @param String ifNoneMatch
+     * @param String tag
+     * @returns boolean matches
+     */
+    private static boolean matchesETag(String ifNoneMatch, String tag) {
+    	for (String candidate : ifNoneMatch.split(",")) {
+    		candidate = candidate.trim(); 
+    		if (candidate.equals("*")) {
+    			return true; 
+    		}
+    		if (candidate.startsWith("W/")) {
+    			candidate = candidate.substring(2); 
+    		}
+    		if (candidate.length() >= 2 && candidate.startsWith("\"") && candidate.endsWith("\"")) {
+    			candidate = candidate.substring(1, candidate.length() - 1); 
+    		}
+    		if (candidate.equals(tag)) {
+    			return true; 
+    		}
+    	}
+    	return false; 
+    }
+    
+    /**
+     * Returns a RANGE_NOT_SATISFIABLE HTTP response for a song 
+     * of the given length. 
+     * 
+     * @param long fileLen
+     * @param String etag
+     * @returns Response response
+     */
+    private Response rangeNotSatisfiableResponse(long fileLen, String etag) {
+    	Response response = new NanoHTTPD.Response(Status.RANGE_NOT_SATISFIABLE, 
+    			NanoHTTPD.MIME_PLAINTEXT, "");
+    	response.addHeader("Content-Range", "bytes */" + fileLen); 
+    	response.addHeader("Accept-Ranges", "bytes"); 
+    	response.addHeader("ETag", etag); 
+    	return response; 
+    }
+    
+    /**
+     * Formats the given time as an HTTP date, e.g. for Last-Modified. 
+     * 
+     * @param long time
+     * @returns String httpDate
+     */
+    private String httpDate(long time) {
+    	SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+    	gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+    	return gmtFrmt.format(new Date(time)); 
+    }
 
     /**
-     * Returns an OK HTTP response with a JSON body containing
-     * this phone's music library metadata as JSON. 
+     * Returns an OK HTTP response with a body containing
+     * this phone's music library metadata, in the binary wire 
+     * format if the requester accepts it, or else as JSON. 
+     * 
+     * The body is written straight from the database cursor 
+     * as it is sent, so memory use doesn't grow with the library. 
      * 
      * @param String clientIpAddress
-     * @returns Response jsonMusicLibraryResponse
+     * @param boolean binary
+     * @returns Response musicLibraryResponse
      */
-	private Response getLocalLibraryResponse(String clientIpAddr) {
+	private Response getLocalLibraryResponse(String clientIpAddr, boolean binary) {
 		
 		// declare client as active now
 		Set<Client> clientSet = g.jam.getClientSet();
@@ -577,20 +877,74 @@ public class Server extends NanoHTTPD {
 			}
 		}
 		
-		JSONObject jsonLibrary = g.db.getLibraryAsJSON();
-		
-		try {
-			jsonLibrary.put("username", g.getUsername()); 
-			jsonLibrary.put("ip", g.getIpAddr()); 
-			jsonLibrary.put("port", g.getServerPort());
-			jsonLibrary.put("jam", g.jam.toJSON()); 
-		} catch (JSONException e) {
-			e.printStackTrace();
+		if (binary) {
+			return new NanoHTTPD.StreamingResponse(Status.OK, WireCodec.VERSIONED_CONTENT_TYPE) {
+				@Override
+				protected void writeBody(OutputStream out) throws IOException {
+					WireCodec.Writer writer = new WireCodec.Writer(new BufferedOutputStream(out), WireCodec.MESSAGE_LIBRARY); 
+					writer.writeString(g.getUsername()); 
+					writer.writeString(g.getIpAddr()); 
+					writer.writeVarint(g.getServerPort()); 
+					g.db.writeLibraryAsBinary(writer); 
+					writer.writeValue(g.jam.toJSON()); 
+					writer.flush(); 
+				}
+			}; 
 		}
 		
-		ByteArrayInputStream is = new ByteArrayInputStream(jsonLibrary.toString().getBytes());
-		Response response = new Response(Status.OK, "application/json", is);
-		return response;
+		return new NanoHTTPD.StreamingResponse(Status.OK, "application/json") {
+			@Override
+			protected void writeBody(OutputStream out) throws IOException {
+				JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, "UTF-8")));
+				writer.beginObject(); 
+				writer.name("username").value(g.getUsername()); 
+				writer.name("ip").value(g.getIpAddr()); 
+				writer.name("port").value(g.getServerPort()); 
+				writer.name("artists"); 
+				g.db.writeLibraryAsJSON(writer); 
+				writer.name("jam"); 
+				writeJSON(writer, g.jam.toJSON()); 
+				writer.endObject(); 
+				writer.flush(); 
+			}
+		}; 
+	}
+	
+	/**
+	 * Writes an org.json value (JSONObject, JSONArray, String, 
+	 * number, boolean or null) to the given JsonWriter. 
+	 * 
+	 * @param JsonWriter writer
+	 * @param Object value
+	 * @throws IOException
+	 */
+	private static void writeJSON(JsonWriter writer, Object value) throws IOException {
+		if (value == null || value == JSONObject.NULL) {
+			writer.nullValue(); 
+		} else if (value instanceof JSONObject) {
+			JSONObject object = (JSONObject) value; 
+			writer.beginObject(); 
+			Iterator<?> keys = object.keys(); 
+			while (keys.hasNext()) {
+				String key = (String) keys.next(); 
+				writer.name(key); 
+				writeJSON(writer, object.opt(key)); 
+			}
+			writer.endObject(); 
+		} else if (value instanceof JSONArray) {
+			JSONArray array = (JSONArray) value; 
+			writer.beginArray(); 
+			for (int i = 0; i < array.length(); i++) {
+				writeJSON(writer, array.opt(i)); 
+			}
+			writer.endArray(); 
+		} else if (value instanceof Boolean) {
+			writer.value((Boolean) value); 
+		} else if (value instanceof Number) {
+			writer.value((Number) value); 
+		} else {
+			writer.value(value.toString()); 
+		}
 	}
 	
     /**
@@ -607,13 +961,31 @@ public class Server extends NanoHTTPD {
 		return response;
 	}
 	
-	private Response getJamResponse() {
+	/**
+	 * Returns an OK HTTP response with a JSON body containing 
+	 * the jam. With a "since" parameter, the body instead holds 
+	 * the jam operations after that sequence number, or a 
+	 * snapshot operation if they are no longer logged. 
+	 * 
+	 * @param Map<String, String> parameters
+	 * @returns Response jsonJamResponse
+	 */
+	private Response getJamResponse(Map<String, String> parameters) {
 		JSONObject jsonJam = new JSONObject(); 
-		try {
-			jsonJam.put("jam", g.jam.toJSON());
-		} catch (JSONException e) {
-			e.printStackTrace();
-		} 
+		String since = parameters.get("since"); 
+		if (since != null) {
+			try {
+				jsonJam = g.jam.getUpdateSince(Long.parseLong(since)); 
+			} catch (NumberFormatException e) {
+				return badRequestResponse(); 
+			}
+		} else {
+			try {
+				jsonJam.put("jam", g.jam.toJSON());
+			} catch (JSONException e) {
+				e.printStackTrace();
+			} 
+		}
 		ByteArrayInputStream is = new ByteArrayInputStream(jsonJam.toString().getBytes());
 		Response response = new Response(Status.OK, "application/json", is);
 		return response;
@@ -628,7 +1000,7 @@ public class Server extends NanoHTTPD {
 	 */
     private Response removeUserFromJamResponse(Map<String, String> parameters) {
     	String ipAddr = parameters.get("ip");
-    	g.db.deleteJamSongsFromIp(ipAddr);
+    	g.jam.removeSongsFromIp(ipAddr);
     	System.out.println("Songs removed: " + g.db.deleteSongsFromIp(ipAddr));
     	g.sendUIMessage(0); 
 		return new NanoHTTPD.Response("OK");
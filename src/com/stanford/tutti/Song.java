@@ -27,6 +27,9 @@ public class Song {
 	/* Path to the album art for the song, if any */
 	private String albumArt = ""; 
 	
+	/* Content hash of the album art for the song, if any (see ArtStore) */
+	private String artHash = null; 
+	
 	/* IP address for the phone containing the song. */
 	private String ipAddr = "";
 	
@@ -42,6 +45,9 @@ public class Song {
 	/* The ID (i.e. timestamp) if this song within the Jam, if any */
 	private String jamID = ""; 
 	
+	/* The sortable position key of this song within the Jam, if any */
+	private String jamPosition = ""; 
+	
 	
 	/**
 	 * Constructor
@@ -136,6 +142,25 @@ public class Song {
 		return albumArt; 
 	}
 	
+	/**
+	 * Sets the content hash of the album art for this song. 
+	 * 
+	 * @param String artHash
+	 */
+	public void setArtHash(String artHash) {
+		this.artHash = artHash; 
+	}
+	
+	/**
+	 * Gets the content hash of the album art for this song, 
+	 * or null if it has none. 
+	 * 
+	 * @return String artHash
+	 */
+	public String getArtHash() {
+		return artHash; 
+	}
+	
 	/**
 	 * Sets the ip address for this song. 
 	 * 
@@ -226,6 +251,25 @@ public class Song {
 		this.jamID = jamID; 
 	}
 	
+	/**
+	 * Gets the position key for this song in the jam (if any). 
+	 * Songs in the jam sort by their position keys. 
+	 * 
+	 * @return String jamPosition
+	 */
+	public String getJamPosition() {
+		return jamPosition; 
+	}
+	
+	/**
+	 * Sets the position key for this song in the jam. 
+	 * 
+	 * @param String jamPosition
+	 */
+	public void setJamPosition(String jamPosition) {
+		this.jamPosition = jamPosition; 
+	}
+	
 	/**
 	 * Returns an integer hashCode, formed by 
 	 * concatenating the artist, album, and title of the song. 
@@ -292,6 +336,8 @@ public class Song {
 			song.put("port", port);
 			song.put("addedBy", addedBy);
 			song.put("jamID", jamID); 
+			song.put("position", jamPosition); 
+			song.put("artHash", artHash); 
 		} catch (JSONException e) {
 			e.printStackTrace();
 		} 
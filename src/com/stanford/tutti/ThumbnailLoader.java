@@ -0,0 +1,265 @@
+package com.stanford.tutti;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+/**
+ * Loads album art thumbnails into list rows off the UI thread.
+ *
+ * Art is decoded with inSampleSize to about the size of the list's
+ * art views, and both list sizes (image_dimen_small and
+ * image_dimen_large) are made from the one decode and saved to a disk
+ * cache, so each art file is only decoded at full size once.
+ * Thumbnails are kept in memory in an LRU cache sized to a fraction
+ * of the heap. A load is cancelled when its row is recycled to show
+ * other art, so fast scrolling doesn't queue up stale decodes.
+ *
+ * All public methods must be called on the UI thread.
+ */
+public class ThumbnailLoader {
+
+	// Fraction of the heap to use for cached thumbnails
+	private static final int MEMORY_CACHE_DIVISOR = 8;
+
+	private static final int DECODE_THREADS = 2;
+
+	private static final int DISK_CACHE_QUALITY = 90;
+
+	private static final String DISK_CACHE_DIR = "thumbnails";
+
+	private int smallSize;
+	private int largeSize;
+	private File diskCacheDir;
+	private LruCache<String, Bitmap> memoryCache;
+	private ExecutorService decodeExecutor;
+	private Handler mainHandler;
+	private WeakHashMap<ImageView, Request> requests;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param Globals g
+	 */
+	public ThumbnailLoader(Globals g) {
+		this.smallSize = (int) g.getResources().getDimension(R.dimen.image_dimen_small);
+		this.largeSize = (int) g.getResources().getDimension(R.dimen.image_dimen_large);
+		this.diskCacheDir = new File(g.getCacheDir(), DISK_CACHE_DIR);
+		this.decodeExecutor = Executors.newFixedThreadPool(DECODE_THREADS);
+		this.mainHandler = new Handler(Looper.getMainLooper());
+		this.requests = new WeakHashMap<ImageView, Request>();
+
+		int cacheSize = (int) (Runtime.getRuntime().maxMemory() / MEMORY_CACHE_DIVISOR);
+		this.memoryCache = new LruCache<String, Bitmap>(cacheSize) {
+			@Override
+			protected int sizeOf(String key, Bitmap bitmap) {
+				return bitmap.getByteCount();
+			}
+		};
+	}
+
+	/**
+	 * Shows the art at the given path in the view, at the
+	 * large list size or the small one. The placeholder is
+	 * shown until the thumbnail is ready, or if there is no art.
+	 *
+	 * @param ImageView view
+	 * @param String artPath, or null
+	 * @param boolean large
+	 * @param int placeholderID
+	 */
+	public void load(ImageView view, String artPath, boolean large, int placeholderID) {
+		int size = large ? largeSize : smallSize;
+		String key = artPath + "@" + size;
+
+		Request pending = requests.get(view);
+		if (pending != null) {
+			if (pending.key.equals(key)) {
+				return;
+			}
+			pending.future.cancel(true);
+			requests.remove(view);
+		}
+
+		if (artPath == null || artPath.equals("")) {
+			view.setImageResource(placeholderID);
+			return;
+		}
+
+		Bitmap bitmap = memoryCache.get(key);
+		if (bitmap != null) {
+			view.setImageBitmap(bitmap);
+			return;
+		}
+
+		view.setImageResource(placeholderID);
+		Request request = new Request(view, artPath, size, key);
+		request.future = decodeExecutor.submit(request);
+		requests.put(view, request);
+	}
+
+	/**
+	 * Drops all thumbnails held in memory.
+	 */
+	public void clearMemory() {
+		memoryCache.evictAll();
+	}
+
+	/**
+	 * Loads one thumbnail on a decode thread, then
+	 * shows it if its view still wants it.
+	 *
+	 * The view is only weakly referenced, as the request is
+	 * the value of its own entry in the requests map.
+	 */
+	private class Request implements Runnable {
+		private final WeakReference<ImageView> viewRef;
+		private final String artPath;
+		private final int size;
+		private final String key;
+		private Future<?> future;
+
+		private Request(ImageView view, String artPath, int size, String key) {
+			this.viewRef = new WeakReference<ImageView>(view);
+			this.artPath = artPath;
+			this.size = size;
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+			Bitmap loaded = null;
+			try {
+				loaded = loadThumbnail(artPath, size);
+			} finally {
+				// Always drop the request, even if the art couldn't be 
+				// loaded, so that a later load() of the view can retry
+				final Bitmap bitmap = Thread.currentThread().isInterrupted() ? null : loaded;
+				mainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (bitmap != null) {
+							memoryCache.put(key, bitmap);
+						}
+						ImageView view = viewRef.get();
+						if (view != null && requests.get(view) == Request.this) {
+							requests.remove(view);
+							if (bitmap != null) {
+								view.setImageBitmap(bitmap);
+							}
+						}
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Returns the thumbnail of the given size for the art, from the
+	 * disk cache if it has one. Otherwise decodes the art once,
+	 * subsampled, and saves thumbnails at both list sizes.
+	 * Runs on a decode thread.
+	 */
+	private Bitmap loadThumbnail(String artPath, int size) {
+		File cached = diskCacheFile(artPath, size);
+		if (cached.exists()) {
+			Bitmap bitmap = BitmapFactory.decodeFile(cached.getAbsolutePath());
+			if (bitmap != null) {
+				return bitmap;
+			}
+		}
+
+		Bitmap source = decodeSampled(artPath, largeSize);
+		if (source == null || Thread.currentThread().isInterrupted()) {
+			return null;
+		}
+		Bitmap large = scaleToFit(source, largeSize);
+		Bitmap small = scaleToFit(large, smallSize);
+		if (source != large) {
+			source.recycle();
+		}
+		saveThumbnail(large, diskCacheFile(artPath, largeSize));
+		saveThumbnail(small, diskCacheFile(artPath, smallSize));
+		return size == largeSize ? large : small;
+	}
+
+	/**
+	 * Decodes the art with the largest power-of-two inSampleSize
+	 * that keeps both sides at least the given size.
+	 */
+	private static Bitmap decodeSampled(String artPath, int size) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(artPath, options);
+		if (options.outWidth <= 0 || options.outHeight <= 0) {
+			return null;
+		}
+
+		int sampleSize = 1;
+		while (options.outWidth / (sampleSize * 2) >= size
+				&& options.outHeight / (sampleSize * 2) >= size) {
+			sampleSize *= 2;
+		}
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = sampleSize;
+		return BitmapFactory.decodeFile(artPath, options);
+	}
+
+	/**
+	 * Scales the bitmap down so that its longer side is the given
+	 * size, or returns it as is if it is already small enough.
+	 */
+	private static Bitmap scaleToFit(Bitmap bitmap, int size) {
+		int longSide = Math.max(bitmap.getWidth(), bitmap.getHeight());
+		if (longSide <= size) {
+			return bitmap;
+		}
+		int width = Math.max(1, bitmap.getWidth() * size / longSide);
+		int height = Math.max(1, bitmap.getHeight() * size / longSide);
+		return Bitmap.createScaledBitmap(bitmap, width, height, true);
+	}
+
+	private File diskCacheFile(String artPath, int size) {
+		String name = ArtStore.hashBytes((artPath + "@" + new File(artPath).lastModified()).getBytes());
+		return new File(diskCacheDir, name + "_" + size + ".jpg");
+	}
+
+	private static void saveThumbnail(Bitmap bitmap, File file) {
+		file.getParentFile().mkdirs();
+		// Both sizes of the same art can be saved on two decode threads at once
+		File temp = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(temp);
+			bitmap.compress(Bitmap.CompressFormat.JPEG, DISK_CACHE_QUALITY, out);
+			out.close();
+			out = null;
+			if (!temp.renameTo(file)) {
+				temp.delete();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			temp.delete();
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
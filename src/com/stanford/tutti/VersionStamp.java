@@ -0,0 +1,90 @@
+package com.stanford.tutti;
+
+/**
+ * A Lamport timestamp paired with the ID of the phone that made it.
+ * Stamps are totally ordered, by clock and then by phone, so every
+ * phone in a jam picks the same winner between two concurrent edits
+ * of the same song, whatever order it receives them in.
+ */
+public class VersionStamp implements Comparable<VersionStamp> {
+
+	/* The stamp that every real stamp is newer than. */
+	public static final VersionStamp ZERO = new VersionStamp(0, "");
+
+	private final long clock;
+	private final String replica;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param long clock
+	 * @param String replica, the ID of the phone that made the stamp
+	 */
+	public VersionStamp(long clock, String replica) {
+		this.clock = clock;
+		this.replica = replica == null ? "" : replica;
+	}
+
+	/**
+	 * Returns the Lamport clock value of this stamp.
+	 *
+	 * @return long clock
+	 */
+	public long getClock() {
+		return clock;
+	}
+
+	/**
+	 * Parses a stamp written by toString(), or returns
+	 * ZERO if the string is missing or malformed.
+	 *
+	 * @param String stamp
+	 * @return VersionStamp stamp
+	 */
+	public static VersionStamp parse(String stamp) {
+		if (stamp == null) {
+			return ZERO;
+		}
+		int at = stamp.indexOf('@');
+		if (at < 0) {
+			return ZERO;
+		}
+		try {
+			return new VersionStamp(Long.parseLong(stamp.substring(0, at)), stamp.substring(at + 1));
+		} catch (NumberFormatException e) {
+			return ZERO;
+		}
+	}
+
+	@Override
+	public int compareTo(VersionStamp other) {
+		if (clock != other.clock) {
+			return clock < other.clock ? -1 : 1;
+		}
+		return replica.compareTo(other.replica);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof VersionStamp)) {
+			return false;
+		}
+		VersionStamp other = (VersionStamp) o;
+		return clock == other.clock && replica.equals(other.replica);
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (clock ^ (clock >>> 32)) * 31 + replica.hashCode();
+	}
+
+	/**
+	 * Returns the stamp as "clock@replica".
+	 *
+	 * @return String stamp
+	 */
+	@Override
+	public String toString() {
+		return clock + "@" + replica;
+	}
+}
@@ -0,0 +1,469 @@
+package com.stanford.tutti;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Compact binary wire format for syncing music libraries
+ * between phones, used in place of JSON when both ends support it.
+ *
+ * A message starts with a magic number, a format version and
+ * a message type. Integers are written as varints, and strings
+ * go through a per-message string table, so artist names, album
+ * titles and IP addresses that repeat from song to song are sent
+ * once and then referred to by index.
+ *
+ * Phones ask for the format with an Accept header, and label
+ * binary bodies with CONTENT_TYPE; anything else is JSON,
+ * so phones without the codec keep working as before.
+ * Both headers carry a "v" parameter with the newest version
+ * the phone can read. Phones from before version 2 leave it out,
+ * and are sent JSON, since their readers reject newer messages.
+ */
+public class WireCodec {
+
+	public static final String CONTENT_TYPE = "application/x-tutti-binary";
+
+	// Version 2 added the art hash to each song of a library message
+	public static final int VERSION = 2;
+
+	// CONTENT_TYPE with the version this codec writes and reads
+	public static final String VERSIONED_CONTENT_TYPE = CONTENT_TYPE + "; v=" + VERSION;
+
+	// Message types
+	public static final int MESSAGE_LIBRARY = 1;
+
+	private static final int MAGIC = 0x5475; 	// "Tu"
+
+	// Limits on lengths read from a message, which come from another phone
+	private static final int MAX_STRING_LENGTH = 64 * 1024;
+	private static final int MAX_VALUE_COUNT = 64 * 1024;
+	private static final int MAX_VALUE_DEPTH = 32;
+
+	// Strings are read in chunks of this size, so a false length can't allocate much
+	private static final int READ_CHUNK_SIZE = 4096;
+
+	// String tags; tags from STRING_REF on refer to the string table
+	private static final int STRING_NULL = 0;
+	private static final int STRING_NEW = 1;
+	private static final int STRING_REF = 2;
+
+	// Value tags for org.json values
+	private static final int VALUE_NULL = 0;
+	private static final int VALUE_FALSE = 1;
+	private static final int VALUE_TRUE = 2;
+	private static final int VALUE_LONG = 3;
+	private static final int VALUE_DOUBLE = 4;
+	private static final int VALUE_STRING = 5;
+	private static final int VALUE_ARRAY = 6;
+	private static final int VALUE_OBJECT = 7;
+
+	/**
+	 * Returns true if a request's Accept header lists
+	 * the binary wire format at a version that can read
+	 * the messages this codec writes.
+	 *
+	 * @param String accept
+	 * @returns boolean acceptsBinary
+	 */
+	public static boolean accepts(String accept) {
+		return version(accept) >= VERSION;
+	}
+
+	/**
+	 * Returns the version given with the binary wire format
+	 * in an Accept or Content-Type header: its "v" parameter,
+	 * 1 if it has none, or 0 if the header doesn't list the format.
+	 *
+	 * @param String header
+	 * @returns int version
+	 */
+	public static int version(String header) {
+		if (header == null) {
+			return 0;
+		}
+		int start = header.indexOf(CONTENT_TYPE);
+		if (start < 0) {
+			return 0;
+		}
+		int end = header.indexOf(',', start);
+		String params = header.substring(start + CONTENT_TYPE.length(), end < 0 ? header.length() : end);
+		for (String param : params.split(";")) {
+			param = param.trim();
+			if (param.startsWith("v=")) {
+				try {
+					return Integer.parseInt(param.substring(2).trim());
+				} catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+		}
+		return 1;
+	}
+
+	/**
+	 * Returns true if a Content-Type header
+	 * names the binary wire format.
+	 *
+	 * @param String contentType
+	 * @returns boolean isBinary
+	 */
+	public static boolean isBinary(String contentType) {
+		return contentType != null && contentType.trim().startsWith(CONTENT_TYPE);
+	}
+
+	/**
+	 * Writes one message in the binary wire format.
+	 * Not thread-safe; use one Writer per message.
+	 */
+	public static class Writer {
+		private OutputStream out;
+		private HashMap<String, Integer> strings = new HashMap<String, Integer>();
+		private byte[] buffer = new byte[10];
+
+		/**
+		 * Constructs a new Writer and writes the
+		 * message header for the given message type.
+		 *
+		 * @param OutputStream out, ideally buffered
+		 * @param int messageType
+		 * @throws IOException
+		 */
+		public Writer(OutputStream out, int messageType) throws IOException {
+			this.out = out;
+			writeVarint(MAGIC);
+			writeVarint(VERSION);
+			writeVarint(messageType);
+		}
+
+		/**
+		 * Writes a non-negative integer in 7-bit groups,
+		 * low bits first.
+		 *
+		 * @param long value
+		 * @throws IOException
+		 */
+		public void writeVarint(long value) throws IOException {
+			int length = 0;
+			while ((value & ~0x7FL) != 0) {
+				buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buffer[length++] = (byte) value;
+			out.write(buffer, 0, length);
+		}
+
+		/**
+		 * Writes a signed integer as a zigzag varint,
+		 * so small negative numbers stay short.
+		 *
+		 * @param long value
+		 * @throws IOException
+		 */
+		public void writeSignedVarint(long value) throws IOException {
+			writeVarint((value << 1) ^ (value >> 63));
+		}
+
+		/**
+		 * Writes a string, or null. A string already written in
+		 * this message is sent as its index in the string table.
+		 *
+		 * @param String value
+		 * @throws IOException
+		 */
+		public void writeString(String value) throws IOException {
+			if (value == null) {
+				writeVarint(STRING_NULL);
+				return;
+			}
+			Integer index = strings.get(value);
+			if (index != null) {
+				writeVarint(STRING_REF + index);
+				return;
+			}
+			strings.put(value, strings.size());
+			byte[] bytes = value.getBytes("UTF-8");
+			writeVarint(STRING_NEW);
+			writeVarint(bytes.length);
+			out.write(bytes);
+		}
+
+		/**
+		 * Writes an org.json value: a JSONObject, JSONArray,
+		 * String, number, boolean or null. Object keys go
+		 * through the string table like any other string.
+		 *
+		 * @param Object value
+		 * @throws IOException
+		 */
+		public void writeValue(Object value) throws IOException {
+			if (value == null || value == JSONObject.NULL) {
+				writeVarint(VALUE_NULL);
+			} else if (value instanceof Boolean) {
+				writeVarint((Boolean) value ? VALUE_TRUE : VALUE_FALSE);
+			} else if (value instanceof Integer || value instanceof Long
+					|| value instanceof Short || value instanceof Byte) {
+				writeVarint(VALUE_LONG);
+				writeSignedVarint(((Number) value).longValue());
+			} else if (value instanceof Number) {
+				writeVarint(VALUE_DOUBLE);
+				long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+				for (int i = 0; i < 8; i++) {
+					out.write((int) (bits >>> (i * 8)));
+				}
+			} else if (value instanceof JSONArray) {
+				JSONArray array = (JSONArray) value;
+				writeVarint(VALUE_ARRAY);
+				writeVarint(array.length());
+				for (int i = 0; i < array.length(); i++) {
+					writeValue(array.opt(i));
+				}
+			} else if (value instanceof JSONObject) {
+				JSONObject object = (JSONObject) value;
+				writeVarint(VALUE_OBJECT);
+				writeVarint(object.length());
+				Iterator<?> keys = object.keys();
+				while (keys.hasNext()) {
+					String key = (String) keys.next();
+					writeString(key);
+					writeValue(object.opt(key));
+				}
+			} else {
+				writeVarint(VALUE_STRING);
+				writeString(value.toString());
+			}
+		}
+
+		/**
+		 * Flushes the underlying stream.
+		 *
+		 * @throws IOException
+		 */
+		public void flush() throws IOException {
+			out.flush();
+		}
+	}
+
+	/**
+	 * Reads one message in the binary wire format.
+	 * Not thread-safe; use one Reader per message.
+	 */
+	public static class Reader {
+		private InputStream in;
+		private ArrayList<String> strings = new ArrayList<String>();
+		private int version;
+		private int messageType;
+
+		/**
+		 * Constructs a new Reader and reads the message header.
+		 *
+		 * @param InputStream in, ideally buffered
+		 * @throws IOException if the header is not a message
+		 * this version of the codec can read
+		 */
+		public Reader(InputStream in) throws IOException {
+			this.in = in;
+			if (readVarint() != MAGIC) {
+				throw new IOException("Not a binary wire format message");
+			}
+			long version = readVarint();
+			if (version < 1 || version > VERSION) {
+				throw new IOException("Unsupported wire format version: " + version);
+			}
+			this.version = (int) version;
+			messageType = (int) readVarint();
+		}
+
+		/**
+		 * Returns the format version from the header,
+		 * for reading messages from older phones.
+		 *
+		 * @returns int version
+		 */
+		public int getVersion() {
+			return version;
+		}
+
+		/**
+		 * Returns the message type from the header.
+		 *
+		 * @returns int messageType
+		 */
+		public int getMessageType() {
+			return messageType;
+		}
+
+		/**
+		 * Reads a non-negative varint.
+		 *
+		 * @returns long value
+		 * @throws IOException
+		 */
+		public long readVarint() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = in.read();
+				if (b < 0) {
+					throw new EOFException();
+				}
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IOException("Malformed varint");
+		}
+
+		/**
+		 * Reads a varint that fits in an int,
+		 * such as a count or a port.
+		 *
+		 * @returns int value
+		 * @throws IOException
+		 */
+		public int readInt() throws IOException {
+			long value = readVarint();
+			if (value > Integer.MAX_VALUE) {
+				throw new IOException("Value out of range: " + value);
+			}
+			return (int) value;
+		}
+
+		/**
+		 * Reads a zigzag-encoded signed varint.
+		 *
+		 * @returns long value
+		 * @throws IOException
+		 */
+		public long readSignedVarint() throws IOException {
+			long value = readVarint();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		/**
+		 * Reads a string, or null.
+		 *
+		 * @returns String value
+		 * @throws IOException
+		 */
+		public String readString() throws IOException {
+			int tag = readInt();
+			if (tag == STRING_NULL) {
+				return null;
+			}
+			if (tag >= STRING_REF) {
+				int index = tag - STRING_REF;
+				if (index >= strings.size()) {
+					throw new IOException("Unknown string reference: " + index);
+				}
+				return strings.get(index);
+			}
+			int length = readInt();
+			if (length > MAX_STRING_LENGTH) {
+				throw new IOException("String too long: " + length);
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.min(length, READ_CHUNK_SIZE));
+			byte[] chunk = new byte[Math.min(length, READ_CHUNK_SIZE)];
+			int remaining = length;
+			while (remaining > 0) {
+				int read = in.read(chunk, 0, Math.min(remaining, chunk.length));
+				if (read < 0) {
+					throw new EOFException();
+				}
+				bytes.write(chunk, 0, read);
+				remaining -= read;
+			}
+			String value = bytes.toString("UTF-8");
+			strings.add(value);
+			return value;
+		}
+
+		/**
+		 * Reads an org.json value written by Writer.writeValue().
+		 *
+		 * @returns Object value
+		 * @throws IOException
+		 * @throws JSONException
+		 */
+		public Object readValue() throws IOException, JSONException {
+			return readValue(0);
+		}
+
+		/**
+		 * Reads a value nested inside the given number
+		 * of arrays and objects.
+		 * Helper method for readValue().
+		 */
+		private Object readValue(int depth) throws IOException, JSONException {
+			if (depth > MAX_VALUE_DEPTH) {
+				throw new IOException("Value nested too deeply");
+			}
+			int tag = readInt();
+			switch (tag) {
+			case VALUE_NULL:
+				return JSONObject.NULL;
+			case VALUE_FALSE:
+				return false;
+			case VALUE_TRUE:
+				return true;
+			case VALUE_LONG:
+				long value = readSignedVarint();
+				if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+					return (int) value;
+				}
+				return value;
+			case VALUE_DOUBLE:
+				long bits = 0;
+				for (int i = 0; i < 8; i++) {
+					int b = in.read();
+					if (b < 0) {
+						throw new EOFException();
+					}
+					bits |= (long) b << (i * 8);
+				}
+				return Double.longBitsToDouble(bits);
+			case VALUE_STRING:
+				return readString();
+			case VALUE_ARRAY:
+				JSONArray array = new JSONArray();
+				int length = readCount();
+				for (int i = 0; i < length; i++) {
+					array.put(readValue(depth + 1));
+				}
+				return array;
+			case VALUE_OBJECT:
+				JSONObject object = new JSONObject();
+				int size = readCount();
+				for (int i = 0; i < size; i++) {
+					String key = readString();
+					object.put(key, readValue(depth + 1));
+				}
+				return object;
+			default:
+				throw new IOException("Unknown value tag: " + tag);
+			}
+		}
+
+		/**
+		 * Reads the number of elements in an array or object.
+		 * Helper method for readValue().
+		 */
+		private int readCount() throws IOException {
+			int count = readInt();
+			if (count > MAX_VALUE_COUNT) {
+				throw new IOException("Too many elements: " + count);
+			}
+			return count;
+		}
+	}
+}
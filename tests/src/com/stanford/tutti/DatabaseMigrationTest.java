@@ -0,0 +1,220 @@
+package com.stanford.tutti;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.InstrumentationTestCase;
+
+/**
+ * Builds the schema of each database version from 23 on,
+ * as that version's onCreate() left it, fills it with a
+ * small library, and checks that DatabaseHandler.onUpgrade()
+ * migrates it to the current version with the library, art,
+ * log, views and full-text index intact, instead of falling
+ * back to dropping the tables.
+ */
+public class DatabaseMigrationTest extends InstrumentationTestCase {
+	private static final int CURRENT_VERSION = 31;
+
+	private DatabaseHandler handler;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		handler = new DatabaseHandler(getInstrumentation().getTargetContext());
+	}
+
+	public void testUpgradeFromEachVersion() {
+		for (int version = 23; version < CURRENT_VERSION; version++) {
+			SQLiteDatabase db = SQLiteDatabase.create(null);
+			try {
+				if (version <= 28) {
+					createSongsSchema(db, version);
+					insertSongs(db, version);
+				} else {
+					createLibrarySchema(db, version);
+					insertLibrary(db);
+				}
+				db.execSQL("INSERT INTO log (startTime, latestTime, numSongs, numUsers) VALUES (1, 2, 3, 1)");
+
+				handler.onUpgrade(db, version, CURRENT_VERSION);
+				checkUpgraded(db, version);
+			} finally {
+				db.close();
+			}
+		}
+	}
+
+	/**
+	 * Creates the songs-table schema of versions 23 to 28.
+	 */
+	private static void createSongsSchema(SQLiteDatabase db, int version) {
+		db.execSQL("CREATE TABLE songs (_id INTEGER PRIMARY KEY, title TEXT, artist TEXT, album TEXT, "
+				+ "path TEXT, local INTEGER, art TEXT, hash TEXT, _ip TEXT, port INTEGER, trackNum INTEGER, "
+				+ (version >= 27 ? "artHash TEXT, " : "")
+				+ (version >= 28 ? "mediaId INTEGER, dateModified INTEGER, " : "")
+				+ "UNIQUE (title, artist, album) ON CONFLICT IGNORE)");
+
+		if (version < 26) {
+			db.execSQL("CREATE TABLE jam (_id INTEGER PRIMARY KEY, title TEXT, artist TEXT, album TEXT, "
+					+ "path TEXT, local INTEGER, art TEXT, hash TEXT, _ip TEXT, port INTEGER, "
+					+ "jamIndex INTEGER, addedBy TEXT, timestamp TEXT)");
+		} else {
+			db.execSQL("CREATE TABLE jam (_id INTEGER PRIMARY KEY, title TEXT, artist TEXT, album TEXT, "
+					+ "path TEXT, local INTEGER, art TEXT, hash TEXT, _ip TEXT, port INTEGER, "
+					+ "jamPosition TEXT, addedBy TEXT, timestamp TEXT, UNIQUE (timestamp) ON CONFLICT REPLACE)");
+		}
+
+		db.execSQL("CREATE TABLE log (_id INTEGER PRIMARY KEY, startTime INTEGER, latestTime INTEGER, "
+				+ "numSongs INTEGER DEFAULT 0, numUsers INTEGER)");
+
+		if (version >= 24) {
+			db.execSQL("CREATE INDEX songs_hash ON songs (hash)");
+			db.execSQL("CREATE INDEX songs_artist_album ON songs (artist, album, trackNum)");
+			db.execSQL("CREATE INDEX songs_album ON songs (album)");
+			db.execSQL("CREATE INDEX songs_ip ON songs (_ip)");
+			if (version < 26) {
+				db.execSQL("CREATE INDEX jam_timestamp ON jam (timestamp)");
+				db.execSQL("CREATE INDEX jam_index ON jam (jamIndex)");
+			} else {
+				db.execSQL("CREATE INDEX jam_position ON jam (jamPosition)");
+			}
+			db.execSQL("CREATE INDEX jam_hash ON jam (hash)");
+			db.execSQL("CREATE INDEX jam_ip ON jam (_ip)");
+		}
+		if (version >= 27) {
+			db.execSQL("CREATE INDEX songs_art_hash ON songs (artHash)");
+		}
+		if (version >= 28) {
+			db.execSQL("CREATE INDEX songs_media_id ON songs (mediaId)");
+		}
+
+		if (version >= 25) {
+			String insertTokens = "INSERT INTO songs_search (docid, title, artist, album) "
+					+ "VALUES (new._id, new.title, new.artist, new.album); ";
+			String deleteTokens = "DELETE FROM songs_search WHERE docid = old._id; ";
+			db.execSQL("CREATE VIRTUAL TABLE songs_search USING fts4(content=\"songs\", title, artist, album)");
+			db.execSQL("CREATE TRIGGER songs_search_ai AFTER INSERT ON songs BEGIN " + insertTokens + "END");
+			db.execSQL("CREATE TRIGGER songs_search_bd BEFORE DELETE ON songs BEGIN " + deleteTokens + "END");
+			db.execSQL("CREATE TRIGGER songs_search_bu BEFORE UPDATE OF title, artist, album ON songs "
+					+ "BEGIN " + deleteTokens + "END");
+			db.execSQL("CREATE TRIGGER songs_search_au AFTER UPDATE OF title, artist, album ON songs "
+					+ "BEGIN " + insertTokens + "END");
+		}
+	}
+
+	/**
+	 * Fills the songs table of versions 23 to 28: two local
+	 * songs on one album, one song from another phone on a
+	 * second album, a header row for each album, and a jam.
+	 */
+	private static void insertSongs(SQLiteDatabase db, int version) {
+		insertSong(db, version, "DISPLAY_ALBUM", "Artist", "Album", "", 1, "/art/1.jpg", null, "10.0.0.1", -1);
+		insertSong(db, version, "Song 1", "Artist", "Album", "/music/1.mp3", 1, "/art/1.jpg", "h1", "10.0.0.1", 1);
+		insertSong(db, version, "Song 2", "Artist", "Album", "/music/2.mp3", 1, "/art/1.jpg", "h2", "10.0.0.1", 2);
+		insertSong(db, version, "DISPLAY_ALBUM", "Other", "Second", "", 0, "", null, "10.0.0.2", -1);
+		insertSong(db, version, "Song 3", "Other", "Second", "/music/3.mp3", 0, "", "h3", "10.0.0.2", 1);
+
+		db.execSQL("INSERT INTO jam (title, artist, album, path, local, art, hash, _ip, port, "
+				+ (version < 26 ? "jamIndex" : "jamPosition") + ", addedBy, timestamp) "
+				+ "VALUES ('Song 1', 'Artist', 'Album', '/music/1.mp3', 1, '/art/1.jpg', 'h1', '10.0.0.1', 1234, "
+				+ (version < 26 ? "0" : "'V'") + ", 'me', 't1')");
+	}
+
+	private static void insertSong(SQLiteDatabase db, int version, String title, String artist, String album,
+			String path, int local, String art, String hash, String ip, int trackNum) {
+		db.execSQL("INSERT INTO songs (title, artist, album, path, local, art, hash, _ip, port, trackNum"
+				+ (version >= 27 ? ", artHash" : "")
+				+ (version >= 28 ? ", mediaId, dateModified" : "")
+				+ ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, 1234, ?"
+				+ (version >= 27 ? ", '" + album + "-hash'" : "")
+				+ (version >= 28 ? ", " + trackNum + ", 0" : "")
+				+ ")", new Object[] {title, artist, album, path, local, art, hash, ip, trackNum});
+	}
+
+	/**
+	 * Creates the schema of versions 29 and 30. The current
+	 * onCreate() builds version 29's schema, plus the tracks
+	 * title index of version 30 and the duplicate media
+	 * table of version 31, which are dropped again here.
+	 */
+	private void createLibrarySchema(SQLiteDatabase db, int version) {
+		handler.onCreate(db);
+		if (version < 30) {
+			db.execSQL("DROP INDEX tracks_title");
+		}
+		db.execSQL("DROP TABLE duplicate_media");
+	}
+
+	/**
+	 * Fills the library tables of versions 29 and 30
+	 * with the same library as insertSongs().
+	 */
+	private static void insertLibrary(SQLiteDatabase db) {
+		db.execSQL("INSERT INTO artists (name) VALUES ('Artist')");
+		db.execSQL("INSERT INTO artists (name) VALUES ('Other')");
+		db.execSQL("INSERT INTO peers (_ip, port) VALUES ('10.0.0.1', 1234)");
+		db.execSQL("INSERT INTO peers (_ip, port) VALUES ('10.0.0.2', 1234)");
+		db.execSQL("INSERT INTO albums (artist_id, title, art, artHash, peer_id) VALUES (1, 'Album', '/art/1.jpg', 'Album-hash', 1)");
+		db.execSQL("INSERT INTO albums (artist_id, title, art, artHash, peer_id) VALUES (2, 'Second', '', 'Second-hash', 2)");
+		db.execSQL("INSERT INTO tracks (album_id, peer_id, title, path, local, hash, trackNum) "
+				+ "VALUES (1, 1, 'Song 1', '/music/1.mp3', 1, 'h1', 1)");
+		db.execSQL("INSERT INTO tracks (album_id, peer_id, title, path, local, hash, trackNum) "
+				+ "VALUES (1, 1, 'Song 2', '/music/2.mp3', 1, 'h2', 2)");
+		db.execSQL("INSERT INTO tracks (album_id, peer_id, title, path, local, hash, trackNum) "
+				+ "VALUES (2, 2, 'Song 3', '/music/3.mp3', 0, 'h3', 1)");
+	}
+
+	/**
+	 * Checks a database upgraded from the given version.
+	 */
+	private static void checkUpgraded(SQLiteDatabase db, int version) {
+		String from = "Upgrade from version " + version + ": ";
+
+		assertEquals(from + "artists", 2, count(db, "SELECT COUNT(*) FROM artists"));
+		assertEquals(from + "peers", 2, count(db, "SELECT COUNT(*) FROM peers"));
+		assertEquals(from + "albums", 2, count(db, "SELECT COUNT(*) FROM albums"));
+		assertEquals(from + "tracks", 3, count(db, "SELECT COUNT(*) FROM tracks"));
+		assertEquals(from + "log", 1, count(db, "SELECT COUNT(*) FROM log"));
+
+		assertEquals(from + "views", 3, count(db, "SELECT COUNT(*) FROM sqlite_master "
+				+ "WHERE type = 'view' AND name IN ('track_rows', 'album_rows', 'songs')"));
+		assertEquals(from + "track rows", 3, count(db, "SELECT COUNT(*) FROM track_rows"));
+		assertEquals(from + "album rows", 2, count(db, "SELECT COUNT(*) FROM album_rows"));
+		assertEquals(from + "songs", 5, count(db, "SELECT COUNT(*) FROM songs"));
+		assertEquals(from + "local album", 1, count(db, "SELECT local FROM album_rows WHERE album = 'Album'"));
+		assertEquals(from + "album art", 1, count(db, "SELECT COUNT(*) FROM album_rows "
+				+ "WHERE album = 'Album' AND art = '/art/1.jpg'"));
+		assertEquals(from + "songs by artist", 3, count(db, "SELECT COUNT(*) FROM songs WHERE artist = 'Artist'"));
+
+		assertEquals(from + "search", 3, count(db, "SELECT COUNT(*) FROM track_rows "
+				+ "WHERE _id IN (SELECT docid FROM songs_search WHERE songs_search MATCH 'song*')"));
+		assertEquals(from + "search by artist", 1, count(db, "SELECT COUNT(*) FROM track_rows "
+				+ "WHERE _id IN (SELECT docid FROM songs_search WHERE songs_search MATCH 'artist:other')"));
+
+		// The search index must follow tracks added after the upgrade
+		db.execSQL("INSERT INTO tracks (album_id, peer_id, title, path, local, hash, trackNum) "
+				+ "VALUES (2, 2, 'Song 4', '/music/4.mp3', 0, 'h4', 2)");
+		assertEquals(from + "search after insert", 4, count(db, "SELECT COUNT(*) FROM songs_search "
+				+ "WHERE songs_search MATCH 'song*'"));
+
+		assertEquals(from + "tracks title index", 1, count(db, "SELECT COUNT(*) FROM sqlite_master "
+				+ "WHERE type = 'index' AND name = 'tracks_title'"));
+		assertEquals(from + "duplicate media", 1, count(db, "SELECT COUNT(*) FROM sqlite_master "
+				+ "WHERE type = 'table' AND name = 'duplicate_media'"));
+		// The jam table only mirrors the in-memory jam, and comes back empty
+		assertEquals(from + "jam", 0, count(db, "SELECT COUNT(track_id) FROM jam"));
+	}
+
+	/**
+	 * Returns the number in the first column of the query's first row.
+	 */
+	private static long count(SQLiteDatabase db, String query) {
+		Cursor cursor = db.rawQuery(query, null);
+		try {
+			assertTrue("No rows from: " + query, cursor.moveToFirst());
+			return cursor.getLong(0);
+		} finally {
+			cursor.close();
+		}
+	}
+}
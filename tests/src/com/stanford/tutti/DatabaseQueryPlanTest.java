@@ -0,0 +1,115 @@
+package com.stanford.tutti;
+
+import java.util.ArrayList;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.InstrumentationTestCase;
+
+/**
+ * Checks with EXPLAIN QUERY PLAN that the library and search
+ * queries of DatabaseHandler find their rows through the
+ * indexes and the full-text index, rather than by reading
+ * the whole tracks table.
+ *
+ * The schema is built by DatabaseHandler.onCreate() in an
+ * in-memory database, so the app's own library is untouched.
+ */
+public class DatabaseQueryPlanTest extends InstrumentationTestCase {
+	private SQLiteDatabase db;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		db = SQLiteDatabase.create(null);
+		new DatabaseHandler(getInstrumentation().getTargetContext()).onCreate(db);
+
+		db.execSQL("INSERT INTO artists (name) VALUES ('Artist'), ('Other')");
+		db.execSQL("INSERT INTO peers (_ip, port) VALUES ('10.0.0.1', 1234), ('10.0.0.2', 1234)");
+		db.execSQL("INSERT INTO albums (artist_id, title, art, artHash, peer_id) "
+				+ "VALUES (1, 'Album', '/art/1.jpg', 'a1', 1), (2, 'Second', '', 'a2', 2)");
+		for (int i = 1; i <= 20; i++) {
+			db.execSQL("INSERT INTO tracks (album_id, peer_id, title, path, local, hash, trackNum, mediaId, dateModified) "
+					+ "VALUES (?, ?, ?, ?, 1, ?, ?, ?, 0)",
+					new Object[] {i % 2 + 1, i % 2 + 1, "Song " + i, "/music/" + i + ".mp3", "h" + i, i, i});
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		db.close();
+		super.tearDown();
+	}
+
+	public void testSongLookupsUseIndexes() {
+		assertNoTrackScan(DatabaseHandler.SONG_BY_HASH, "h1");
+		assertNoTrackScan(DatabaseHandler.ART_BY_HASH, "h1");
+		assertNoTrackScan(DatabaseHandler.SONG_BY_TITLE, "Song 1");
+	}
+
+	public void testBrowseQueriesUseIndexes() {
+		assertNoTrackScan(DatabaseHandler.ALL_ARTISTS);
+		assertNoTrackScan(DatabaseHandler.ALBUMS_BY_ARTIST, "Artist");
+		assertNoTrackScan(DatabaseHandler.SONGS_BY_ARTIST, "Artist");
+		assertNoTrackScan(DatabaseHandler.SONGS_BY_ARTIST_AND_ALBUM, "Artist", "Album");
+		assertNoTrackScan(DatabaseHandler.ART_PATH_BY_ART_HASH, "a1");
+	}
+
+	public void testSearchQueriesUseFullTextIndex() {
+		assertFullTextSearch(DatabaseHandler.SEARCH_ARTISTS, "artist:art*", "art%");
+		assertFullTextSearch(DatabaseHandler.SEARCH_SONGS, "son*", "son%", "son%", "son%");
+		assertFullTextSearch(DatabaseHandler.SEARCH_SONGS_BY_ARTIST, "title:son*", "album:son*",
+				"Artist", "son%", "son%", "son%");
+	}
+
+	/**
+	 * Fails if the plan of the given query reads
+	 * the whole tracks table.
+	 */
+	private void assertNoTrackScan(String sql, String... args) {
+		for (String step : explain(sql, args)) {
+			assertFalse("Full scan of tracks in: " + sql + "\n" + step, isTrackScan(step));
+		}
+	}
+
+	/**
+	 * Fails if the plan of the given query reads the whole
+	 * tracks table, or doesn't look up the full-text index.
+	 */
+	private void assertFullTextSearch(String sql, String... args) {
+		assertNoTrackScan(sql, args);
+		boolean matched = false;
+		for (String step : explain(sql, args)) {
+			// FTS index numbers from 2 up are MATCH lookups; 0 is a full scan and 1 a docid lookup
+			matched |= step.matches(".*songs_search VIRTUAL TABLE INDEX ([2-9]|\\d{2,}):.*");
+		}
+		assertTrue("No full-text lookup in: " + sql, matched);
+	}
+
+	/**
+	 * Returns the detail column of each step of the query plan.
+	 */
+	private ArrayList<String> explain(String sql, String... args) {
+		ArrayList<String> steps = new ArrayList<String>();
+		Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+		try {
+			int detail = cursor.getColumnIndexOrThrow("detail");
+			while (cursor.moveToNext()) {
+				steps.add(cursor.getString(detail));
+			}
+		} finally {
+			cursor.close();
+		}
+		return steps;
+	}
+
+	/**
+	 * Returns true for a step that reads every row of tracks,
+	 * written "SCAN TABLE tracks" by older versions of SQLite
+	 * and "SCAN tracks" by newer ones. Scans of an index on
+	 * tracks are also reported, unless they are covering.
+	 */
+	private static boolean isTrackScan(String step) {
+		return step.matches("SCAN (TABLE )?tracks( AS \\w+)?( USING INDEX .*)?");
+	}
+}